@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.commons.internal.RecipientParser;
+
+/**
+ * Parsing of recipient lists with {@link RecipientParser}, with the addresses already in its cache (the same people
+ * being notified again) and without cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AddressBenchmark
+{
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    private RecipientParser cachingParser;
+
+    private RecipientParser parser;
+
+    private String to;
+
+    private String cc;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        this.cachingParser = new RecipientParser(2 * this.recipients);
+        this.parser = new RecipientParser(0);
+        this.to = createList(0, this.recipients);
+        // Half of the Cc recipients are also in To
+        this.cc = createList(this.recipients / 2, this.recipients + this.recipients / 2);
+        this.cachingParser.parse(this.to, this.cc, null);
+    }
+
+    private String createList(int start, int end)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                builder.append(", ");
+            }
+            builder.append(i % 3 == 0 ? "\"User, " + i + "\" <user" + i + "@acme.org>" : "user" + i + "@acme.org");
+        }
+        return builder.toString();
+    }
+
+    @Benchmark
+    public Object parseCached() throws Exception
+    {
+        return this.cachingParser.parse(this.to, this.cc, null);
+    }
+
+    @Benchmark
+    public Object parseUncached() throws Exception
+    {
+        return this.parser.parse(this.to, this.cc, null);
+    }
+}
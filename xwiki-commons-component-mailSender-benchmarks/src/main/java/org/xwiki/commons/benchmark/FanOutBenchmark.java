@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.commons.internal.DefaultMailSender;
+import org.xwiki.commons.internal.Mail;
+import org.xwiki.commons.internal.MailSerializer;
+
+/**
+ * An announcement with an attachment sent to many recipients, each getting their own copy: a mail per recipient with
+ * {@code sendBatch} against a single rendering with {@code sendToEach}. Run with <tt>-prof gc</tt> to compare the
+ * allocations per recipient.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FanOutBenchmark
+{
+    /** Number of recipients of the announcement. */
+    @Param({"10", "100", "1000"})
+    public int recipients;
+
+    /** Value of <tt>mail.sender.engine</tt>. */
+    @Param({"javamail", "nio"})
+    public String engine;
+
+    private SmtpStandIn server;
+
+    private MailSenderFixture fixture;
+
+    private DefaultMailSender mailSender;
+
+    /** The same mail for each recipient. */
+    private List<Mail> mails;
+
+    /** The mail to all the recipients. */
+    private Mail announcement;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        this.server = new SmtpStandIn(new SmtpStandIn.Options().setChunking(true));
+        this.fixture = new MailSenderFixture(this.server.getPort(), "mail.sender.engine=" + this.engine);
+        this.mailSender = this.fixture.getMailSender();
+
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            html.append("<p>Paragraph ").append(i).append(" of the <b>announcement</b>.</p>");
+        }
+        StringBuilder to = new StringBuilder();
+        this.mails = new ArrayList<Mail>();
+        for (int i = 0; i < this.recipients; i++) {
+            String recipient = "user" + i + "@acme.org";
+            to.append(i > 0 ? ", " : "").append(recipient);
+            this.mails.add(createMail(recipient, html.toString()));
+        }
+        this.announcement = createMail(to.toString(), html.toString());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        this.fixture.dispose();
+        this.server.stop();
+    }
+
+    @Benchmark
+    public int[] sendBatch()
+    {
+        return this.mailSender.sendBatch(this.mails);
+    }
+
+    @Benchmark
+    public int sendToEach()
+    {
+        return this.mailSender.sendToEach(this.announcement);
+    }
+
+    private Mail createMail(String to, String html)
+    {
+        Mail mail = new Mail("john@acme.org", to, null, null, "Announcement");
+        mail.addContent("text/html", html);
+        mail.addFile(MailSerializer.createAttachment("program.pdf", new byte[16 * 1024]));
+        return mail;
+    }
+}
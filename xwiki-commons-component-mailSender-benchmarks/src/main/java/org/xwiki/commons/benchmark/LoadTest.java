@@ -0,0 +1,189 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import org.xwiki.commons.internal.DefaultMailSender;
+import org.xwiki.commons.internal.Mail;
+
+/**
+ * Pushes mails through {@link DefaultMailSender#send(Mail)} at a target rate against a local {@link SmtpStandIn} and
+ * reports the throughput, the latency percentiles and the error rate. Latencies are measured from the time each mail
+ * was scheduled to be sent, so that a slow server doesn't hide its own queuing delay.
+ * <p>
+ * Usage: <tt>java -cp target/benchmarks.jar org.xwiki.commons.benchmark.LoadTest [--option=value...]</tt> with the
+ * options:
+ * <ul>
+ * <li>mails: number of mails to send (10000)</li>
+ * <li>rate: target number of mails per second, 0 to send as fast as possible (500)</li>
+ * <li>threads: number of sending threads (16)</li>
+ * <li>recipients: number of recipients per mail (1)</li>
+ * <li>size: size in bytes of the mail body (2048)</li>
+ * <li>commandLatency, dataLatency: latency of the server in milliseconds (0)</li>
+ * <li>temporaryFailureRate, permanentFailureRate: probability of 4xx and 5xx replies (0)</li>
+ * <li>maxConnections: connection limit of the server, 0 for none (0)</li>
+ * <li>maxSize: message size limit of the server, 0 for none (0)</li>
+ * <li>chunking: whether the server advertises <tt>CHUNKING</tt> (false)</li>
+ * <li>extraProperties: mail sender settings, e.g. <tt>mail.sender.pool.size=8</tt> or
+ * <tt>mail.sender.engine=nio</tt>, separated by ';'</li>
+ * </ul>
+ */
+public final class LoadTest
+{
+    private LoadTest()
+    {
+        // Main class
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = parse(args);
+        final int mails = getInt(options, "mails", 10000);
+        int rate = getInt(options, "rate", 500);
+        int threads = getInt(options, "threads", 16);
+
+        SmtpStandIn server =
+            new SmtpStandIn(new SmtpStandIn.Options().setCommandLatency(getInt(options, "commandLatency", 0))
+                .setDataLatency(getInt(options, "dataLatency", 0))
+                .setTemporaryFailureRate(getDouble(options, "temporaryFailureRate", 0))
+                .setPermanentFailureRate(getDouble(options, "permanentFailureRate", 0))
+                .setMaxConnections(getInt(options, "maxConnections", 0))
+                .setMaxSize(getInt(options, "maxSize", 0)).setChunking(Boolean.parseBoolean(options.get("chunking"))));
+        String extraProperties = options.containsKey("extraProperties") ? options.get("extraProperties")
+            .replace(';', '\n') : null;
+        MailSenderFixture fixture = new MailSenderFixture(server.getPort(), extraProperties);
+        final DefaultMailSender mailSender = fixture.getMailSender();
+        final Mail mail = createMail(getInt(options, "recipients", 1), getInt(options, "size", 2048));
+
+        // Warm up the connections and the JIT, then forget about it
+        for (int i = 0; i < Math.min(100, mails); i++) {
+            mailSender.send(mail);
+        }
+        ObjectName metrics = new ObjectName("org.xwiki:type=MailSender");
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(metrics)) {
+            ManagementFactory.getPlatformMBeanServer().invoke(metrics, "reset", null, null);
+        }
+        long acceptedBefore = server.getReceivedMails();
+        long temporaryBefore = server.getTemporaryFailures();
+        long permanentBefore = server.getPermanentFailures();
+        long refusedBefore = server.getRejectedConnections();
+
+        final long[] latencies = new long[mails];
+        final AtomicInteger errors = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < mails; i++) {
+            final long scheduled = start + i * intervalNanos;
+            final int index = i;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (mailSender.send(mail) != 1) {
+                        errors.incrementAndGet();
+                    }
+                    latencies[index] = System.nanoTime() - scheduled;
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("Mails:          %d in %.2f s", mails, elapsed / 1e9));
+        System.out.println(String.format("Throughput:     %.1f mails/s (target %s)", mails / (elapsed / 1e9),
+            rate > 0 ? rate + " mails/s" : "unbounded"));
+        System.out.println(String.format("Latency:        p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+            percentile(latencies, 0.5), percentile(latencies, 0.99), latencies[mails - 1] / 1e6));
+        System.out.println(String.format("Errors:         %d (%.2f%%)", errors.get(), 100.0 * errors.get() / mails));
+        System.out.println(String.format("Server:         %d accepted, %d 4xx, %d 5xx, %d connections refused",
+            server.getReceivedMails() - acceptedBefore, server.getTemporaryFailures() - temporaryBefore,
+            server.getPermanentFailures() - permanentBefore, server.getRejectedConnections() - refusedBefore));
+        System.out.println("Mail sender:    " + mailSender.getStatistics());
+
+        fixture.dispose();
+        server.stop();
+    }
+
+    private static Mail createMail(int recipients, int size)
+    {
+        StringBuilder to = new StringBuilder();
+        for (int i = 0; i < recipients; i++) {
+            if (i > 0) {
+                to.append(", ");
+            }
+            to.append("user").append(i).append("@acme.org");
+        }
+        Mail mail = new Mail("john@acme.org", to.toString(), null, null, "Load test");
+        StringBuilder body = new StringBuilder(size);
+        while (body.length() < size) {
+            body.append("The quick brown fox jumps over the lazy dog.\n");
+        }
+        mail.addContent("text/plain", body.substring(0, size));
+        return mail;
+    }
+
+    private static double percentile(long[] sortedLatencies, double percentile)
+    {
+        int index = (int) Math.ceil(sortedLatencies.length * percentile) - 1;
+        return sortedLatencies[Math.max(0, index)] / 1e6;
+    }
+
+    private static Map<String, String> parse(String[] args)
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (arg.startsWith("--") && separator > 2) {
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            } else {
+                throw new IllegalArgumentException("Invalid option [" + arg + "], expected --name=value");
+            }
+        }
+        return options;
+    }
+
+    private static int getInt(Map<String, String> options, String name, int defaultValue)
+    {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private static double getDouble(Map<String, String> options, String name, double defaultValue)
+    {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.benchmark;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.commons.MailSender;
+import org.xwiki.commons.internal.DefaultMailSender;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.embed.EmbeddableComponentManager;
+import org.xwiki.environment.Environment;
+import org.xwiki.velocity.VelocityManager;
+
+/**
+ * Creates a {@link DefaultMailSender} outside of a wiki: the components found on the classpath are registered, and
+ * the ones which need a running wiki (document access, Velocity, environment) are replaced by stubs. The mail
+ * configuration is read from the preferences given to the fixture.
+ */
+public class MailSenderFixture
+{
+    private final EmbeddableComponentManager componentManager = new EmbeddableComponentManager();
+
+    private final Map<String, String> preferences = new HashMap<String, String>();
+
+    private final File directory;
+
+    private DefaultMailSender mailSender;
+
+    /**
+     * @param smtpPort the port of the SMTP server to send the mails to
+     * @param extraProperties the content of the <tt>javamail_extra_props</tt> preference, e.g. the mail sender
+     *            settings
+     * @throws Exception if the mail sender can't be created
+     */
+    public MailSenderFixture(int smtpPort, String extraProperties) throws Exception
+    {
+        this.preferences.put("smtp_server", "127.0.0.1");
+        this.preferences.put("smtp_port", String.valueOf(smtpPort));
+        this.preferences.put("smtp_server_username", "");
+        this.preferences.put("smtp_server_password", "");
+        this.preferences.put("javamail_extra_props", extraProperties != null ? extraProperties : "");
+
+        this.directory = File.createTempFile("mailsender-benchmark", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+
+        this.componentManager.initialize(getClass().getClassLoader());
+        register(DocumentAccessBridge.class, stub(DocumentAccessBridge.class));
+        register(VelocityManager.class, stub(VelocityManager.class));
+        register(Environment.class, stub(Environment.class));
+    }
+
+    public DefaultMailSender getMailSender() throws Exception
+    {
+        if (this.mailSender == null) {
+            this.mailSender = (DefaultMailSender) this.componentManager.getInstance(MailSender.class);
+        }
+        return this.mailSender;
+    }
+
+    public void dispose() throws Exception
+    {
+        if (this.mailSender != null) {
+            this.mailSender.dispose();
+        }
+        delete(this.directory);
+    }
+
+    private <T> void register(Type role, T component) throws Exception
+    {
+        DefaultComponentDescriptor<T> descriptor = new DefaultComponentDescriptor<T>();
+        descriptor.setRoleType(role);
+        this.componentManager.registerComponent(descriptor, component);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T stub(Class<T> role)
+    {
+        return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class< ? >[] {role},
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if ("getProperty".equals(name) && args != null && args.length == 2) {
+                        return MailSenderFixture.this.preferences.get(args[1]);
+                    } else if ("getPermanentDirectory".equals(name) || "getTemporaryDirectory".equals(name)) {
+                        return MailSenderFixture.this.directory;
+                    } else if ("hasProgrammingRights".equals(name)) {
+                        return true;
+                    }
+                    return defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    private static Object defaultValue(Class< ? > type)
+    {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.activation.DataHandler;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.commons.internal.Mail;
+import org.xwiki.commons.internal.MailSerializer;
+import org.xwiki.commons.internal.MimeMultipartBuilder;
+
+import com.xpn.xwiki.api.Attachment;
+
+/**
+ * MIME assembly ({@link MimeMultipartBuilder}) for mails with many contents, inline images and attachments. The
+ * time per mail should grow linearly with the number of parts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MimeMultipartBenchmark
+{
+    /** Number of images embedded in the HTML content. */
+    @Param({"0", "10", "100", "500"})
+    public int images;
+
+    /** Number of other attachments. */
+    @Param({"0", "10", "100", "500"})
+    public int attachments;
+
+    /** Number of alternative contents. */
+    @Param({"1", "3"})
+    public int contents;
+
+    private MimeMultipartBuilder builder;
+
+    private Mail mail;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        this.builder = new MimeMultipartBuilder(new MimeMultipartBuilder.PartFactory()
+        {
+            @Override
+            public MimeBodyPart createAttachmentPart(Attachment attachment)
+            {
+                try {
+                    String name = attachment.getFilename();
+                    String mimeType = name.endsWith(".png") ? "image/png" : "application/pdf";
+                    MimeBodyPart part = new MimeBodyPart();
+                    part.setDataHandler(new DataHandler(new ByteArrayDataSource(attachment.getContent(), mimeType)));
+                    part.setHeader("Content-Type", mimeType);
+                    part.setFileName(name);
+                    part.setContentID("<" + name + ">");
+                    part.setDisposition("inline");
+                    return part;
+                } catch (Exception e) {
+                    return new MimeBodyPart();
+                }
+            }
+
+            @Override
+            public String createPlain(String html)
+            {
+                return "Newsletter";
+            }
+        }, "UTF-8");
+
+        this.mail = new Mail("john@acme.org", "peter@acme.org", null, null, "Benchmark");
+        StringBuilder html = new StringBuilder("<p>Newsletter</p>");
+        for (int i = 0; i < this.images; i++) {
+            html.append("<img src=\"cid:image").append(i).append(".png\"/>");
+            this.mail.addFile(MailSerializer.createAttachment("image" + i + ".png", new byte[512]));
+        }
+        for (int i = 0; i < this.attachments; i++) {
+            this.mail.addFile(MailSerializer.createAttachment("document" + i + ".pdf", new byte[2048]));
+        }
+        this.mail.addContent("text/html", html.toString());
+        for (int i = 1; i < this.contents; i++) {
+            this.mail.addContent(i % 2 == 1 ? "text/plain" : "text/calendar", "Content " + i);
+        }
+    }
+
+    @Benchmark
+    public Object build() throws Exception
+    {
+        return this.builder.build(this.mail);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xwiki.commons.internal.MimeTypeRegistry;
+import org.xwiki.commons.internal.MimeTypesUtil;
+
+/**
+ * MIME type lookup of attachment file names, common and unknown extensions mixed: the hashed registry against the
+ * linear scan of the legacy table it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MimeTypesBenchmark
+{
+    private static final String[] FILENAMES = {"report.pdf", "logo.png", "photo.JPG", "archive.zip", "notes.txt",
+        "page.html", "data.xlsx", "movie.mov", "README", "image.svg", "vrml.wrl", "budget.ods"};
+
+    /** The lookup of the original implementation, a case sensitive scan of the table. */
+    private static final class LegacyTable extends MimeTypesUtil
+    {
+        static String lookup(String filename)
+        {
+            int index = filename.lastIndexOf('.');
+            String extension = index != -1 ? filename.substring(index + 1) : filename;
+            for (int i = 0; i < MIME_TYPES.length; i++) {
+                if (MIME_TYPES[i][1].equals(extension)) {
+                    return MIME_TYPES[i][0];
+                }
+            }
+            return "application/octet-stream";
+        }
+    }
+
+    private MimeTypeRegistry registry;
+
+    @Setup
+    public void setUp()
+    {
+        this.registry = MimeTypeRegistry.getDefault();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void getMimeTypeFromFilename(Blackhole blackhole)
+    {
+        for (String filename : FILENAMES) {
+            blackhole.consume(MimeTypesUtil.getMimeTypeFromFilename(filename));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void registry(Blackhole blackhole)
+    {
+        for (String filename : FILENAMES) {
+            blackhole.consume(this.registry.getTypeFromFilename(filename));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void legacyTable(Blackhole blackhole)
+    {
+        for (String filename : FILENAMES) {
+            blackhole.consume(LegacyTable.lookup(filename));
+        }
+    }
+}
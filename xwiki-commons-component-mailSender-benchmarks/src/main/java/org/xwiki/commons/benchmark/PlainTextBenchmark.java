@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.commons.internal.DefaultMailSender;
+import org.xwiki.commons.internal.PlainTextConverter;
+
+/**
+ * Conversion of HTML contents to their plain text alternative: {@code createPlain} with and without the conversion
+ * cache, and the fast tag stripper.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PlainTextBenchmark
+{
+    /** Number of paragraphs of the HTML content. */
+    @Param({"10", "1000"})
+    public int paragraphs;
+
+    /** Size of the conversion cache, 0 to convert on each call. */
+    @Param({"0", "200"})
+    public int cacheSize;
+
+    private MailSenderFixture fixture;
+
+    private DefaultMailSender mailSender;
+
+    private String html;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        // The fast mode is benchmarked separately
+        this.fixture =
+            new MailSenderFixture(25, "mail.sender.plain.cacheSize=" + this.cacheSize
+                + "\nmail.sender.plain.fastThreshold=0");
+        this.mailSender = this.fixture.getMailSender();
+        StringBuilder builder = new StringBuilder("<html><body><h1>Newsletter</h1>");
+        for (int i = 0; i < this.paragraphs; i++) {
+            builder.append("<p>Paragraph ").append(i).append(" with <b>bold</b>, <a href=\"http://www.xwiki.org\">")
+                .append("a link</a> &amp; an entity.</p>");
+        }
+        this.html = builder.append("</body></html>").toString();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        this.fixture.dispose();
+    }
+
+    @Benchmark
+    public String createPlain()
+    {
+        return this.mailSender.createPlain(this.html);
+    }
+
+    @Benchmark
+    public String fastConvert()
+    {
+        return PlainTextConverter.fastConvert(this.html);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xwiki.commons.internal.DefaultMailSender;
+import org.xwiki.commons.internal.Mail;
+
+/**
+ * {@code DefaultMailSender.send} end to end, from the {@link Mail} to the SMTP server, with the JavaMail transports
+ * and with the non blocking engine, from one thread and from many threads sharing the connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SendBenchmark
+{
+    /** Value of <tt>mail.sender.engine</tt>. */
+    @Param({"javamail", "nio"})
+    public String engine;
+
+    /** Whether the server advertises <tt>CHUNKING</tt>. */
+    @Param({"false", "true"})
+    public boolean chunking;
+
+    private SmtpStandIn server;
+
+    private MailSenderFixture fixture;
+
+    private DefaultMailSender mailSender;
+
+    private Mail mail;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        this.server = new SmtpStandIn(new SmtpStandIn.Options().setChunking(this.chunking));
+        this.fixture = new MailSenderFixture(this.server.getPort(), "mail.sender.engine=" + this.engine
+            + "\nmail.sender.pool.size=16");
+        this.mailSender = this.fixture.getMailSender();
+        this.mail = new Mail("john@acme.org", "peter@acme.org", null, null, "Benchmark");
+        this.mail.addContent("text/plain", "Hello Peter,\n\nThis is a benchmark.");
+        this.mail.addContent("text/html", "<p>Hello Peter,</p><p>This is a <b>benchmark</b>.</p>");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        this.fixture.dispose();
+        this.server.stop();
+    }
+
+    @Benchmark
+    public int send()
+    {
+        return this.mailSender.send(this.mail);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int sendConcurrently()
+    {
+        return this.mailSender.send(this.mail);
+    }
+}
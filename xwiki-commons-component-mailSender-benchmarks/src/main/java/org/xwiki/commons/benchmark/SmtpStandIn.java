@@ -0,0 +1,414 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process SMTP server accepting the mails and dropping them, so that benchmarks and load tests exercise the client
+ * side of the protocol over a real socket. Its {@link Options} let it behave like a real relay: latency of each
+ * command, random temporary (4xx) and permanent (5xx) failures, a connection limit and a maximum message size. It
+ * advertises <tt>PIPELINING</tt>: replies are always sent in the order of the commands, and optionally
+ * <tt>CHUNKING</tt>.
+ */
+public class SmtpStandIn
+{
+    /** How the server behaves. The defaults make it answer immediately and accept everything. */
+    public static class Options
+    {
+        private long commandLatency;
+
+        private long dataLatency;
+
+        private double temporaryFailureRate;
+
+        private double permanentFailureRate;
+
+        private int maxConnections;
+
+        private long maxSize;
+
+        private boolean chunking;
+
+        private long seed = 42;
+
+        /**
+         * @param commandLatency time in milliseconds before answering each command
+         * @return this
+         */
+        public Options setCommandLatency(long commandLatency)
+        {
+            this.commandLatency = commandLatency;
+            return this;
+        }
+
+        /**
+         * @param dataLatency time in milliseconds before accepting a message, once it's been received
+         * @return this
+         */
+        public Options setDataLatency(long dataLatency)
+        {
+            this.dataLatency = dataLatency;
+            return this;
+        }
+
+        /**
+         * @param temporaryFailureRate probability for a recipient or a message to be rejected with a 4xx reply
+         * @return this
+         */
+        public Options setTemporaryFailureRate(double temporaryFailureRate)
+        {
+            this.temporaryFailureRate = temporaryFailureRate;
+            return this;
+        }
+
+        /**
+         * @param permanentFailureRate probability for a recipient or a message to be rejected with a 5xx reply
+         * @return this
+         */
+        public Options setPermanentFailureRate(double permanentFailureRate)
+        {
+            this.permanentFailureRate = permanentFailureRate;
+            return this;
+        }
+
+        /**
+         * @param maxConnections the maximum number of simultaneous connections, 0 for no limit
+         * @return this
+         */
+        public Options setMaxConnections(int maxConnections)
+        {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * @param maxSize the maximum size in bytes of a message, advertised with <tt>SIZE</tt>, 0 for no limit
+         * @return this
+         */
+        public Options setMaxSize(long maxSize)
+        {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * @param chunking whether to advertise <tt>CHUNKING</tt> and accept <tt>BDAT</tt>
+         * @return this
+         */
+        public Options setChunking(boolean chunking)
+        {
+            this.chunking = chunking;
+            return this;
+        }
+
+        /**
+         * @param seed the seed of the failure injection, for reproducible runs
+         * @return this
+         */
+        public Options setSeed(long seed)
+        {
+            this.seed = seed;
+            return this;
+        }
+    }
+
+    private final Options options;
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final Random random;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicLong receivedMails = new AtomicLong();
+
+    private final AtomicLong rejectedConnections = new AtomicLong();
+
+    private final AtomicLong temporaryFailures = new AtomicLong();
+
+    private final AtomicLong permanentFailures = new AtomicLong();
+
+    private volatile boolean stopped;
+
+    /**
+     * Start a server accepting everything without delay.
+     *
+     * @throws IOException if the server socket can't be opened
+     */
+    public SmtpStandIn() throws IOException
+    {
+        this(new Options());
+    }
+
+    /**
+     * Start listening on a free port of the loopback interface.
+     *
+     * @param options how the server behaves
+     * @throws IOException if the server socket can't be opened
+     */
+    public SmtpStandIn(Options options) throws IOException
+    {
+        this.options = options;
+        this.random = new Random(options.seed);
+        this.serverSocket = new ServerSocket(0, 200, InetAddress.getByName("127.0.0.1"));
+        this.executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                accept();
+            }
+        });
+    }
+
+    public int getPort()
+    {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the number of mails accepted since the server has been started
+     */
+    public long getReceivedMails()
+    {
+        return this.receivedMails.get();
+    }
+
+    /**
+     * @return the number of connections refused because of the connection limit
+     */
+    public long getRejectedConnections()
+    {
+        return this.rejectedConnections.get();
+    }
+
+    /**
+     * @return the number of injected 4xx replies
+     */
+    public long getTemporaryFailures()
+    {
+        return this.temporaryFailures.get();
+    }
+
+    /**
+     * @return the number of injected 5xx replies, including the messages over the size limit
+     */
+    public long getPermanentFailures()
+    {
+        return this.permanentFailures.get();
+    }
+
+    public void stop() throws IOException
+    {
+        this.stopped = true;
+        this.serverSocket.close();
+        this.executor.shutdownNow();
+    }
+
+    private void accept()
+    {
+        while (!this.stopped) {
+            try {
+                final Socket socket = this.serverSocket.accept();
+                this.executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        handle(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // Stopped
+            }
+        }
+    }
+
+    private void handle(Socket socket)
+    {
+        boolean counted = false;
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            if (this.options.maxConnections > 0
+                && this.connections.incrementAndGet() > this.options.maxConnections) {
+                this.connections.decrementAndGet();
+                this.rejectedConnections.incrementAndGet();
+                reply(out, "421 Too many connections, try again later");
+                return;
+            }
+            counted = this.options.maxConnections > 0;
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            reply(out, "220 localhost ESMTP stand-in");
+            String line;
+            long chunked = 0;
+            while ((line = in.readLine()) != null) {
+                String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+                pause(this.options.commandLatency);
+                if ("EHLO".equals(command)) {
+                    reply(out, "250-localhost\r\n250-PIPELINING\r\n"
+                        + (this.options.chunking ? "250-CHUNKING\r\n" : "") + "250-SIZE " + this.options.maxSize
+                        + "\r\n250 8BITMIME");
+                } else if ("MAIL".equals(command) && isTooBig(line)) {
+                    this.permanentFailures.incrementAndGet();
+                    reply(out, "552 Message size exceeds the limit");
+                } else if ("RCPT".equals(command)) {
+                    reply(out, inject("250 OK", "450 Mailbox busy", "550 No such user"));
+                } else if ("DATA".equals(command)) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    long size = 0;
+                    while ((line = in.readLine()) != null && !".".equals(line)) {
+                        size += line.length() + 2;
+                    }
+                    endOfData(out, size);
+                } else if (this.options.chunking && "BDAT".equals(command)) {
+                    String[] arguments = line.trim().split(" +");
+                    long size = Long.parseLong(arguments[1]);
+                    skip(in, size);
+                    chunked += size;
+                    if (arguments.length > 2 && "LAST".equalsIgnoreCase(arguments[2])) {
+                        endOfData(out, chunked);
+                        chunked = 0;
+                    } else {
+                        reply(out, "250 " + size + " octets received");
+                    }
+                } else if ("QUIT".equals(command)) {
+                    reply(out, "221 Bye");
+                    break;
+                } else {
+                    // HELO, MAIL, RSET, NOOP
+                    reply(out, "250 OK");
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed by the client
+        } finally {
+            if (counted) {
+                this.connections.decrementAndGet();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Read the content of a <tt>BDAT</tt> chunk, one char per byte with US-ASCII.
+     */
+    private void skip(BufferedReader in, long size) throws IOException
+    {
+        long remaining = size;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                throw new IOException("Connection closed in the middle of a chunk");
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * Accept or reject a message once its content has been received.
+     */
+    private void endOfData(OutputStream out, long size) throws IOException
+    {
+        pause(this.options.dataLatency);
+        if (this.options.maxSize > 0 && size > this.options.maxSize) {
+            this.permanentFailures.incrementAndGet();
+            reply(out, "552 Message size exceeds the limit");
+        } else {
+            String reply = inject("250 OK queued", "451 Local error, try again", "554 Rejected");
+            if (reply.startsWith("250")) {
+                this.receivedMails.incrementAndGet();
+            }
+            reply(out, reply);
+        }
+    }
+
+    /**
+     * @return true if the <tt>SIZE</tt> declared by a <tt>MAIL FROM</tt> command exceeds the limit
+     */
+    private boolean isTooBig(String line)
+    {
+        int index = line.toUpperCase().indexOf("SIZE=");
+        if (this.options.maxSize <= 0 || index < 0) {
+            return false;
+        }
+        int end = index + 5;
+        while (end < line.length() && Character.isDigit(line.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(line.substring(index + 5, end)) > this.options.maxSize;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private String inject(String success, String temporaryFailure, String permanentFailure)
+    {
+        double draw;
+        synchronized (this.random) {
+            draw = this.random.nextDouble();
+        }
+        if (draw < this.options.temporaryFailureRate) {
+            this.temporaryFailures.incrementAndGet();
+            return temporaryFailure;
+        } else if (draw < this.options.temporaryFailureRate + this.options.permanentFailureRate) {
+            this.permanentFailures.incrementAndGet();
+            return permanentFailure;
+        }
+        return success;
+    }
+
+    private void pause(long millis) throws IOException
+    {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    private void reply(OutputStream out, String reply) throws IOException
+    {
+        out.write((reply + "\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+}
@@ -19,6 +19,7 @@
  */
 package org.xwiki.commons;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -36,17 +37,90 @@ import com.xpn.xwiki.api.Attachment;
 @ComponentRole
 public interface MailSender
 {
+    /**
+     * Returned for a mail which has not been sent yet because of a temporary failure, e.g. a greylisting server or a
+     * lost connection. It is sent again in the background, so it must not be sent again by the caller.
+     */
+    int RETRYING = 2;
+
     Mail newMail(String from, String to, String cc, String bcc, String subject);
 
     Properties initProperties();
 
     String createCalendar(String location, String summary, Date startDate, Date endDate);
 
+    /**
+     * Send a mail now. The recipients who didn't get it because of a temporary failure are retried in the background.
+     * 
+     * @param mail the mail to send
+     * @return 1 if the mail has been sent, at least to some of its recipients, {@link #RETRYING} if it has not been
+     *         sent to anyone yet but will be sent again, 0 if it has not been sent
+     */
     int send(Mail mail);
 
+    /**
+     * Send several mails, reusing the same SMTP connection as much as possible.
+     * 
+     * @param mails the mails to send
+     * @return for each mail, in iteration order, 1 if it has been sent, {@link #RETRYING} if it will be sent again
+     *         and 0 otherwise
+     */
+    int[] sendBatch(Collection<Mail> mails);
+
+    /**
+     * Send a separate copy of a mail to each of its recipients, addressed to them alone. The mail is rendered and
+     * serialized once, whatever the number of recipients.
+     * 
+     * @param mail the mail to send, its To, Cc and Bcc recipients getting the same copy
+     * @return the number of recipients the mail has been sent to; the recipients who didn't get it because of a
+     *         temporary failure are not counted, a copy addressed to them alone is sent again in the background
+     */
+    int sendToEach(Mail mail);
+
+    /**
+     * Send a notification, gathering it with the other notifications sent to the same recipient in the same category
+     * during a time window. Each recipient then gets a single digest rendered from the digest template, or the
+     * notification itself if it's the only one of the window.
+     * 
+     * @param mail the notification, not to be modified anymore
+     * @param category groups the notifications which can be sent in the same digest
+     * @return true if the notification is sent or waiting for the digest, false if it has not been sent or if the
+     *         author of the calling document has no programming rights
+     */
+    boolean sendCoalesced(Mail mail, String category);
+
+    /**
+     * Queue a mail to be sent in the background.
+     * 
+     * @param mail the mail to send
+     * @return the id to pass to {@link #getMailStatus(String)}, or null if the mail could not be queued
+     */
+    String sendAsync(Mail mail);
+
+    /**
+     * @param id the id returned by {@link #sendAsync(Mail)}
+     * @return the delivery status of the mail ("queued", "sending", "retrying", "sent" or "failed"), null if the id
+     *         is unknown; a "retrying" mail has not been sent yet and will be sent again in the background
+     */
+    String getMailStatus(String id);
+
     int sendMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
         String language, VelocityContext vContext);
 
     int sendMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
         String language, Map<String,Object> parameters);
+
+    /**
+     * Send a mail template to many recipients, each with their own parameters. The template is resolved and its view
+     * right checked once, the mails are rendered in parallel and sent over the same SMTP connection.
+     * 
+     * @param templateDocFullName the document holding the <tt>XWiki.Mail</tt> object
+     * @param from the sender of the mails
+     * @param language the language of the template to use
+     * @param recipients for each recipient address, the parameters to put in the Velocity context
+     * @return for each recipient, in iteration order, 1 if the mail has been sent, {@link #RETRYING} if it will be
+     *         sent again and 0 otherwise
+     */
+    int[] sendMailMerge(String templateDocFullName, String from, String language,
+        Map<String, Map<String, Object>> recipients);
 }
@@ -0,0 +1,176 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+
+/**
+ * Read-only {@link DataSource} serving the content of a mail attachment. The content is streamed from memory, or from
+ * a temporary file for attachments larger than the spill threshold so that big attachments don't stay on the heap
+ * while their mail waits to be sent. The temporary file is deleted by {@link #dispose()}, see
+ * {@link #disposeAll(Part)}.
+ */
+public class AttachmentDataSource implements DataSource
+{
+    private static final String MULTIPART = "multipart/*";
+
+    private final String name;
+
+    private final String contentType;
+
+    private byte[] content;
+
+    private File file;
+
+    /**
+     * @param name the file name of the attachment
+     * @param contentType the MIME type of the attachment
+     * @param content the content of the attachment
+     * @param spillThreshold size in bytes above which the content is moved to a temporary file, 0 to always keep it in
+     *            memory
+     * @param directory where to create the temporary file, null for the default temporary directory
+     * @throws IOException if the temporary file can't be written
+     */
+    public AttachmentDataSource(String name, String contentType, byte[] content, long spillThreshold,
+        File directory) throws IOException
+    {
+        this.name = name;
+        this.contentType = contentType;
+        if (spillThreshold > 0 && content.length > spillThreshold) {
+            if (directory != null) {
+                directory.mkdirs();
+            }
+            File temp = File.createTempFile("attachment", ".tmp", directory);
+            boolean written = false;
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(content);
+                written = true;
+            } finally {
+                out.close();
+                if (!written) {
+                    temp.delete();
+                }
+            }
+            this.file = temp;
+        } else {
+            this.content = content;
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return this.name;
+    }
+
+    @Override
+    public String getContentType()
+    {
+        return this.contentType;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException
+    {
+        if (this.file != null) {
+            return new FileInputStream(this.file);
+        }
+        if (this.content == null) {
+            throw new IOException("The attachment [" + this.name + "] has been disposed");
+        }
+        return new ByteArrayInputStream(this.content);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        throw new IOException("The attachment [" + this.name + "] is read-only");
+    }
+
+    /**
+     * @return true if the content has been moved to a temporary file
+     */
+    public boolean isSpilled()
+    {
+        return this.file != null;
+    }
+
+    /**
+     * Release the content, deleting the temporary file if any.
+     */
+    public synchronized void dispose()
+    {
+        this.content = null;
+        if (this.file != null) {
+            this.file.delete();
+            this.file = null;
+        }
+    }
+
+    /**
+     * Dispose the attachments of a message once it has been sent (or has failed).
+     *
+     * @param part the message or body part to clean
+     */
+    public static void disposeAll(Part part)
+    {
+        try {
+            DataHandler handler = part.getDataHandler();
+            if (handler != null && handler.getDataSource() instanceof AttachmentDataSource) {
+                ((AttachmentDataSource) handler.getDataSource()).dispose();
+            } else if (isMultipart(part, handler) && part.getContent() instanceof Multipart) {
+                Multipart multipart = (Multipart) part.getContent();
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    disposeAll(multipart.getBodyPart(i));
+                }
+            }
+        } catch (MessagingException e) {
+            // Parts which can't be read don't hold any attachment
+        } catch (IOException e) {
+            // Same
+        }
+    }
+
+    /**
+     * Only multiparts hold other parts, the content of the other parts (e.g. the cached text attachments) is not
+     * decoded for nothing. The type of the data handler is checked too since the headers of a message are only updated
+     * when it is saved.
+     */
+    private static boolean isMultipart(Part part, DataHandler handler) throws MessagingException
+    {
+        return part.isMimeType(MULTIPART)
+            || (handler != null && handler.getContentType() != null
+                && new ContentType(handler.getContentType()).match(MULTIPART));
+    }
+}
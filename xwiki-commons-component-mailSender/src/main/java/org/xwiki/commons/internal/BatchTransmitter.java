@@ -0,0 +1,405 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * Sends messages one after another on a single pooled SMTP connection, issuing a <tt>RSET</tt> between two messages.
+ * When the connection breaks, the current message is sent again on a new connection. If that connection was just
+ * opened the relay itself is failing: the failure is recorded against it and the message is sent through another
+ * relay, if any. Long recipient lists are split in chunks, each chunk being sent in its own SMTP transaction so that
+ * relays limiting the number of recipients per message accept them, after waiting for the rate limits if needed,
+ * without holding a connection. When the relays are sent to with a {@link MailTransportEngine} the engine handles the
+ * connections and this class only waits for each chunk to be sent. Not thread safe: use one instance per sending
+ * thread.
+ */
+public class BatchTransmitter
+{
+    /** The outcome of sending a message to a chunk of its recipients. */
+    public static class ChunkResult
+    {
+        private static final Address[] NONE = new Address[0];
+
+        private final Address[] sent;
+
+        private final Address[] unsent;
+
+        private final Address[] invalid;
+
+        private final MessagingException failure;
+
+        ChunkResult(Address[] sent, Address[] unsent, Address[] invalid, MessagingException failure)
+        {
+            this.sent = sent != null ? sent : NONE;
+            this.unsent = unsent != null ? unsent : NONE;
+            this.invalid = invalid != null ? invalid : NONE;
+            this.failure = failure;
+        }
+
+        /**
+         * @return the recipients who accepted the message
+         */
+        public Address[] getSent()
+        {
+            return this.sent;
+        }
+
+        /**
+         * @return the valid recipients who didn't get the message, because of a temporary failure
+         */
+        public Address[] getUnsent()
+        {
+            return this.unsent;
+        }
+
+        /**
+         * @return the recipients rejected by the server
+         */
+        public Address[] getInvalid()
+        {
+            return this.invalid;
+        }
+
+        /**
+         * @return why some recipients didn't get the message, null if all of them did
+         */
+        public MessagingException getFailure()
+        {
+            return this.failure;
+        }
+    }
+
+    private final RelayBalancer balancer;
+
+    private final int chunkSize;
+
+    private final RateLimiter rateLimiter;
+
+    private final MailSenderMetrics metrics;
+
+    private final List<ChunkResult> chunkResults = new ArrayList<ChunkResult>();
+
+    /** The relay of the current connection. */
+    private SmtpRelay relay;
+
+    private TransportPool.Lease lease;
+
+    /** Number of messages already sent on the current connection. */
+    private int sentOnLease;
+
+    /**
+     * @param pool where to get the connection from
+     * @param chunkSize the maximum number of recipients per SMTP transaction, 0 for no limit
+     * @param metrics where to record the time spent connecting and transmitting
+     */
+    public BatchTransmitter(TransportPool pool, int chunkSize, MailSenderMetrics metrics)
+    {
+        this(new RelayBalancer(Collections.singletonList(new SmtpRelay("smtp", 1, pool, 1, 0))), chunkSize, null,
+            metrics);
+    }
+
+    /**
+     * @param balancer chooses the relay to get the connection from
+     * @param chunkSize the maximum number of recipients per SMTP transaction, 0 for no limit
+     * @param rateLimiter defers the chunks sent over the rate limits, null for no limit
+     * @param metrics where to record the time spent connecting and transmitting
+     */
+    public BatchTransmitter(RelayBalancer balancer, int chunkSize, RateLimiter rateLimiter,
+        MailSenderMetrics metrics)
+    {
+        this.balancer = balancer;
+        this.chunkSize = chunkSize;
+        this.rateLimiter = rateLimiter != null && rateLimiter.isEnabled() ? rateLimiter : null;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param configuration the configuration providing the connections, the chunk size and the rate limits
+     * @param metrics where to record the time spent throttling, connecting and transmitting
+     */
+    public BatchTransmitter(MailServerConfiguration configuration, MailSenderMetrics metrics)
+    {
+        this(configuration.getRelays(), configuration.getSettings().getRecipientChunkSize(),
+            configuration.getRateLimiter(), metrics);
+    }
+
+    /**
+     * Send a message to its recipients, chunk by chunk. When a chunk fails the next ones are still sent, unless no
+     * connection can be obtained anymore.
+     *
+     * @param message the message to send
+     * @param recipients the envelope recipients
+     * @throws SendFailedException if some recipients didn't get the message, the connection is kept for the next
+     *             message; when there are several chunks it lists the recipients of all the chunks
+     * @throws MessagingException if the message could not be sent at all
+     * @see #getChunkResults()
+     */
+    public void send(Message message, Address[] recipients) throws MessagingException
+    {
+        this.chunkResults.clear();
+        int size = this.chunkSize > 0 ? this.chunkSize : Math.max(1, recipients.length);
+        boolean single = recipients.length <= size;
+        List<Address> sent = new ArrayList<Address>();
+        List<Address> unsent = new ArrayList<Address>();
+        List<Address> invalid = new ArrayList<Address>();
+        MessagingException failure = null;
+        for (int start = 0; start < recipients.length || start == 0; start += size) {
+            Address[] chunk = single ? recipients : Arrays.copyOfRange(recipients, start,
+                Math.min(recipients.length, start + size));
+            try {
+                sendChunk(message, chunk);
+                this.chunkResults.add(new ChunkResult(chunk, null, null, null));
+                sent.addAll(Arrays.asList(chunk));
+            } catch (SendFailedException e) {
+                ChunkResult result =
+                    new ChunkResult(e.getValidSentAddresses(), e.getValidUnsentAddresses(), e.getInvalidAddresses(),
+                        e);
+                this.chunkResults.add(result);
+                if (single) {
+                    throw e;
+                }
+                sent.addAll(Arrays.asList(result.getSent()));
+                unsent.addAll(Arrays.asList(result.getUnsent()));
+                invalid.addAll(Arrays.asList(result.getInvalid()));
+                failure = e;
+            } catch (MessagingException e) {
+                // No connection to send the remaining chunks
+                Address[] remaining = Arrays.copyOfRange(recipients, start, recipients.length);
+                this.chunkResults.add(new ChunkResult(null, remaining, null, e));
+                if (single) {
+                    throw e;
+                }
+                unsent.addAll(Arrays.asList(remaining));
+                failure = e;
+                break;
+            }
+        }
+        if (failure != null) {
+            throw new SendFailedException("The message has not been sent to all the recipients", failure,
+                sent.toArray(new Address[sent.size()]), unsent.toArray(new Address[unsent.size()]),
+                invalid.toArray(new Address[invalid.size()]));
+        }
+    }
+
+    /**
+     * @return the outcome of each chunk of the last message sent
+     */
+    public List<ChunkResult> getChunkResults()
+    {
+        return Collections.unmodifiableList(this.chunkResults);
+    }
+
+    private void sendChunk(Message message, Address[] recipients) throws MessagingException
+    {
+        if (this.balancer.usesEngine()) {
+            sendWithEngine(message, recipients);
+            return;
+        }
+        Set<SmtpRelay> failed = new HashSet<SmtpRelay>();
+        // Once per chunk, whatever the retries, and before borrowing a connection
+        SmtpRelay target = this.lease != null ? this.relay : this.balancer.select(failed);
+        throttle(target, recipients);
+        boolean retried = false;
+        while (true) {
+            if (this.lease == null) {
+                connect(failed, target);
+                target = null;
+            } else if (this.sentOnLease > 0 && !reset()) {
+                continue;
+            }
+            boolean warm = this.lease.isReused() || this.sentOnLease > 0;
+            try {
+                long start = this.metrics.start();
+                this.lease.getTransport().sendMessage(message, recipients);
+                this.metrics.record(MailSenderMetrics.Stage.TRANSMIT, start);
+                this.sentOnLease++;
+                this.relay.recordSuccess();
+                return;
+            } catch (SendFailedException e) {
+                // The transaction is over, the connection can still be used once reset
+                this.sentOnLease++;
+                this.relay.recordSuccess();
+                throw e;
+            } catch (MessagingException e) {
+                SmtpRelay failing = this.relay;
+                discard();
+                if (warm && !retried) {
+                    // The server probably dropped a connection which had been opened earlier
+                    retried = true;
+                } else {
+                    failing.recordFailure(System.currentTimeMillis());
+                    failed.add(failing);
+                    if (!this.balancer.hasCandidate(failed)) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Submit a chunk to the engine of the best relay and wait for it to be sent, failing over to the next relays if it
+     * can't be sent at all.
+     */
+    private void sendWithEngine(Message message, Address[] recipients) throws MessagingException
+    {
+        if (!(message instanceof MimeMessage)) {
+            throw new MessagingException("The SMTP engine can only send MIME messages");
+        }
+        Set<SmtpRelay> failed = new HashSet<SmtpRelay>();
+        MessagingException failure = null;
+        SmtpRelay candidate = this.balancer.select(failed);
+        // Once per chunk, the failover relays are not charged again
+        throttle(candidate, recipients);
+        while (candidate != null) {
+            try {
+                long start = this.metrics.start();
+                await(candidate.getEngine().submit((MimeMessage) message, recipients));
+                this.metrics.record(MailSenderMetrics.Stage.TRANSMIT, start);
+                candidate.recordSuccess();
+                return;
+            } catch (SendFailedException e) {
+                candidate.recordSuccess();
+                throw e;
+            } catch (MessagingException e) {
+                candidate.recordFailure(System.currentTimeMillis());
+                failed.add(candidate);
+                failure = e;
+            }
+            candidate = this.balancer.select(failed);
+        }
+        throw failure != null ? failure : new MessagingException("No SMTP relay left to send the message");
+    }
+
+    private void await(Future<Void> sending) throws MessagingException
+    {
+        try {
+            sending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while sending the message", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Failed to send the message", e);
+        }
+    }
+
+    /**
+     * Take the tokens needed to send a chunk through the given relay, waiting for them if needed. The connection is
+     * given back to the pool before waiting, so that it's neither kept from the other senders nor left idle until the
+     * server closes it.
+     *
+     * @param target the relay the chunk is to be sent through, null if there is none
+     */
+    private void throttle(SmtpRelay target, Address[] recipients) throws MessagingException
+    {
+        if (this.rateLimiter != null && target != null) {
+            long wait = this.rateLimiter.reserve(target.getName(), recipients);
+            if (wait > 0) {
+                long start = this.metrics.start();
+                close();
+                RateLimiter.pause(wait);
+                this.metrics.record(MailSenderMetrics.Stage.THROTTLE, start);
+            }
+        }
+    }
+
+    /**
+     * Get a connection from the given relay or from the best one, failing over to the next ones if it can't be
+     * connected to.
+     *
+     * @param failed the relays which already failed for the current message, updated with the ones failing now
+     * @param preferred the relay to try first, null to let the balancer choose
+     */
+    private void connect(Set<SmtpRelay> failed, SmtpRelay preferred) throws MessagingException
+    {
+        MessagingException failure = null;
+        SmtpRelay candidate =
+            preferred != null && !failed.contains(preferred) ? preferred : this.balancer.select(failed);
+        for (; candidate != null; candidate = this.balancer.select(failed)) {
+            long start = this.metrics.start();
+            try {
+                this.lease = candidate.getPool().borrow();
+                this.metrics.record(MailSenderMetrics.Stage.CONNECT, start);
+                this.relay = candidate;
+                this.sentOnLease = 0;
+                return;
+            } catch (MessagingException e) {
+                candidate.recordFailure(System.currentTimeMillis());
+                failed.add(candidate);
+                failure = e;
+            }
+        }
+        throw failure != null ? failure : new MessagingException("No SMTP relay left to send the message");
+    }
+
+    /**
+     * Give the connection back to the pool.
+     */
+    public void close()
+    {
+        if (this.lease != null) {
+            this.relay.getPool().release(this.lease);
+            this.lease = null;
+        }
+    }
+
+    /**
+     * Reset the SMTP transaction state before sending another message.
+     *
+     * @return false if the connection turned out to be broken and has been discarded
+     */
+    private boolean reset()
+    {
+        if (this.lease.getTransport() instanceof SMTPTransport) {
+            try {
+                ((SMTPTransport) this.lease.getTransport()).issueCommand("RSET", 250);
+            } catch (MessagingException e) {
+                discard();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void discard()
+    {
+        this.relay.getPool().invalidate(this.lease);
+        this.lease = null;
+    }
+}
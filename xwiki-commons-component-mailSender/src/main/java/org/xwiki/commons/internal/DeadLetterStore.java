@@ -0,0 +1,345 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The mails which could not be delivered to some of their recipients, either because the server rejected them or
+ * because all the retries failed. Each dead letter is kept in its own file so that an administrator can look at it;
+ * only its description is kept in memory, the mail itself is read from the file when asked for. Dead letters are
+ * removed when asked to, when they expire or when there are too many of them, the oldest first. Without a directory
+ * the dead letters are only kept in memory.
+ */
+public class DeadLetterStore
+{
+    private static final String SUFFIX = ".dead";
+
+    /** The description of a mail and of the recipients it could not be delivered to. */
+    public static class Entry
+    {
+        private final String id;
+
+        private final String wiki;
+
+        private final String recipients;
+
+        private final String reason;
+
+        private final long date;
+
+        private final String subject;
+
+        Entry(String id, String wiki, String recipients, String reason, long date, String subject)
+        {
+            this.id = id;
+            this.wiki = wiki;
+            this.recipients = recipients;
+            this.reason = reason;
+            this.date = date;
+            this.subject = subject;
+        }
+
+        public String getId()
+        {
+            return this.id;
+        }
+
+        public String getWiki()
+        {
+            return this.wiki;
+        }
+
+        /**
+         * @return the comma separated addresses the mail could not be delivered to
+         */
+        public String getRecipients()
+        {
+            return this.recipients;
+        }
+
+        /**
+         * @return why the mail could not be delivered
+         */
+        public String getReason()
+        {
+            return this.reason;
+        }
+
+        /**
+         * @return when the mail was given up, in milliseconds since the epoch
+         */
+        public long getDate()
+        {
+            return this.date;
+        }
+
+        public String getSubject()
+        {
+            return this.subject;
+        }
+    }
+
+    private final File directory;
+
+    private final int capacity;
+
+    private final long timeToLive;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /** The mails of the dead letters when there is no directory to read them from. */
+    private final Map<String, Mail> mails = new HashMap<String, Mail>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param directory where the dead letters are stored, null to keep them in memory
+     * @param capacity the maximum number of dead letters kept
+     * @param timeToLive the time in milliseconds after which a dead letter is removed
+     */
+    public DeadLetterStore(File directory, int capacity, long timeToLive)
+    {
+        this.directory = directory;
+        this.capacity = capacity;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Read the description of the dead letters stored by previous runs. Unreadable files are skipped.
+     *
+     * @throws IOException if the directory can't be created
+     */
+    public void open() throws IOException
+    {
+        if (this.directory == null) {
+            return;
+        }
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Failed to create the dead letter directory [" + this.directory + "]");
+        }
+        File[] files = this.directory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        List<Entry> read = new ArrayList<Entry>(files.length);
+        for (File file : files) {
+            try {
+                read.add(readEntry(file));
+            } catch (IOException e) {
+                // Partially written file, the mail was lost when the previous run stopped
+            }
+        }
+        List<String> removed;
+        synchronized (this) {
+            for (Entry entry : read) {
+                this.entries.put(entry.getId(), entry);
+            }
+            removed = evict(System.currentTimeMillis());
+        }
+        delete(removed);
+    }
+
+    /**
+     * @param wiki the wiki from which the mail was sent
+     * @param mail the mail
+     * @param recipients the comma separated addresses the mail could not be delivered to
+     * @param reason why the mail could not be delivered
+     * @return the id of the dead letter
+     * @throws IOException if the dead letter can't be written, it is described in memory anyway
+     */
+    public String add(String wiki, Mail mail, String recipients, String reason) throws IOException
+    {
+        // Time based so that the files are read back in the order they were written
+        long now = System.currentTimeMillis();
+        String id = String.format("%013d-%08d", now, this.sequence.incrementAndGet());
+        Entry entry = new Entry(id, wiki, recipients, reason, now, mail.getSubject());
+        List<String> removed;
+        synchronized (this) {
+            this.entries.put(id, entry);
+            if (this.directory == null) {
+                this.mails.put(id, mail);
+            }
+            removed = evict(now);
+        }
+        delete(removed);
+        if (this.directory != null) {
+            write(entry, mail);
+        }
+        return id;
+    }
+
+    /**
+     * @return the dead letters, the oldest first
+     */
+    public List<Entry> getEntries()
+    {
+        List<Entry> result;
+        List<String> removed;
+        synchronized (this) {
+            removed = evict(System.currentTimeMillis());
+            result = new ArrayList<Entry>(this.entries.values());
+        }
+        delete(removed);
+        return result;
+    }
+
+    /**
+     * @param id the id of a dead letter
+     * @return the mail which could not be delivered, null if there is no such dead letter or if it can't be read
+     */
+    public Mail getMail(String id)
+    {
+        synchronized (this) {
+            if (!this.entries.containsKey(id)) {
+                return null;
+            }
+            if (this.directory == null) {
+                return this.mails.get(id);
+            }
+        }
+        try {
+            return readMail(new File(this.directory, id + SUFFIX));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param id the id of the dead letter
+     * @return false if there is no such dead letter
+     */
+    public boolean remove(String id)
+    {
+        synchronized (this) {
+            if (this.entries.remove(id) == null) {
+                return false;
+            }
+            this.mails.remove(id);
+        }
+        if (this.directory != null) {
+            new File(this.directory, id + SUFFIX).delete();
+        }
+        return true;
+    }
+
+    /**
+     * Forget the dead letters which expired or exceed the capacity, the oldest first.
+     *
+     * @return the ids of the dead letters whose file is to be deleted
+     */
+    private List<String> evict(long now)
+    {
+        List<String> removed = new ArrayList<String>();
+        Iterator<Entry> it = this.entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (this.entries.size() <= this.capacity && entry.getDate() > now - this.timeToLive) {
+                break;
+            }
+            it.remove();
+            this.mails.remove(entry.getId());
+            removed.add(entry.getId());
+        }
+        return removed;
+    }
+
+    private void delete(List<String> ids)
+    {
+        if (this.directory != null) {
+            for (String id : ids) {
+                new File(this.directory, id + SUFFIX).delete();
+            }
+        }
+    }
+
+    private void write(Entry entry, Mail mail) throws IOException
+    {
+        File file = new File(this.directory, entry.getId() + SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            MailSerializer.writeString(entry.getWiki(), out);
+            MailSerializer.writeString(entry.getRecipients(), out);
+            MailSerializer.writeString(entry.getReason(), out);
+            out.writeLong(entry.getDate());
+            MailSerializer.writeString(entry.getSubject(), out);
+            MailSerializer.write(mail, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read the description of a dead letter, leaving the rest of the mail on disk.
+     */
+    private Entry readEntry(File file) throws IOException
+    {
+        String name = file.getName();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            String wiki = MailSerializer.readString(in);
+            String recipients = MailSerializer.readString(in);
+            String reason = MailSerializer.readString(in);
+            long date = in.readLong();
+            String subject = MailSerializer.readString(in);
+            return new Entry(name.substring(0, name.length() - SUFFIX.length()), wiki, recipients, reason, date,
+                subject);
+        } finally {
+            in.close();
+        }
+    }
+
+    private Mail readMail(File file) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            // Skip the description
+            MailSerializer.readString(in);
+            MailSerializer.readString(in);
+            MailSerializer.readString(in);
+            in.readLong();
+            MailSerializer.readString(in);
+            return MailSerializer.read(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -19,24 +19,32 @@
  */
 package org.xwiki.commons.internal;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.velocity.VelocityContext;
 import org.slf4j.Logger;
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.commons.MailSender;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.context.Execution;
 import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.environment.Environment;
 import org.xwiki.model.reference.DocumentReference;
 
 import org.xwiki.rendering.parser.StreamParser;
 import org.xwiki.rendering.renderer.PrintRendererFactory;
-import org.xwiki.rendering.renderer.printer.DefaultWikiPrinter;
-import org.xwiki.rendering.renderer.printer.WikiPrinter;
 import org.xwiki.rendering.syntax.Syntax;
 import org.xwiki.velocity.VelocityManager;
 
+import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.api.Attachment;
 import com.xpn.xwiki.api.Document;
@@ -45,35 +53,46 @@ import com.xpn.xwiki.render.XWikiVelocityRenderer;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
-import javax.activation.FileDataSource;
-import javax.mail.BodyPart;
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.SendFailedException;
-import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.ParseException;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.ObjectName;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -84,13 +103,88 @@ import javax.inject.Singleton;
  */
 @Component
 @Singleton
-public class DefaultMailSender implements MailSender
+public class DefaultMailSender implements MailSender, Initializable, Disposable
 {
     static String EMAIL_ENCODING = "UTF-8";
 
     /** The name of the Object Type holding mail templates. */
     public static final String EMAIL_XWIKI_CLASS_NAME = "XWiki.Mail";
 
+    /** Time in milliseconds given to the pending digests to be sent on dispose. */
+    private static final long DIGEST_CLOSE_TIMEOUT = 10000L;
+
+    /** Time in milliseconds given to the queued mails being sent on dispose. */
+    private static final long QUEUE_CLOSE_TIMEOUT = 10000L;
+
+    /** Maximum number of dead letters kept, the oldest ones are removed first. */
+    private static final int DEAD_LETTER_CAPACITY = 10000;
+
+    /** Time in milliseconds after which a dead letter is removed: 30 days. */
+    private static final long DEAD_LETTER_TIME_TO_LIVE = 30L * 24 * 60 * 60 * 1000;
+
+    /** What became of a mail after an attempt to send it. */
+    private enum Outcome
+    {
+        /** Sent to some recipients at least, the others being retried or given up. */
+        SENT,
+
+        /** Not sent to anyone yet, a retry has been scheduled. */
+        RETRYING,
+
+        /** Not sent and given up. */
+        FAILED
+    }
+
+    /**
+     * What is needed to render a digest once the request sending its first notification is over. Nothing bound to
+     * that request is kept: the digest is rendered with a new XWiki context for the same wiki and user.
+     */
+    private static class DigestContext
+    {
+        private final MailServerConfiguration configuration;
+
+        private final MailTemplateCache.ResolvedTemplate template;
+
+        private final String templateName;
+
+        private final String language;
+
+        private final String from;
+
+        private final XWiki xwiki;
+
+        private final String mainWiki;
+
+        private final String wiki;
+
+        private final String user;
+
+        DigestContext(MailServerConfiguration configuration, MailTemplateCache.ResolvedTemplate template,
+            String templateName, String language, String from, XWikiContext xwikiContext)
+        {
+            this.configuration = configuration;
+            this.template = template;
+            this.templateName = templateName;
+            this.language = language;
+            this.from = from;
+            this.xwiki = xwikiContext.getWiki();
+            this.mainWiki = xwikiContext.getMainXWiki();
+            this.wiki = xwikiContext.getDatabase();
+            this.user = xwikiContext.getUser();
+        }
+
+        XWikiContext createXWikiContext()
+        {
+            XWikiContext xwikiContext = new XWikiContext();
+            xwikiContext.setWiki(this.xwiki);
+            xwikiContext.setMainXWiki(this.mainWiki);
+            xwikiContext.setDatabase(this.wiki);
+            xwikiContext.setUser(this.user);
+            xwikiContext.setLanguage(this.language);
+            return xwikiContext;
+        }
+    }
+
     @Inject
     private DocumentAccessBridge documentAccessBridge;
 
@@ -103,6 +197,9 @@ public class DefaultMailSender implements MailSender
     @Inject
     private Execution execution;
 
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
     @Inject
     @Named("html/4.01")
     private StreamParser htmlStreamParser;
@@ -110,300 +207,1356 @@ public class DefaultMailSender implements MailSender
     @Inject
     private ComponentManager componentManager;
 
-    @Override
-    public Mail newMail(String from, String to, String cc, String bcc, String subject)
+    /** The resolved mail configuration of each wiki, dropped when its preferences are saved. */
+    private final ConcurrentMap<String, MailServerConfiguration> configurations =
+        new ConcurrentHashMap<String, MailServerConfiguration>();
+
+    /**
+     * Rate limits of the relays and of the recipient domains, kept across the configurations so that a relay shared
+     * by several wikis, or whose wiki preferences are saved, is not sent to faster than its rate.
+     */
+    private final RateLimiter.Buckets rateBuckets = new RateLimiter.Buckets();
+
+    /** Resolved mail templates and view rights on them, created on first use. */
+    private volatile MailTemplateCache mailTemplateCache;
+
+    /** Base64 encoded attachments, created on first use unless disabled. */
+    private volatile EncodedAttachmentCache encodedAttachmentCache;
+
+    /** Converts the HTML bodies to plain text, created on first use. */
+    private volatile PlainTextConverter plainTextConverter;
+
+    /** Created on first use, with the settings of the first wiki sending an attachment. */
+    private volatile MimeTypeRegistry mimeTypeRegistry;
+
+    /** Parses and caches the recipient addresses, created on first use. */
+    private volatile RecipientParser recipientParser;
+
+    /** Counters and latencies of the sending stages. */
+    private final MailSenderMetrics metrics = new MailSenderMetrics();
+
+    /** The name under which the metrics are registered in JMX, null if they are not. */
+    private ObjectName metricsName;
+
+    /** Mails sent in the background, created on first use. */
+    private volatile MailSendQueue sendQueue;
+
+    /** Durable copy of the queued mails, null if it could not be opened. */
+    private MailSpool spool;
+
+    /**
+     * Ids of the queued mails waiting for a retry. Once the retries are over they are acknowledged in the spool and
+     * their status is updated.
+     */
+    private final ConcurrentMap<Mail, String> retriedQueuedMails = new ConcurrentHashMap<Mail, String>();
+
+    /** Mails which could not be delivered to some recipients, kept in memory only if there is no environment. */
+    private DeadLetterStore deadLetters =
+        new DeadLetterStore(null, DEAD_LETTER_CAPACITY, DEAD_LETTER_TIME_TO_LIVE);
+
+    /** Addresses mails are not sent to, kept in memory only if there is no environment. */
+    private SuppressionList suppressions = new SuppressionList(null);
+
+    /** Sends mails again to the recipients who didn't get them. */
+    private final MailRetryScheduler retryScheduler = new MailRetryScheduler(new MailRetryScheduler.Retrier()
+    {
+        @Override
+        public void retry(Mail mail, Address[] recipients, MailServerConfiguration configuration, int attempt)
+        {
+            Outcome outcome = deliver(mail, recipients, configuration, attempt);
+            if (outcome != Outcome.RETRYING) {
+                String id = retriedQueuedMails.remove(mail);
+                if (id != null) {
+                    acknowledge(id);
+                    MailSendQueue queue = sendQueue;
+                    if (queue != null) {
+                        queue.setStatus(id, getStatus(outcome));
+                    }
+                }
+            }
+        }
+    });
+
+    /** Gathers the notifications sent to the same recipient into digests. */
+    private final NotificationCoalescer<DigestContext> coalescer =
+        new NotificationCoalescer<DigestContext>(new NotificationCoalescer.Sender<DigestContext>()
+        {
+            @Override
+            public void send(String recipient, String category, List<Mail> mails, DigestContext context)
+            {
+                sendDigest(recipient, category, mails, context);
+            }
+        });
+
+    /** Where big attachments are spilled while their mail is being sent, null for the default temporary directory. */
+    private File temporaryDirectory;
+
+    /**
+     * Mails queued before the last restart and not sent yet, per wiki. They are queued again as soon as the
+     * configuration of their wiki is resolved since it can't be done outside of a wiki request.
+     */
+    private final ConcurrentMap<String, List<MailSpool.Entry>> spooledMails =
+        new ConcurrentHashMap<String, List<MailSpool.Entry>>();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        registerMetrics();
+
+        Environment environment;
+        try {
+            environment = this.componentManager.getInstance(Environment.class);
+        } catch (ComponentLookupException e) {
+            logger.debug("No environment available, queued mails won't survive a restart");
+            return;
+        }
+        this.temporaryDirectory = new File(environment.getTemporaryDirectory(), "mailsender");
+        File deadLetterDirectory = new File(environment.getPermanentDirectory(), "mailsender/deadletters");
+        DeadLetterStore store =
+            new DeadLetterStore(deadLetterDirectory, DEAD_LETTER_CAPACITY, DEAD_LETTER_TIME_TO_LIVE);
+        try {
+            store.open();
+            this.deadLetters = store;
+        } catch (IOException e) {
+            logger.error("Failed to open the dead letters [" + deadLetterDirectory + "], they won't survive a restart",
+                e);
+        }
+        File suppressionDirectory = new File(environment.getPermanentDirectory(), "mailsender/suppressions");
+        SuppressionList suppressionList = new SuppressionList(suppressionDirectory);
+        try {
+            suppressionList.open();
+            this.suppressions = suppressionList;
+        } catch (IOException e) {
+            logger.error("Failed to open the suppressed addresses [" + suppressionDirectory
+                + "], mails will be sent to them", e);
+        }
+        File directory = new File(environment.getPermanentDirectory(), "mailsender/spool");
+        MailSpool mailSpool = new MailSpool(directory);
+        try {
+            List<MailSpool.Entry> entries = mailSpool.open();
+            for (MailSpool.Entry entry : entries) {
+                List<MailSpool.Entry> wikiEntries = this.spooledMails.get(entry.getWiki());
+                if (wikiEntries == null) {
+                    wikiEntries = new ArrayList<MailSpool.Entry>();
+                    this.spooledMails.put(entry.getWiki(), wikiEntries);
+                }
+                wikiEntries.add(entry);
+            }
+            this.spool = mailSpool;
+            if (!entries.isEmpty()) {
+                logger.info(entries.size() + " mails queued before the restart will be sent");
+            }
+        } catch (IOException e) {
+            logger.error("Failed to open the mail spool [" + directory + "], queued mails won't survive a restart", e);
+        }
+    }
+
+    @Override
+    public Mail newMail(String from, String to, String cc, String bcc, String subject)
+    {
+        return new Mail(from, to, cc, bcc, subject);
+    }
+
+    @Override
+    public int sendMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
+        String language, Map<String, Object> parameters)
+    {
+        VelocityContext vContext = velocityManager.getVelocityContext();
+        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+            vContext.put(entry.getKey(), entry.getValue());
+        }
+        return sendMailFromTemplate(templateDocFullName, from, to, cc, bcc, language, vContext);
+    }
+
+    @Override
+    public int sendMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
+        String language, VelocityContext vContext)
+    {
+        if (!documentAccessBridge.hasProgrammingRights()) // Forbids the use of a template created by a user having no
+                                                          // programming rights
+        {
+            logger
+                .error("No mail has been sent : The author of the document needs programming rights to be able to use the sendMailFromTemplate method");
+            return 0;
+        }
+        try {
+            ExecutionContext context = this.execution.getContext();
+            XWikiContext xwikiContext = (XWikiContext) context.getProperty("xwikicontext");
+            if (vContext == null)
+                vContext = velocityManager.getVelocityContext();
+
+            MailTemplateCache.ResolvedTemplate template = resolveTemplate(templateDocFullName, language, xwikiContext);
+            if (template == null) {
+                return 0;
+            }
+            return this.send(createMailFromTemplate(template, templateDocFullName, language, from, to, cc, bcc,
+                vContext, xwikiContext));
+        } catch (Exception e) {
+            return 0;
+        }
+
+    }
+
+    @Override
+    public int[] sendMailMerge(final String templateDocFullName, final String from, final String language,
+        Map<String, Map<String, Object>> recipients)
+    {
+        int[] results = new int[recipients.size()];
+        if (!documentAccessBridge.hasProgrammingRights()) {
+            logger
+                .error("No mail has been sent : The author of the document needs programming rights to be able to use the sendMailMerge method");
+            return results;
+        }
+        final XWikiContext xwikiContext = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+        final MailTemplateCache.ResolvedTemplate template =
+            resolveTemplate(templateDocFullName, language, xwikiContext);
+        if (template == null) {
+            return results;
+        }
+        MailServerConfiguration configuration;
+        try {
+            configuration = getConfiguration();
+        } catch (Exception e) {
+            logger.error("Error encountered while trying to setup mail properties", e);
+            return results;
+        }
+        int threads = configuration.getSettings().getMergeThreads();
+        ExecutorService renderers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("Mail merge"));
+        // Bounds the number of rendered mails waiting to be sent
+        int window = threads * 4;
+        LinkedList<Future<Mail>> pending = new LinkedList<Future<Mail>>();
+        Iterator<Map.Entry<String, Map<String, Object>>> it = recipients.entrySet().iterator();
+        BatchTransmitter transmitter = new BatchTransmitter(configuration, this.metrics);
+        try {
+            int index = 0;
+            while (it.hasNext() || !pending.isEmpty()) {
+                while (it.hasNext() && pending.size() < window) {
+                    Map.Entry<String, Map<String, Object>> recipient = it.next();
+                    final String to = recipient.getKey();
+                    final Map<String, Object> parameters = recipient.getValue();
+                    pending.add(renderers.submit(new Callable<Mail>()
+                    {
+                        @Override
+                        public Mail call() throws Exception
+                        {
+                            return renderMergedMail(template, templateDocFullName, language, from, to, parameters,
+                                xwikiContext);
+                        }
+                    }));
+                }
+                Mail mail = null;
+                try {
+                    mail = pending.removeFirst().get();
+                } catch (ExecutionException e) {
+                    logger.error("Failed to render the mail template [" + templateDocFullName + "]", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (mail != null && isSendable(mail)) {
+                    results[index] = transmit(mail, configuration, transmitter);
+                }
+                index++;
+            }
+        } finally {
+            transmitter.close();
+            renderers.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Render the mail of a recipient of a mail merge. Called from the rendering threads, which get their own copy of
+     * the XWiki context since the scripts of the template may need one.
+     */
+    private Mail renderMergedMail(MailTemplateCache.ResolvedTemplate template, String templateDocFullName,
+        String language, String from, String to, Map<String, Object> parameters, XWikiContext xwikiContext)
+        throws ExecutionContextException
+    {
+        XWikiContext workerContext = (XWikiContext) xwikiContext.clone();
+        try {
+            VelocityContext vContext = initializeContext(workerContext);
+            if (parameters != null) {
+                for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+                    vContext.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return createMailFromTemplate(template, templateDocFullName, language, from, to, null, null, vContext,
+                workerContext);
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    /**
+     * Make the given XWiki context the one of the current thread, which must be removed from the {@link Execution}
+     * once done. The Velocity context is created by the execution context initializers, so that <tt>$xcontext</tt>,
+     * <tt>$xwiki</tt> and the other bindings refer to the given context instead of the one of the request.
+     *
+     * @return a Velocity context of its own for the current thread
+     */
+    private VelocityContext initializeContext(XWikiContext xwikiContext) throws ExecutionContextException
+    {
+        ExecutionContext context = new ExecutionContext();
+        context.setProperty("xwikicontext", xwikiContext);
+        // Set first, the initializers look the XWiki context up through the Execution
+        this.execution.setContext(context);
+        this.executionContextManager.initialize(context);
+        return velocityManager.getVelocityContext();
+    }
+
+    /**
+     * Find the <tt>XWiki.Mail</tt> object to use and check that the current user can view the template.
+     *
+     * @return the template, or null if it can't be used
+     */
+    private MailTemplateCache.ResolvedTemplate resolveTemplate(String templateDocFullName, String language,
+        XWikiContext xwikiContext)
+    {
+        String wiki = documentAccessBridge.getCurrentDocumentReference().getWikiReference().getName();
+        int spaceEnd = templateDocFullName.indexOf('.');
+        if (spaceEnd < 0 || spaceEnd == templateDocFullName.length() - 1) {
+            logger.error("Template reference is invalid");
+            return null;
+        }
+        String templateSpace = templateDocFullName.substring(0, spaceEnd);
+        String templatePage = templateDocFullName.substring(spaceEnd + 1);
+        if (templatePage.indexOf('.') >= 0) {
+            templatePage = templatePage.substring(0, templatePage.indexOf('.'));
+        }
+
+        MailTemplateCache cache = getMailTemplateCache();
+        DocumentReference template = new DocumentReference(wiki, templateSpace, templatePage);
+        String templateKey = getTemplateCacheKey(template);
+        MailTemplateCache.ResolvedTemplate resolved = cache.getTemplate(templateKey, language);
+
+        String user = xwikiContext.getUser();
+        Boolean hasRight = cache.hasViewRight(user, templateKey);
+        if (hasRight == null) {
+            hasRight = checkAccess(template, xwikiContext);
+            cache.putViewRight(user, templateKey, hasRight);
+        }
+        if (!hasRight) // If the current user is not allowed to view the page of the template, he can't use it to
+                       // send mails
+        {
+            logger.error("You haven't the right to use this mail template !");
+            return null;
+        }
+
+        if (resolved == null) {
+            DocumentReference mailClass = new DocumentReference(wiki, "XWiki", "Mail");
+            int n = -1;
+
+            n = documentAccessBridge.getObjectNumber(template, mailClass, "language", language);
+
+            if (n == -1) {
+                n = documentAccessBridge.getObjectNumber(template, mailClass, "language", "en");
+                logger.warn("No mail object found with language = " + language);
+            }
+            if (n == -1) {
+                logger.error("No mail object found in the document " + templateDocFullName);
+                return null;
+            }
+
+            String subject = documentAccessBridge.getProperty(template, mailClass, n, "subject").toString();
+            String text = documentAccessBridge.getProperty(template, mailClass, n, "text").toString();
+            String html = documentAccessBridge.getProperty(template, mailClass, n, "html").toString();
+            resolved = new MailTemplateCache.ResolvedTemplate(template, n, subject, text, html);
+            cache.putTemplate(templateKey, language, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Render a resolved template with the given Velocity context.
+     */
+    private Mail createMailFromTemplate(MailTemplateCache.ResolvedTemplate template, String templateDocFullName,
+        String language, String from, String to, String cc, String bcc, VelocityContext vContext,
+        XWikiContext xwikiContext)
+    {
+        long start = this.metrics.start();
+        vContext.put("from.name", from);
+        vContext.put("from.address", from);
+        vContext.put("to.name", to);
+        vContext.put("to.address", to);
+        vContext.put("to.cc", cc);
+        vContext.put("to.bcc", bcc);
+        vContext.put("bounce", from);
+
+        String subject = evaluate(template.getSubject(), templateDocFullName, vContext, xwikiContext);
+        String text = evaluate(template.getText(), templateDocFullName, vContext, xwikiContext);
+        String html = evaluate(template.getHtml(), templateDocFullName, vContext, xwikiContext);
+
+        Mail mail = new Mail();
+        mail.setFrom(from);
+        mail.setTo(to);
+        mail.setCc(cc);
+        mail.setBcc(bcc);
+        mail.setSubject(subject);
+        mail.addContent("text/plain", text);
+        if (!StringUtils.isEmpty(html))
+            mail.addContent("text/html", html);
+        this.metrics.record(MailSenderMetrics.Stage.RENDERING, start);
+        return mail;
+    }
+
+    private synchronized MailTemplateCache getMailTemplateCache()
+    {
+        if (this.mailTemplateCache == null) {
+            MailSenderSettings settings = getConfiguration().getSettings();
+            this.mailTemplateCache =
+                new MailTemplateCache(settings.getTemplateCacheSize(), settings.getRightsCacheTimeToLive());
+        }
+        return this.mailTemplateCache;
+    }
+
+    /**
+     * Render a field of a mail template with the XWiki Velocity engine, so that the global and wiki macros are
+     * available. Fields without any Velocity markup are returned as is.
+     */
+    private String evaluate(String source, String templateName, VelocityContext vContext, XWikiContext xwikiContext)
+    {
+        if (source.indexOf('$') < 0 && source.indexOf('#') < 0) {
+            return source;
+        }
+        return XWikiVelocityRenderer.evaluate(source, templateName, vContext, xwikiContext);
+    }
+
+    private String getTemplateCacheKey(DocumentReference template)
+    {
+        return template.getWikiReference().getName() + ':' + template.getLastSpaceReference().getName() + '.'
+            + template.getName() + '/';
+    }
+
+    /**
+     * Forget what has been cached about a mail template.
+     *
+     * @param template the template document which has been modified
+     */
+    public void invalidateTemplate(DocumentReference template)
+    {
+        MailTemplateCache resolvedCache = this.mailTemplateCache;
+        if (resolvedCache != null) {
+            resolvedCache.invalidateTemplate(getTemplateCacheKey(template));
+        }
+    }
+
+    /**
+     * Forget the cached view rights on the mail templates.
+     */
+    public void invalidateRights()
+    {
+        MailTemplateCache resolvedCache = this.mailTemplateCache;
+        if (resolvedCache != null) {
+            resolvedCache.invalidateRights();
+        }
+    }
+
+    private boolean checkAccess(DocumentReference document, XWikiContext context)
+    {
+        XWikiDocument xdoc = new XWikiDocument(document);
+        Document doc = new Document(xdoc, context);
+        return doc.checkAccess("view");
+    }
+
+    @Override
+    public int send(Mail mail)
+    {
+        if (!isSendable(mail)) {
+            return 0;
+        }
+        MailServerConfiguration configuration;
+        try {
+            configuration = getConfiguration();
+        } catch (Exception e) {
+            logger.error("Error encountered while trying to setup mail properties", e);
+            return 0;
+        }
+        return send(mail, configuration);
+    }
+
+    private int send(Mail mail, MailServerConfiguration configuration)
+    {
+        return getResult(send(mail, null, configuration, 0));
+    }
+
+    /**
+     * @return the result of a synchronous sending, see {@link MailSender#send(Mail)}
+     */
+    private int getResult(Outcome outcome)
+    {
+        switch (outcome) {
+            case SENT:
+                return 1;
+            case RETRYING:
+                return RETRYING;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param recipients the recipients to send the mail to, null for all the recipients of the mail
+     * @param attempt 0 for the first sending of the mail, otherwise the number of the retry
+     */
+    private Outcome send(Mail mail, Address[] recipients, MailServerConfiguration configuration, int attempt)
+    {
+        BatchTransmitter transmitter = new BatchTransmitter(configuration, this.metrics);
+        MimeMessage message = null;
+        try {
+            message = createMimeMessage(mail, configuration);
+            Address[] envelope = removeSuppressed(recipients != null ? recipients : message.getAllRecipients());
+            if (envelope.length == 0) {
+                logger.info("The mail [" + mail.getSubject()
+                    + "] has not been sent, all its recipients are suppressed");
+                return Outcome.FAILED;
+            }
+            transmitter.send(message, envelope);
+        } catch (SendFailedException sfex) {
+            this.metrics.recordFailure(sfex);
+            logChunkResults(transmitter);
+            return followUp(mail, recipients, sfex, configuration, attempt + 1);
+        } catch (MessagingException mex) {
+            this.metrics.recordFailure(mex);
+            return retryOrGiveUp(mail, recipients, mex, configuration, attempt + 1);
+        } finally {
+            transmitter.close();
+            if (message != null) {
+                AttachmentDataSource.disposeAll(message);
+            }
+        }
+
+        this.metrics.recordSent();
+        return Outcome.SENT;
+    }
+
+    /**
+     * Send a mail of a batch on the connection of the batch.
+     *
+     * @return the result of the sending, see {@link MailSender#send(Mail)}
+     */
+    private int transmit(Mail mail, MailServerConfiguration configuration, BatchTransmitter transmitter)
+    {
+        MimeMessage message = null;
+        try {
+            message = createMimeMessage(mail, configuration);
+            Address[] envelope = removeSuppressed(message.getAllRecipients());
+            if (envelope.length == 0) {
+                logger.info("The mail [" + mail.getSubject()
+                    + "] has not been sent, all its recipients are suppressed");
+                return 0;
+            }
+            transmitter.send(message, envelope);
+            this.metrics.recordSent();
+            return 1;
+        } catch (SendFailedException e) {
+            this.metrics.recordFailure(e);
+            logChunkResults(transmitter);
+            return getResult(followUp(mail, null, e, configuration, 1));
+        } catch (MessagingException e) {
+            this.metrics.recordFailure(e);
+            return getResult(retryOrGiveUp(mail, null, e, configuration, 1));
+        } finally {
+            if (message != null) {
+                AttachmentDataSource.disposeAll(message);
+            }
+        }
+    }
+
+    /**
+     * @return the recipients whose address isn't suppressed; they keep appearing in the headers of the mail
+     */
+    private Address[] removeSuppressed(Address[] recipients)
+    {
+        if (recipients == null) {
+            return new Address[0];
+        }
+        if (this.suppressions.isEmpty()) {
+            return recipients;
+        }
+        List<Address> allowed = new ArrayList<Address>(recipients.length);
+        for (Address recipient : recipients) {
+            if (!(recipient instanceof InternetAddress)
+                || !this.suppressions.contains(((InternetAddress) recipient).getAddress())) {
+                allowed.add(recipient);
+            }
+        }
+        if (allowed.size() == recipients.length) {
+            return recipients;
+        }
+        this.metrics.addSuppressed(recipients.length - allowed.size());
+        return allowed.toArray(new Address[allowed.size()]);
+    }
+
+    /**
+     * Take care of the recipients who didn't get a mail: the ones rejected by the server are given up, the others are
+     * retried later.
+     *
+     * @param recipients the recipients the mail was sent to, null for all the recipients of the mail
+     * @param attempt the number of the retry to schedule
+     * @return {@link Outcome#SENT} if some recipients got the mail
+     */
+    private Outcome followUp(Mail mail, Address[] recipients, SendFailedException e,
+        MailServerConfiguration configuration, int attempt)
+    {
+        Address[] sent = e.getValidSentAddresses();
+        Address[] invalid = e.getInvalidAddresses();
+        Address[] unsent = e.getValidUnsentAddresses();
+        if (ArrayUtils.isEmpty(sent) && ArrayUtils.isEmpty(invalid) && ArrayUtils.isEmpty(unsent)) {
+            // Not a matter of recipients, e.g. no recipient at all
+            return retryOrGiveUp(mail, recipients, e, configuration, attempt);
+        }
+        logger.warn("The mail [" + mail.getSubject() + "] could not be sent to " + ArrayUtils.getLength(invalid)
+            + " rejected and " + ArrayUtils.getLength(unsent) + " other recipients: " + e.getMessage());
+        if (!ArrayUtils.isEmpty(invalid)) {
+            addDeadLetter(mail, invalid, e.getMessage(), configuration);
+        }
+        boolean retried = !ArrayUtils.isEmpty(unsent) && retryLater(mail, unsent, e, configuration, attempt);
+        if (!ArrayUtils.isEmpty(sent)) {
+            this.metrics.recordSent();
+            return Outcome.SENT;
+        }
+        return retried ? Outcome.RETRYING : Outcome.FAILED;
+    }
+
+    /**
+     * Take care of a mail which couldn't be sent at all: it is retried later unless the failure is permanent.
+     *
+     * @param recipients the recipients the mail was sent to, null for all the recipients of the mail
+     * @param attempt the number of the retry to schedule
+     */
+    private Outcome retryOrGiveUp(Mail mail, Address[] recipients, MessagingException cause,
+        MailServerConfiguration configuration, int attempt)
+    {
+        if (!isTransient(cause)) {
+            logger.error("Error encountered while trying to send the mail [" + mail.getSubject() + "]", cause);
+            addDeadLetter(mail, recipients, cause.getMessage(), configuration);
+            return Outcome.FAILED;
+        }
+        logger.warn("The mail [" + mail.getSubject() + "] could not be sent: " + cause.getMessage());
+        return retryLater(mail, recipients, cause, configuration, attempt) ? Outcome.RETRYING : Outcome.FAILED;
+    }
+
+    /**
+     * @return false for the failures that sending the mail again can't fix: invalid addresses or content, rejected
+     *         credentials, recipients refused for good
+     */
+    private boolean isTransient(MessagingException e)
+    {
+        return !(e instanceof SendFailedException) && !(e instanceof ParseException)
+            && !(e instanceof AuthenticationFailedException);
+    }
+
+    /**
+     * @return true if the retry has been scheduled, false if the mail has been given up
+     */
+    private boolean retryLater(Mail mail, Address[] recipients, MessagingException cause,
+        MailServerConfiguration configuration, int attempt)
+    {
+        if (!this.retryScheduler.schedule(mail, recipients, configuration, attempt)) {
+            addDeadLetter(mail, recipients, "Not sent after " + (attempt - 1) + " retries: " + cause.getMessage(),
+                configuration);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param recipients the recipients who didn't get the mail, null for all the recipients of the mail
+     */
+    private void addDeadLetter(Mail mail, Address[] recipients, String reason, MailServerConfiguration configuration)
+    {
+        String addresses = recipients != null ? InternetAddress.toString(recipients) : getRecipients(mail);
+        logger.error("Giving up sending the mail [" + mail.getSubject() + "] to [" + addresses + "]: " + reason);
+        try {
+            this.deadLetters.add(configuration.getWiki(), mail, addresses, reason);
+        } catch (IOException e) {
+            logger.error("Failed to store the dead letter of the mail [" + mail.getSubject() + "]", e);
+        }
+    }
+
+    private String getRecipients(Mail mail)
+    {
+        List<String> recipients = new ArrayList<String>();
+        for (String field : new String[] {mail.getTo(), mail.getCc(), mail.getBcc()}) {
+            if (!StringUtils.isBlank(field)) {
+                recipients.add(field.trim());
+            }
+        }
+        return StringUtils.join(recipients, ", ");
+    }
+
+    @Override
+    public int[] sendBatch(Collection<Mail> mails)
+    {
+        int[] results = new int[mails.size()];
+        MailServerConfiguration configuration;
+        try {
+            configuration = getConfiguration();
+        } catch (Exception e) {
+            logger.error("Error encountered while trying to setup mail properties", e);
+            return results;
+        }
+        BatchTransmitter transmitter = new BatchTransmitter(configuration, this.metrics);
+        try {
+            int index = 0;
+            for (Mail mail : mails) {
+                if (isSendable(mail)) {
+                    results[index] = transmit(mail, configuration, transmitter);
+                }
+                index++;
+            }
+        } finally {
+            transmitter.close();
+        }
+        return results;
+    }
+
+    @Override
+    public int sendToEach(Mail mail)
+    {
+        if (!isSendable(mail)) {
+            return 0;
+        }
+        MailServerConfiguration configuration;
+        try {
+            configuration = getConfiguration();
+        } catch (Exception e) {
+            logger.error("Error encountered while trying to setup mail properties", e);
+            return 0;
+        }
+        BatchTransmitter transmitter = new BatchTransmitter(configuration, this.metrics);
+        MimeMessage message = null;
+        int sent = 0;
+        Address[] recipients = null;
+        List<Address> failed = new ArrayList<Address>();
+        try {
+            // Not metered, the bytes are counted as each copy is sent
+            message = createMimeMessage(mail, configuration, new MimeMessage(configuration.getSession()));
+            recipients = removeSuppressed(message.getAllRecipients());
+            FanOutMessage fanOut = new FanOutMessage(message, configuration.getSession(), this.metrics);
+            for (int i = 0; i < recipients.length; i++) {
+                try {
+                    transmitter.send(fanOut.createCopy((InternetAddress) recipients[i], i),
+                        new Address[] {recipients[i]});
+                    this.metrics.recordSent();
+                    sent++;
+                } catch (SendFailedException e) {
+                    this.metrics.recordFailure(e);
+                    failed.add(recipients[i]);
+                    // A mail addressed to this recipient only, which can be sent again safely
+                    followUp(addressedTo(mail, recipients[i].toString()), null, e, configuration, 1);
+                } catch (MessagingException e) {
+                    this.metrics.recordFailure(e);
+                    // No connection can be obtained anymore, the remaining copies are retried later
+                    for (int j = i; j < recipients.length; j++) {
+                        failed.add(recipients[j]);
+                        retryOrGiveUp(addressedTo(mail, recipients[j].toString()), null, e, configuration, 1);
+                    }
+                    break;
+                }
+            }
+        } catch (MessagingException mex) {
+            this.metrics.recordFailure(mex);
+            logger.error("Error encountered while trying to send the mail [" + mail.getSubject() + "], sent to "
+                + sent + (recipients != null ? " of " + recipients.length : "") + " recipients", mex);
+        } finally {
+            transmitter.close();
+            if (message != null) {
+                AttachmentDataSource.disposeAll(message);
+            }
+        }
+        if (!failed.isEmpty()) {
+            logger.warn("The mail [" + mail.getSubject() + "] has not been sent yet to " + failed
+                + ", they are retried later unless rejected");
+        }
+        return sent;
+    }
+
+    @Override
+    public boolean sendCoalesced(Mail mail, String category)
+    {
+        // The digest template is rendered on behalf of the caller, like with sendMailFromTemplate
+        if (!documentAccessBridge.hasProgrammingRights()) {
+            logger.error("No mail has been sent : The author of the document needs programming rights to be able to "
+                + "use the sendCoalesced method");
+            return false;
+        }
+        if (!isSendable(mail)) {
+            return false;
+        }
+        MailServerConfiguration configuration;
+        try {
+            configuration = getConfiguration();
+        } catch (Exception e) {
+            logger.error("Error encountered while trying to setup mail properties", e);
+            return false;
+        }
+        MailSenderSettings settings = configuration.getSettings();
+        if (settings.getCoalesceWindow() == 0) {
+            return send(mail, configuration) != 0;
+        }
+        RecipientParser.Recipients recipients;
+        try {
+            recipients = getRecipientParser(settings).parse(mail.getTo(), mail.getCc(), mail.getBcc());
+        } catch (AddressException e) {
+            logger.error("Invalid recipients in the mail [" + mail.getSubject() + "]", e);
+            return false;
+        }
+        DigestContext context = createDigestContext(mail, configuration);
+        if (context == null) {
+            // The digest template can't be used, don't hold the notification back
+            return send(mail, configuration) != 0;
+        }
+        String scope = configuration.getWiki() + '/' + StringUtils.defaultString(category) + '/';
+        for (InternetAddress[] addresses : Arrays.asList(recipients.getTo(), recipients.getCc(), recipients.getBcc())) {
+            for (InternetAddress recipient : addresses) {
+                String key = scope + recipient.getAddress().toLowerCase(Locale.ROOT);
+                if (!this.coalescer.add(key, recipient.toString(), category, mail, context,
+                    settings.getCoalesceWindow(), settings.getCoalesceMaxMails())) {
+                    logger.error("The mail sender is stopping, the mail [" + mail.getSubject() + "] has been dropped");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resolve the digest template while the request is still there.
+     *
+     * @return null if the digest template can't be used
+     */
+    private DigestContext createDigestContext(Mail mail, MailServerConfiguration configuration)
+    {
+        ExecutionContext context = this.execution.getContext();
+        XWikiContext xwikiContext = context != null ? (XWikiContext) context.getProperty("xwikicontext") : null;
+        if (xwikiContext == null) {
+            return null;
+        }
+        String templateName = configuration.getSettings().getCoalesceTemplate();
+        String language = StringUtils.defaultIfEmpty(xwikiContext.getLanguage(), "en");
+        MailTemplateCache.ResolvedTemplate template = resolveTemplate(templateName, language, xwikiContext);
+        if (template == null) {
+            return null;
+        }
+        return new DigestContext(configuration, template, templateName, language, mail.getFrom(), xwikiContext);
+    }
+
+    /**
+     * Send the notifications gathered during a window, in a digest unless there is only one. Called from the thread
+     * of the coalescer, which sets up its own XWiki and Velocity contexts for the scripts of the template.
+     */
+    private void sendDigest(String recipient, String category, List<Mail> mails, DigestContext context)
+    {
+        if (mails.size() == 1) {
+            deliver(addressedTo(mails.get(0), recipient), null, context.configuration, 0);
+            return;
+        }
+        Mail digest = null;
+        XWikiContext workerContext = context.createXWikiContext();
+        try {
+            VelocityContext vContext = initializeContext(workerContext);
+            vContext.put("mails", mails);
+            vContext.put("category", category);
+            vContext.put("recipient", recipient);
+            digest = createMailFromTemplate(context.template, context.templateName, context.language, context.from,
+                recipient, null, null, vContext, workerContext);
+        } catch (ExecutionContextException e) {
+            logger.error("Failed to initialize the context of the digest template [" + context.templateName
+                + "], the " + mails.size() + " notifications are sent separately", e);
+        } catch (RuntimeException e) {
+            logger.error("Failed to render the digest template [" + context.templateName + "], the "
+                + mails.size() + " notifications are sent separately", e);
+        } finally {
+            this.execution.removeContext();
+        }
+        if (digest != null) {
+            this.metrics.addCoalesced(mails.size() - 1);
+            deliver(digest, null, context.configuration, 0);
+        } else {
+            for (Mail mail : mails) {
+                deliver(addressedTo(mail, recipient), null, context.configuration, 0);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the mail sent to the given recipient only
+     */
+    private Mail addressedTo(Mail mail, String recipient)
     {
-        return new Mail(from, to, cc, bcc, subject);
+        Mail copy = copy(mail);
+        copy.setTo(recipient);
+        copy.setCc(null);
+        copy.setBcc(null);
+        return copy;
     }
 
-    @Override
-    public int sendMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
-        String language, Map<String, Object> parameters)
+    private Mail copy(Mail mail)
     {
-        VelocityContext vContext = velocityManager.getVelocityContext();
-        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
-            vContext.put(entry.getKey(), entry.getValue());
-        }
-        return sendMailFromTemplate(templateDocFullName, from, to, cc, bcc, language, vContext);
+        Mail copy = new Mail(mail.getFrom(), mail.getTo(), mail.getCc(), mail.getBcc(), mail.getSubject());
+        copy.setReplyTo(mail.getReplyTo());
+        copy.setHeaders(mail.getHeaders());
+        copy.setAttachments(mail.getAttachments());
+        copy.getContents().addAll(mail.getContents());
+        return copy;
     }
 
     @Override
-    public int sendMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
-        String language, VelocityContext vContext)
+    public String sendAsync(Mail mail)
     {
-        if (!documentAccessBridge.hasProgrammingRights()) // Forbids the use of a template created by a user having no
-                                                          // programming rights
-        {
-            logger
-                .error("No mail has been sent : The author of the document needs programming rights to be able to use the sendMailFromTemplate method");
-            return 0;
+        if (!isSendable(mail)) {
+            return null;
         }
+        MailServerConfiguration configuration;
         try {
-            ExecutionContext context = this.execution.getContext();
-            XWikiContext xwikiContext = (XWikiContext) context.getProperty("xwikicontext");
-            if (vContext == null)
-                vContext = velocityManager.getVelocityContext();
-            vContext.put("from.name", from);
-            vContext.put("from.address", from);
-            vContext.put("to.name", to);
-            vContext.put("to.address", to);
-            vContext.put("to.cc", cc);
-            vContext.put("to.bcc", bcc);
-            vContext.put("bounce", from);
-
-            String wiki = documentAccessBridge.getCurrentDocumentReference().getWikiReference().getName();
-            String templateSpace = "";
-            String templatePage = "";
-            Scanner scan = new Scanner(templateDocFullName);
-            scan.useDelimiter("\\.");
-            if (scan.hasNext())
-                templateSpace = scan.next();
-            if (scan.hasNext())
-                templatePage = scan.next();
-            else {
-                logger.error("Template reference is invalid");
-                return 0;
-            }
-            DocumentReference template = new DocumentReference(wiki, templateSpace, templatePage);
-            boolean hasRight = checkAccess(template, xwikiContext);
-            if (!hasRight) // If the current user is not allowed to view the page of the template, he can't use it to
-                           // send mails
-            {
-                logger.error("You haven't the right to use this mail template !");
-                return 0;
+            // Resolved now since the worker threads can't access the wiki preferences
+            configuration = getConfiguration();
+        } catch (Exception e) {
+            logger.error("Error encountered while trying to setup mail properties", e);
+            return null;
+        }
+        String id = UUID.randomUUID().toString();
+        if (this.spool != null) {
+            try {
+                this.spool.append(id, configuration.getWiki(), mail);
+            } catch (IOException e) {
+                logger.error("Failed to store the mail [" + mail + "] in the spool, it has not been queued", e);
+                return null;
             }
-            DocumentReference mailClass = new DocumentReference(wiki, "XWiki", "Mail");
-            int n = -1;
+        }
+        // A copy of its own, so that its retries are not mistaken for the ones of another sending of the same mail
+        if (getSendQueue(configuration.getSettings()).submit(id, copy(mail), configuration) == null) {
+            logger.error("The mail queue is full, the mail [" + mail + "] has not been queued");
+            acknowledge(id);
+            return null;
+        }
+        return id;
+    }
 
-            n = documentAccessBridge.getObjectNumber(template, mailClass, "language", language);
+    @Override
+    public String getMailStatus(String id)
+    {
+        MailSendQueue queue = this.sendQueue;
+        return queue != null ? queue.getStatus(id) : null;
+    }
 
-            if (n == -1) {
-                n = documentAccessBridge.getObjectNumber(template, mailClass, "language", "en");
-                logger.warn("No mail object found with language = " + language);
+    private synchronized MailSendQueue getSendQueue(MailSenderSettings settings)
+    {
+        if (this.sendQueue == null) {
+            this.sendQueue = new MailSendQueue(new MailSendQueue.Deliverer()
+            {
+                @Override
+                public String deliver(String id, Mail mail, MailServerConfiguration configuration)
+                {
+                    return getStatus(deliverQueued(id, mail, configuration));
+                }
+            }, settings.getAsyncWorkers(), settings.getAsyncQueueSize());
+        }
+        return this.sendQueue;
+    }
+
+    /**
+     * Queue the mails of the previous run which were sent from the wiki of the given configuration.
+     */
+    private void queueSpooledMails(MailServerConfiguration configuration)
+    {
+        List<MailSpool.Entry> entries = this.spooledMails.remove(configuration.getWiki());
+        if (entries == null) {
+            return;
+        }
+        MailSendQueue queue = getSendQueue(configuration.getSettings());
+        for (int i = 0; i < entries.size(); i++) {
+            MailSpool.Entry entry = entries.get(i);
+            if (queue.submit(entry.getId(), entry.getMail(), configuration) == null) {
+                // The queue is full, try again with the next mails sent from this wiki
+                this.spooledMails.put(configuration.getWiki(), new ArrayList<MailSpool.Entry>(entries.subList(i,
+                    entries.size())));
+                break;
             }
-            if (n == -1) {
-                logger.error("No mail object found in the document " + templateDocFullName);
-                return 0;
+        }
+    }
+
+    private void acknowledge(String id)
+    {
+        if (this.spool != null) {
+            try {
+                this.spool.acknowledge(id);
+            } catch (IOException e) {
+                logger.warn("Failed to acknowledge the mail [" + id + "] in the spool, it will be sent again", e);
             }
+        }
+    }
 
-            String subject = documentAccessBridge.getProperty(template, mailClass, n, "subject").toString();
-            subject = XWikiVelocityRenderer.evaluate(subject, templateDocFullName, vContext, xwikiContext);
-            String text = documentAccessBridge.getProperty(template, mailClass, n, "text").toString();
-            text = XWikiVelocityRenderer.evaluate(text, templateDocFullName, vContext, xwikiContext);
-            String html = documentAccessBridge.getProperty(template, mailClass, n, "html").toString();
-            html = XWikiVelocityRenderer.evaluate(html, templateDocFullName, vContext, xwikiContext);
-
-            Mail mail = new Mail();
-            mail.setFrom(from);
-            mail.setTo(to);
-            mail.setCc(cc);
-            mail.setBcc(bcc);
-            mail.setSubject(subject);
-            mail.addContent("text/plain", text);
-            if (!StringUtils.isEmpty(html))
-                mail.addContent("text/html", html);
-            return this.send(mail);
-        } catch (Exception e) {
-            return 0;
+    /**
+     * @return the status of a queued mail after an attempt to send it
+     */
+    private String getStatus(Outcome outcome)
+    {
+        switch (outcome) {
+            case SENT:
+                return MailSendQueue.SENT;
+            case RETRYING:
+                return MailSendQueue.RETRYING;
+            default:
+                return MailSendQueue.FAILED;
         }
+    }
 
+    /**
+     * Send a queued mail and remove it from the spool, unless a retry is pending. A mail given up is moved to the
+     * dead-letter store, it mustn't be sent again on every restart.
+     */
+    private Outcome deliverQueued(String id, Mail mail, MailServerConfiguration configuration)
+    {
+        // Registered first, the retry may run before this method returns
+        this.retriedQueuedMails.put(mail, id);
+        Outcome outcome = deliver(mail, null, configuration, 0);
+        if (outcome != Outcome.RETRYING && this.retriedQueuedMails.remove(mail) != null) {
+            acknowledge(id);
+        }
+        return outcome;
     }
 
-    private boolean checkAccess(DocumentReference document, XWikiContext context)
+    /**
+     * Send a mail from a background thread, taken from the queue or retried. If the preferences have been saved while
+     * it was waiting, the configuration resolved since then is used, or a temporary one if none has been resolved yet.
+     */
+    private Outcome deliver(Mail mail, Address[] recipients, MailServerConfiguration configuration, int attempt)
     {
-        XWikiDocument xdoc = new XWikiDocument(document);
-        Document doc = new Document(xdoc, context);
-        return doc.checkAccess("view");
+        if (!configuration.isClosed()) {
+            return send(mail, recipients, configuration, attempt);
+        }
+        MailServerConfiguration current = this.configurations.get(configuration.getWiki());
+        if (current != null) {
+            return send(mail, recipients, current, attempt);
+        }
+        MailServerConfiguration temporary =
+            new MailServerConfiguration(configuration.getWiki(), configuration.getProperties(), this.rateBuckets);
+        try {
+            return send(mail, recipients, temporary, attempt);
+        } finally {
+            temporary.close();
+        }
     }
 
-    @Override
-    public int send(Mail mail)
+    /**
+     * Report which recipients got the message when it has been sent in several chunks.
+     */
+    private void logChunkResults(BatchTransmitter transmitter)
+    {
+        List<BatchTransmitter.ChunkResult> results = transmitter.getChunkResults();
+        if (results.size() < 2) {
+            return;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            BatchTransmitter.ChunkResult result = results.get(i);
+            if (result.getFailure() != null) {
+                logger.warn("Chunk " + (i + 1) + "/" + results.size() + " of the mail: " + result.getSent().length
+                    + " recipients accepted, " + result.getUnsent().length + " not sent, "
+                    + result.getInvalid().length + " rejected (" + result.getFailure().getMessage() + ")");
+            }
+        }
+    }
+
+    /**
+     * Check that a mail has at least a recipient and a content.
+     */
+    private boolean isSendable(Mail mail)
     {
-        Session session = null;
-        Transport transport = null;
         if ((mail.getTo() == null || StringUtils.isEmpty(mail.getTo()))
             && (mail.getCc() == null || StringUtils.isEmpty(mail.getCc()))
             && (mail.getBcc() == null || StringUtils.isEmpty(mail.getBcc()))) {
             logger.error("This mail has no recipient");
-            return 0;
+            return false;
         }
         if (mail.getContents().size() == 0) {
             logger.error("This mail is empty. You should add a content");
-            return 0;
+            return false;
         }
-        try {
-            if ((transport == null) || (session == null)) {
-                logger.info("Sending mail : Initializing properties");
-                Properties props = initProperties();
-                session = Session.getInstance(props, null);
-                transport = session.getTransport("smtp");
-                if (session.getProperty("mail.smtp.auth") == "true")
-                    transport.connect(session.getProperty("mail.smtp.server.username"),
-                        session.getProperty("mail.smtp.server.password"));
-                else
-                    transport.connect();
-                try {
-                    Multipart wrapper = generateMimeMultipart(mail);
-                    InternetAddress[] adressesTo = this.toInternetAddresses(mail.getTo());
-                    MimeMessage message = new MimeMessage(session);
-                    message.setSentDate(new Date());
-                    message.setSubject(mail.getSubject());
-                    message.setFrom(new InternetAddress(mail.getFrom()));
-                    message.setRecipients(javax.mail.Message.RecipientType.TO, adressesTo);
-                    if (mail.getReplyTo() != null && !StringUtils.isEmpty(mail.getReplyTo())) {
-                        logger.info("Adding ReplyTo field");
-                        InternetAddress[] adressesReplyTo = this.toInternetAddresses(mail.getReplyTo());
-                        if (adressesReplyTo.length != 0)
-                            message.setReplyTo(adressesReplyTo);
-                    }
-                    if (mail.getCc() != null && !StringUtils.isEmpty(mail.getCc())) {
-                        logger.info("Adding Cc recipients");
-                        InternetAddress[] adressesCc = this.toInternetAddresses(mail.getCc());
-                        if (adressesCc.length != 0)
-                            message.setRecipients(javax.mail.Message.RecipientType.CC, adressesCc);
-                    }
-                    if (mail.getBcc() != null && !StringUtils.isEmpty(mail.getBcc())) {
-                        InternetAddress[] adressesBcc = this.toInternetAddresses(mail.getBcc());
-                        if (adressesBcc.length != 0)
-                            message.setRecipients(javax.mail.Message.RecipientType.BCC, adressesBcc);
-                    }
-                    message.setContent(wrapper);
-                    message.setSentDate(new Date());
-                    transport.sendMessage(message, message.getAllRecipients());
-                    transport.close();
-                } catch (SendFailedException sfex) {
-                    logger.error("Error encountered while trying to send the mail");
-                    logger.error("SendFailedException has occured.", sfex);
-                    try {
-                        transport.close();
-                    } catch (MessagingException Mex) {
-                        logger.error("MessagingException has occured.", Mex);
-                    }
-                    return 0;
-                } catch (MessagingException mex) {
-                    logger.error("Error encountered while trying to send the mail");
-                    logger.error("MessagingException has occured.", mex);
+        return true;
+    }
 
-                    try {
-                        transport.close();
-                    } catch (MessagingException ex) {
-                        logger.error("MessagingException has occured.", ex);
-                    }
-                    return 0;
+    /**
+     * Get the mail configuration of the current wiki. It is resolved from the wiki preferences the first time and then
+     * cached until {@link #invalidateConfiguration(String)} is called.
+     */
+    private MailServerConfiguration getConfiguration()
+    {
+        String wiki = getCurrentWiki();
+        MailServerConfiguration configuration = this.configurations.get(wiki);
+        if (configuration == null) {
+            synchronized (this.configurations) {
+                configuration = this.configurations.get(wiki);
+                if (configuration == null) {
+                    logger.info("Sending mail : Initializing properties");
+                    long start = this.metrics.start();
+                    configuration = new MailServerConfiguration(wiki, initProperties(), this.rateBuckets);
+                    this.metrics.record(MailSenderMetrics.Stage.CONFIGURATION, start);
+                    this.configurations.put(wiki, configuration);
                 }
             }
+        }
+        if (!this.spooledMails.isEmpty()) {
+            queueSpooledMails(configuration);
+        }
+        return configuration;
+    }
+
+    /**
+     * Forget the cached mail configuration of a wiki, so that it's resolved again from the preferences on next send.
+     *
+     * @param wiki the wiki whose preferences have changed
+     */
+    public void invalidateConfiguration(String wiki)
+    {
+        MailServerConfiguration configuration = this.configurations.remove(wiki);
+        if (configuration != null) {
+            configuration.close();
+        }
+    }
+
+    private String getCurrentWiki()
+    {
+        ExecutionContext context = this.execution.getContext();
+        XWikiContext xwikiContext = context != null ? (XWikiContext) context.getProperty("xwikicontext") : null;
+        return xwikiContext != null ? xwikiContext.getDatabase() : "";
+    }
+
+    private MimeMessage createMimeMessage(Mail mail, MailServerConfiguration configuration) throws MessagingException
+    {
+        return createMimeMessage(mail, configuration, new MeteredMimeMessage(configuration.getSession(),
+            this.metrics));
+    }
+
+    /**
+     * @param message the empty message to fill
+     */
+    private MimeMessage createMimeMessage(Mail mail, MailServerConfiguration configuration, MimeMessage message)
+        throws MessagingException
+    {
+        long start = this.metrics.start();
+        Multipart wrapper = generateMimeMultipart(mail, configuration.getSettings());
+        RecipientParser parser = getRecipientParser(configuration.getSettings());
+        RecipientParser.Recipients recipients = parser.parse(mail.getTo(), mail.getCc(), mail.getBcc());
+        message.setSentDate(new Date());
+        message.setSubject(mail.getSubject());
+        message.setFrom(new InternetAddress(mail.getFrom()));
+        message.setRecipients(javax.mail.Message.RecipientType.TO, recipients.getTo());
+        if (mail.getReplyTo() != null && !StringUtils.isEmpty(mail.getReplyTo())) {
+            logger.info("Adding ReplyTo field");
+            InternetAddress[] adressesReplyTo = parser.parse(mail.getReplyTo());
+            if (adressesReplyTo.length != 0)
+                message.setReplyTo(adressesReplyTo);
+        }
+        if (mail.getCc() != null && !StringUtils.isEmpty(mail.getCc())) {
+            logger.info("Adding Cc recipients");
+            InternetAddress[] adressesCc = recipients.getCc();
+            if (adressesCc.length != 0)
+                message.setRecipients(javax.mail.Message.RecipientType.CC, adressesCc);
+        }
+        if (mail.getBcc() != null && !StringUtils.isEmpty(mail.getBcc())) {
+            InternetAddress[] adressesBcc = recipients.getBcc();
+            if (adressesBcc.length != 0)
+                message.setRecipients(javax.mail.Message.RecipientType.BCC, adressesBcc);
+        }
+        message.setContent(wrapper);
+        message.setSentDate(new Date());
+        this.metrics.record(MailSenderMetrics.Stage.MIME, start);
+        return message;
+    }
+
+    private void registerMetrics()
+    {
+        try {
+            ObjectName name = new ObjectName("org.xwiki:type=MailSender");
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics, name);
+            this.metricsName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            logger.debug("Another mail sender already exposes its metrics over JMX");
         } catch (Exception e) {
-            System.out.println(e.toString());
-            logger.error("Error encountered while trying to setup mail properties");
-            try {
-                if (transport != null) {
-                    transport.close();
-                }
-            } catch (MessagingException ex) {
-                logger.error("MessagingException has occured.", ex);
-            }
+            logger.warn("Failed to expose the mail sender metrics over JMX", e);
+        }
+    }
+
+    /**
+     * @return the metrics of the sending stages, see {@link MailSenderMetrics#getStatistics()}, the statistics of
+     *         the attachment cache under "attachmentCache" and the status of the relays of the current wiki under
+     *         "relays", the relays of the other wikis are not exposed
+     */
+    public Map<String, Object> getStatistics()
+    {
+        Map<String, Object> statistics = this.metrics.getStatistics();
+        statistics.put("attachmentCache", getAttachmentCacheStatistics());
+        MailServerConfiguration configuration = this.configurations.get(getCurrentWiki());
+        statistics.put("relays", configuration != null ? configuration.getRelays().getStatus()
+            : Collections.<Map<String, Object>> emptyList());
+        return statistics;
+    }
+
+    /**
+     * @return the mails which could not be delivered to some of their recipients, the oldest first, with their "id",
+     *         "wiki", "recipients", "reason", "date" and "subject"; empty if the author of the calling document has no
+     *         programming rights since they expose the recipients of all the mails
+     */
+    public List<Map<String, Object>> getDeadLetters()
+    {
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        if (!documentAccessBridge.hasProgrammingRights()) {
+            return result;
+        }
+        for (DeadLetterStore.Entry entry : this.deadLetters.getEntries()) {
+            Map<String, Object> deadLetter = new LinkedHashMap<String, Object>();
+            deadLetter.put("id", entry.getId());
+            deadLetter.put("wiki", entry.getWiki());
+            deadLetter.put("recipients", entry.getRecipients());
+            deadLetter.put("reason", entry.getReason());
+            deadLetter.put("date", new Date(entry.getDate()));
+            deadLetter.put("subject", entry.getSubject());
+            result.add(deadLetter);
+        }
+        return result;
+    }
+
+    /**
+     * @param id the id of a dead letter
+     * @return the mail which could not be delivered, read from the disk; null if there is no such dead letter or if the
+     *         author of the calling document has no programming rights
+     */
+    public Mail getDeadLetterMail(String id)
+    {
+        return documentAccessBridge.hasProgrammingRights() ? this.deadLetters.getMail(id) : null;
+    }
+
+    /**
+     * @param id the id of a dead letter
+     * @return false if there is no such dead letter or if the author of the calling document has no programming rights
+     */
+    public boolean removeDeadLetter(String id)
+    {
+        return documentAccessBridge.hasProgrammingRights() && this.deadLetters.remove(id);
+    }
+
+    /**
+     * @param addresses addresses not to send mails to anymore, without display name
+     * @return the number of addresses added, 0 if the author of the calling document has no programming rights
+     */
+    public int suppress(List<String> addresses)
+    {
+        if (!documentAccessBridge.hasProgrammingRights() || addresses == null) {
             return 0;
         }
+        try {
+            return this.suppressions.addAll(addresses);
+        } catch (IOException e) {
+            logger.error("Failed to store the suppressed addresses", e);
+            return 0;
+        }
+    }
 
-        return 1;
+    /**
+     * @param address an address to send mails to again, without display name
+     * @return true if the address was suppressed and the author of the calling document has programming rights
+     */
+    public boolean unsuppress(String address)
+    {
+        if (!documentAccessBridge.hasProgrammingRights() || address == null) {
+            return false;
+        }
+        try {
+            return this.suppressions.remove(address);
+        } catch (IOException e) {
+            logger.error("Failed to store the removal of the suppressed address [" + address + "]", e);
+            return false;
+        }
     }
 
-    private Multipart generateMimeMultipart(Mail mail) throws MessagingException
+    /**
+     * @param address an address, without display name
+     * @return true if mails are not sent to the address; false if the author of the calling document has no
+     *         programming rights since it tells who unsubscribed
+     */
+    public boolean isSuppressed(String address)
     {
-        Multipart contentsMultipart = new MimeMultipart("alternative");
-        List<String> foundEmbeddedImages = new ArrayList<String>();
-        boolean hasAttachment = false;
+        return documentAccessBridge.hasProgrammingRights() && address != null && this.suppressions.contains(address);
+    }
 
-        if (mail.getContents().size() == 1) // To add an alternative plain part
-        {
-            String[] content = mail.getContents().get(0);
-            if (content[0].equals("text/plain")) {
-                BodyPart alternativePart = new MimeBodyPart();
-                alternativePart.setContent(content[1], content[0] + "; charset=" + EMAIL_ENCODING);
-                alternativePart.setHeader("Content-Disposition", "inline");
-                alternativePart.setHeader("Content-Transfer-Encoding", "quoted-printable");
-                contentsMultipart.addBodyPart(alternativePart);
-            }
-            if (content[0].equals("text/html")) {
-                BodyPart alternativePart = new MimeBodyPart();
-                String parsedText = createPlain(content[1]);
-                alternativePart.setContent(parsedText, "text/plain; charset=" + EMAIL_ENCODING);
-                alternativePart.setHeader("Content-Disposition", "inline");
-                alternativePart.setHeader("Content-Transfer-Encoding", "quoted-printable");
-                contentsMultipart.addBodyPart(alternativePart);
-            }
-        }
-
-        for (String[] content : mail.getContents()) {
-            BodyPart contentPart = new MimeBodyPart();
-            contentPart.setContent(content[1], content[0] + "; charset=" + EMAIL_ENCODING);
-            contentPart.setHeader("Content-Disposition", "inline");
-            contentPart.setHeader("Content-Transfer-Encoding", "quoted-printable");
-            if (content[0].equals("text/html")) {
-                boolean hasEmbeddedImages = false;
-                List<MimeBodyPart> embeddedImages = new ArrayList<MimeBodyPart>();
-                Pattern cidPattern =
-                    Pattern.compile("src=('|\")cid:([^'\"]*)('|\")", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
-                Matcher matcher = cidPattern.matcher(content[1]);
-                String filename;
-                while (matcher.find()) {
-                    filename = matcher.group(2);
-                    for (Attachment attachment : mail.getAttachments()) {
-                        if (filename.equals(attachment.getFilename())) {
-                            hasEmbeddedImages = true;
-                            MimeBodyPart part = createAttachmentPart(attachment);
-                            embeddedImages.add(part);
-                            foundEmbeddedImages.add(filename);
-                        }
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.metricsName);
+            } catch (Exception e) {
+                logger.debug("Failed to unregister the mail sender metrics", e);
+            }
+        }
+        // The pending digests are sent while the configurations are still open
+        this.coalescer.close(DIGEST_CLOSE_TIMEOUT);
+        MailSendQueue queue;
+        synchronized (this) {
+            queue = this.sendQueue;
+            this.sendQueue = null;
+        }
+        if (queue != null) {
+            // Waited for without the lock, which the workers may need; the retries they schedule stay in the spool
+            List<String> dropped = queue.shutdown(QUEUE_CLOSE_TIMEOUT);
+            if (!dropped.isEmpty()) {
+                synchronized (this) {
+                    // Not acknowledged, they stay in the spool
+                    if (this.spool != null) {
+                        logger.info(dropped.size()
+                            + " queued mails have not been sent, they will be after the restart");
+                    } else {
+                        logger.error(dropped.size() + " queued mails have not been sent and are lost");
                     }
                 }
-                if (hasEmbeddedImages) {
-                    Multipart htmlMultipart = new MimeMultipart("related");
-                    htmlMultipart.addBodyPart(contentPart);
-                    for (MimeBodyPart imagePart : embeddedImages) {
-                        htmlMultipart.addBodyPart(imagePart);
-                    }
-                    BodyPart HtmlWrapper = new MimeBodyPart();
-                    HtmlWrapper.setContent(htmlMultipart);
-                    contentsMultipart.addBodyPart(HtmlWrapper);
-                } else
-                    contentsMultipart.addBodyPart(contentPart);
-            } else {
-                contentsMultipart.addBodyPart(contentPart);
             }
         }
-
-        Multipart attachmentsMultipart = new MimeMultipart();
-        for (Attachment attachment : mail.getAttachments()) {
-            if (!foundEmbeddedImages.contains(attachment.getFilename())) {
-                hasAttachment = true;
-                MimeBodyPart part = this.createAttachmentPart(attachment);
-                attachmentsMultipart.addBodyPart(part);
+        this.retryScheduler.shutdown();
+        synchronized (this) {
+            if (this.spool != null) {
+                this.spool.close();
             }
         }
-        if (hasAttachment) {
-            Multipart wrapper = new MimeMultipart("mixed");
-            BodyPart body = new MimeBodyPart();
-            body.setContent(contentsMultipart);
-            wrapper.addBodyPart(body);
-            BodyPart attachments = new MimeBodyPart();
-            attachments.setContent(attachmentsMultipart);
-            wrapper.addBodyPart(attachments);
-            return wrapper;
+        this.suppressions.close();
+        for (String wiki : this.configurations.keySet()) {
+            invalidateConfiguration(wiki);
         }
-        return contentsMultipart;
+    }
+
+    private Multipart generateMimeMultipart(Mail mail, final MailSenderSettings settings) throws MessagingException
+    {
+        return new MimeMultipartBuilder(new MimeMultipartBuilder.PartFactory()
+        {
+            @Override
+            public MimeBodyPart createAttachmentPart(Attachment attachment)
+            {
+                return DefaultMailSender.this.createAttachmentPart(attachment, settings);
+            }
+
+            @Override
+            public String createPlain(String html)
+            {
+                return DefaultMailSender.this.createPlain(html, settings);
+            }
+        }, EMAIL_ENCODING).build(mail);
     }
 
     public String createPlain(String html)
+    {
+        return createPlain(html, null);
+    }
+
+    /**
+     * @param settings the settings of the wiki sending the mail, null if not known
+     */
+    private String createPlain(String html, MailSenderSettings settings)
     {
         String converted = null;
         try {
-
-            WikiPrinter printer = new DefaultWikiPrinter();
-            PrintRendererFactory printRendererFactory =
-                componentManager.getInstance(PrintRendererFactory.class, Syntax.PLAIN_1_0.toIdString());
-            htmlStreamParser.parse(new StringReader(html), printRendererFactory.createRenderer(printer));
-            converted = printer.toString();
+            converted = getPlainTextConverter(settings != null ? settings : getResolvedSettings()).convert(html);
         } catch (Throwable t) {
             logger.warn("Conversion from HTML to plain text threw exception", t);
             converted = null;
@@ -411,6 +1564,65 @@ public class DefaultMailSender implements MailSender
         return converted;
     }
 
+    /**
+     * Get the settings of the current wiki without resolving its mail configuration, which would read the wiki
+     * preferences, create the SMTP connection pools and queue the spooled mails.
+     *
+     * @return the settings of the current wiki if its configuration has already been resolved, the default ones
+     *         otherwise
+     */
+    private MailSenderSettings getResolvedSettings()
+    {
+        MailServerConfiguration configuration = this.configurations.get(getCurrentWiki());
+        return configuration != null ? configuration.getSettings() : new MailSenderSettings(new Properties());
+    }
+
+    private RecipientParser getRecipientParser(MailSenderSettings settings)
+    {
+        if (this.recipientParser == null) {
+            synchronized (this) {
+                if (this.recipientParser == null) {
+                    this.recipientParser = new RecipientParser(settings.getAddressCacheSize());
+                }
+            }
+        }
+        return this.recipientParser;
+    }
+
+    private MimeTypeRegistry getMimeTypeRegistry(MailSenderSettings settings)
+    {
+        if (this.mimeTypeRegistry == null) {
+            synchronized (this) {
+                if (this.mimeTypeRegistry == null) {
+                    try {
+                        this.mimeTypeRegistry =
+                            new MimeTypeRegistry(settings.getMimeTypesFiles(), settings.getMimeTypes());
+                    } catch (IOException e) {
+                        logger.warn("Failed to load the MIME types, only the built-in ones are used", e);
+                        this.mimeTypeRegistry = new MimeTypeRegistry();
+                    }
+                }
+            }
+        }
+        return this.mimeTypeRegistry;
+    }
+
+    private PlainTextConverter getPlainTextConverter(MailSenderSettings settings) throws ComponentLookupException
+    {
+        if (this.plainTextConverter == null) {
+            synchronized (this) {
+                if (this.plainTextConverter == null) {
+                    PrintRendererFactory printRendererFactory =
+                        componentManager.getInstance(PrintRendererFactory.class, Syntax.PLAIN_1_0.toIdString());
+                    this.plainTextConverter =
+                        new PlainTextConverter(this.htmlStreamParser, printRendererFactory,
+                            settings.getPlainCacheSize(), settings.getPlainFastThreshold());
+                }
+            }
+        }
+        return this.plainTextConverter;
+    }
+
     public Properties initProperties()
     {
         Properties properties = new Properties();
@@ -457,68 +1669,54 @@ public class DefaultMailSender implements MailSender
         return properties;
     }
 
-    private MimeBodyPart createAttachmentPart(Attachment attachment)
+    private MimeBodyPart createAttachmentPart(Attachment attachment, MailSenderSettings settings)
     {
         try {
             String name = attachment.getFilename();
-            byte[] stream = attachment.getContent();
-            File temp = File.createTempFile("tmpfile", ".tmp");
-            FileOutputStream fos = new FileOutputStream(temp);
-            fos.write(stream);
-            fos.close();
-            DataSource source = new FileDataSource(temp);
-            MimeBodyPart part = new MimeBodyPart();
-            String mimeType = MimeTypesUtil.getMimeTypeFromFilename(name);
-
-            part.setDataHandler(new DataHandler(source));
+            byte[] content = attachment.getContent();
+            String mimeType = getMimeTypeRegistry(settings).getType(name, content);
+            EncodedAttachmentCache cache = getEncodedAttachmentCache(settings);
+            MimeBodyPart part;
+            if (cache != null && cache.accepts(content.length)) {
+                part = cache.createPart(name, mimeType, content);
+            } else {
+                part = new MimeBodyPart();
+                part.setDataHandler(new DataHandler(new AttachmentDataSource(name, mimeType, content, settings
+                    .getAttachmentSpillThreshold(), this.temporaryDirectory)));
+            }
+
             part.setHeader("Content-Type", mimeType);
             part.setFileName(name);
             part.setContentID("<" + name + ">");
             part.setDisposition("inline");
 
-            temp.deleteOnExit();
             return part;
         } catch (Exception e) {
             return new MimeBodyPart();
         }
     }
 
-    /**
-     * Split comma separated list of emails
-     * 
-     * @param email comma separated list of emails
-     * @return An array containing the emails
-     */
-    private String[] parseAddresses(String email)
+    private EncodedAttachmentCache getEncodedAttachmentCache(MailSenderSettings settings)
     {
-        if (email == null) {
-            return null;
-        }
-        email = email.trim();
-        String[] emails = email.split(",");
-        for (int i = 0; i < emails.length; i++) {
-            emails[i] = emails[i].trim();
+        if (this.encodedAttachmentCache == null && settings.getAttachmentCacheSize() > 0) {
+            synchronized (this) {
+                if (this.encodedAttachmentCache == null) {
+                    this.encodedAttachmentCache =
+                        new EncodedAttachmentCache(settings.getAttachmentCacheSize(),
+                            settings.isAttachmentCacheOffHeap());
+                }
+            }
         }
-        return emails;
+        return this.encodedAttachmentCache;
     }
 
     /**
-     * Filters a list of emails : removes illegal addresses
-     * 
-     * @param email List of emails
-     * @return An Array containing the correct adresses
+     * @return the hit ratio and the bytes saved by the cache of encoded attachments, empty if it's disabled
      */
-    private InternetAddress[] toInternetAddresses(String email) throws AddressException
+    public Map<String, Object> getAttachmentCacheStatistics()
     {
-        String[] mails = parseAddresses(email);
-        if (mails == null) {
-            return null;
-        }
-        InternetAddress[] address = new InternetAddress[mails.length];
-        for (int i = 0; i < mails.length; i++) {
-            address[i] = new InternetAddress(mails[i]);
-        }
-        return address;
+        EncodedAttachmentCache cache = this.encodedAttachmentCache;
+        return cache != null ? cache.getStatistics() : Collections.<String, Object> emptyMap();
     }
 
     public String createCalendar(String location, String summary, Date startDate, Date endDate)
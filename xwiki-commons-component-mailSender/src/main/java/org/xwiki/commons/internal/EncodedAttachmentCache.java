@@ -0,0 +1,286 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.PreencodedMimeBodyPart;
+
+/**
+ * Keeps the base64 encoded form of the attachments sent recently, so that a file attached to many mails is encoded
+ * only once. Entries are identified by a hash of the attachment content and evicted, least recently used first, when
+ * the total size of the encoded contents exceeds the cache size. They can be stored outside of the heap.
+ */
+public class EncodedAttachmentCache
+{
+    private static final String ENCODING = "base64";
+
+    /** An encoded attachment content. */
+    private static class Entry
+    {
+        private final byte[] bytes;
+
+        private final ByteBuffer buffer;
+
+        Entry(byte[] encoded, boolean offHeap)
+        {
+            if (offHeap) {
+                this.buffer = ByteBuffer.allocateDirect(encoded.length);
+                this.buffer.put(encoded);
+                this.buffer.flip();
+                this.bytes = null;
+            } else {
+                this.bytes = encoded;
+                this.buffer = null;
+            }
+        }
+
+        int size()
+        {
+            return this.bytes != null ? this.bytes.length : this.buffer.capacity();
+        }
+
+        InputStream getInputStream()
+        {
+            return new ByteBufferInputStream(this.bytes != null ? ByteBuffer.wrap(this.bytes) : this.buffer
+                .duplicate());
+        }
+    }
+
+    /** Serves the encoded content to JavaMail. */
+    private static class EntryDataSource implements DataSource
+    {
+        private final Entry entry;
+
+        private final String name;
+
+        private final String contentType;
+
+        EntryDataSource(Entry entry, String name, String contentType)
+        {
+            this.entry = entry;
+            this.name = name;
+            this.contentType = contentType;
+        }
+
+        @Override
+        public InputStream getInputStream()
+        {
+            return this.entry.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            throw new IOException("The attachment [" + this.name + "] is read-only");
+        }
+
+        @Override
+        public String getContentType()
+        {
+            return this.contentType;
+        }
+
+        @Override
+        public String getName()
+        {
+            return this.name;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return this.buffer.remaining();
+        }
+    }
+
+    private final long maxSize;
+
+    private final boolean offHeap;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum total size in bytes of the encoded contents
+     * @param offHeap whether to store the encoded contents in direct buffers
+     */
+    public EncodedAttachmentCache(long maxSize, boolean offHeap)
+    {
+        this.maxSize = maxSize;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * @param size the size in bytes of an attachment
+     * @return true if an attachment of this size is small enough to be cached without flushing most of the cache
+     */
+    public boolean accepts(long size)
+    {
+        // base64 adds a third, plus the line breaks
+        return size * 4 / 3 <= this.maxSize / 4;
+    }
+
+    /**
+     * Create a body part holding the encoded content of an attachment, encoding it only if it's not in the cache.
+     *
+     * @param name the file name of the attachment
+     * @param contentType the MIME type of the attachment
+     * @param content the attachment content
+     * @return the part, whose content is already base64 encoded
+     * @throws MessagingException if the part can't be created
+     */
+    public MimeBodyPart createPart(String name, String contentType, byte[] content) throws MessagingException
+    {
+        String key = hash(content);
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+        if (entry != null) {
+            this.hits.incrementAndGet();
+            this.bytesSaved.addAndGet(entry.size());
+        } else {
+            this.misses.incrementAndGet();
+            entry = new Entry(encode(content), this.offHeap);
+            put(key, entry);
+        }
+        MimeBodyPart part = new PreencodedMimeBodyPart(ENCODING);
+        part.setDataHandler(new DataHandler(new EntryDataSource(entry, name, contentType)));
+        part.setHeader("Content-Transfer-Encoding", ENCODING);
+        return part;
+    }
+
+    /**
+     * @return the hits, misses, hit ratio, bytes saved, number of entries and size of the cache
+     */
+    public Map<String, Object> getStatistics()
+    {
+        Map<String, Object> statistics = new HashMap<String, Object>();
+        long hitCount = this.hits.get();
+        long missCount = this.misses.get();
+        statistics.put("hits", hitCount);
+        statistics.put("misses", missCount);
+        statistics.put("hitRatio", hitCount + missCount > 0 ? (double) hitCount / (hitCount + missCount) : 0d);
+        statistics.put("bytesSaved", this.bytesSaved.get());
+        synchronized (this.entries) {
+            statistics.put("entries", this.entries.size());
+            statistics.put("size", this.size);
+        }
+        return statistics;
+    }
+
+    private void put(String key, Entry entry)
+    {
+        synchronized (this.entries) {
+            Entry previous = this.entries.put(key, entry);
+            if (previous != null) {
+                this.size -= previous.size();
+            }
+            this.size += entry.size();
+            Iterator<Entry> it = this.entries.values().iterator();
+            while (this.size > this.maxSize && it.hasNext()) {
+                this.size -= it.next().size();
+                it.remove();
+            }
+        }
+    }
+
+    private byte[] encode(byte[] content) throws MessagingException
+    {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(content.length * 4 / 3 + content.length / 57 * 2
+            + 4);
+        try {
+            OutputStream out = MimeUtility.encode(encoded, ENCODING);
+            out.write(content);
+            out.close();
+        } catch (IOException e) {
+            throw new MessagingException("Failed to encode the attachment", e);
+        }
+        return encoded.toByteArray();
+    }
+
+    private String hash(byte[] content) throws MessagingException
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+            StringBuilder key = new StringBuilder(digest.length * 2 + 12);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.append(':').append(content.length).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new MessagingException("Failed to hash the attachment", e);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A message serialized once and sent to many recipients, each of them getting a copy addressed to them alone. The
+ * copies only differ by their <tt>To</tt> and <tt>Message-ID</tt> headers, which are written before the shared bytes:
+ * sending one more copy neither renders nor serializes the message again.
+ */
+public class FanOutMessage
+{
+    /** Headers written by each copy, or which must not be disclosed to the other recipients. */
+    private static final String[] EXCLUDED_HEADERS = {"To", "Cc", "Bcc", "Message-ID", "Content-Length"};
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final String CRLF = "\r\n";
+
+    private final Session session;
+
+    private final MailSenderMetrics metrics;
+
+    private final Address[] from;
+
+    /** The id of the message, without the angle brackets. */
+    private final String messageId;
+
+    /** The shared headers and the content, with CRLF line breaks. */
+    private final byte[] body;
+
+    private volatile byte[] stuffedBody;
+
+    /**
+     * @param message the message to send, its recipients are ignored
+     * @param session the session of the transports sending the copies
+     * @param metrics where to add the bytes of the copies sent
+     * @throws MessagingException if the message can't be serialized
+     */
+    public FanOutMessage(MimeMessage message, Session session, MailSenderMetrics metrics) throws MessagingException
+    {
+        this.session = session;
+        this.metrics = metrics;
+        message.saveChanges();
+        this.from = message.getFrom();
+        String id = message.getMessageID();
+        this.messageId = id.startsWith("<") && id.endsWith(">") ? id.substring(1, id.length() - 1) : id;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            message.writeTo(out, EXCLUDED_HEADERS);
+        } catch (IOException e) {
+            throw new MessagingException("Failed to serialize the message", e);
+        }
+        this.body = NioSmtpEngine.toCanonical(out.toByteArray());
+    }
+
+    /**
+     * @param recipient the recipient of the copy
+     * @param index the position of the recipient, making the id of the copy unique
+     * @return the copy to send to the recipient
+     */
+    public Copy createCopy(InternetAddress recipient, int index)
+    {
+        return new Copy(this, recipient, "<" + index + '.' + this.messageId + '>');
+    }
+
+    /**
+     * @return the shared headers and the content, with CRLF line breaks; not to be modified
+     */
+    byte[] getBody()
+    {
+        return this.body;
+    }
+
+    /**
+     * @return the body with the dots starting a line doubled and the terminating line, as sent after <tt>DATA</tt>
+     */
+    byte[] getStuffedBody()
+    {
+        byte[] stuffed = this.stuffedBody;
+        if (stuffed == null) {
+            // Computing it twice is harmless
+            stuffed = NioSmtpEngine.dotStuff(this.body);
+            this.stuffedBody = stuffed;
+        }
+        return stuffed;
+    }
+
+    /**
+     * The copy of the message sent to a recipient. It has no content of its own and can only be sent to this
+     * recipient.
+     */
+    public static class Copy extends MimeMessage
+    {
+        private final FanOutMessage message;
+
+        private final InternetAddress recipient;
+
+        private final String id;
+
+        private byte[] head;
+
+        Copy(FanOutMessage message, InternetAddress recipient, String id)
+        {
+            super(message.session);
+            this.message = message;
+            this.recipient = recipient;
+            this.id = id;
+        }
+
+        /**
+         * @return the message this is a copy of
+         */
+        public FanOutMessage getMessage()
+        {
+            return this.message;
+        }
+
+        /**
+         * Get the headers specific to this copy, to send before the shared body. The size of the whole copy is added
+         * to the bytes sent.
+         *
+         * @return the <tt>To</tt> and <tt>Message-ID</tt> headers, with CRLF line breaks
+         */
+        byte[] serializeHead()
+        {
+            byte[] bytes = getHead();
+            this.message.metrics.addBytesSent(bytes.length + this.message.body.length);
+            return bytes;
+        }
+
+        private byte[] getHead()
+        {
+            if (this.head == null) {
+                String to = InternetAddress.toString(new Address[] {this.recipient}, 4);
+                this.head = ("To: " + to + CRLF + "Message-ID: " + this.id + CRLF).getBytes(ASCII);
+            }
+            return this.head;
+        }
+
+        @Override
+        public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException
+        {
+            os.write(serializeHead());
+            os.write(this.message.body);
+        }
+
+        @Override
+        public void saveChanges()
+        {
+            // The headers have been computed once for all the copies
+        }
+
+        @Override
+        public Address[] getFrom()
+        {
+            return this.message.from != null ? this.message.from.clone() : null;
+        }
+
+        @Override
+        public Address[] getRecipients(Message.RecipientType type)
+        {
+            return type == Message.RecipientType.TO ? new Address[] {this.recipient} : null;
+        }
+
+        @Override
+        public Address[] getAllRecipients()
+        {
+            return new Address[] {this.recipient};
+        }
+
+        @Override
+        public String getMessageID()
+        {
+            return this.id;
+        }
+
+        @Override
+        public int getSize()
+        {
+            return getHead().length + this.message.body.length;
+        }
+    }
+}
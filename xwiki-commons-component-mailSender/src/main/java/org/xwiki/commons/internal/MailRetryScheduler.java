@@ -0,0 +1,125 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+
+/**
+ * Sends a mail again to the recipients who didn't get it, after an exponentially growing delay. The delays are
+ * jittered so that the mails failing at the same time, typically because the server was overloaded, are not all
+ * retried at the same time again. Retries are kept in memory and lost on restart.
+ */
+public class MailRetryScheduler
+{
+    /**
+     * Does the actual sending of the retried mails.
+     */
+    public interface Retrier
+    {
+        /**
+         * @param mail the mail to send again
+         * @param recipients the recipients to send it to
+         * @param configuration the configuration the mail was first sent with
+         * @param attempt the number of the retry, starting at 1
+         */
+        void retry(Mail mail, Address[] recipients, MailServerConfiguration configuration, int attempt);
+    }
+
+    private final Retrier retrier;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final Random random = new Random();
+
+    /**
+     * @param retrier sends the mails
+     */
+    public MailRetryScheduler(Retrier retrier)
+    {
+        this.retrier = retrier;
+        this.executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("Mail sender retry"));
+    }
+
+    /**
+     * Schedule a retry, unless the mail has already been retried as many times as allowed.
+     *
+     * @param mail the mail to send again
+     * @param recipients the recipients to send it to
+     * @param configuration the configuration the mail was first sent with
+     * @param attempt the number of the retry to schedule, starting at 1
+     * @return false if the maximum number of attempts has been reached, the recipients are given up
+     */
+    public boolean schedule(final Mail mail, final Address[] recipients, final MailServerConfiguration configuration,
+        final int attempt)
+    {
+        MailSenderSettings settings = configuration.getSettings();
+        if (attempt > settings.getRetryMaxAttempts() || this.executor.isShutdown()) {
+            return false;
+        }
+        long delay = getDelay(attempt, settings.getRetryInitialDelay(), settings.getRetryMaxDelay(), this.random);
+        this.executor.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                retrier.retry(mail, recipients, configuration, attempt);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * @return the number of retries waiting for their delay to expire
+     */
+    public int getScheduledCount()
+    {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * Drop the pending retries.
+     */
+    public void shutdown()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * @param attempt the number of the retry, starting at 1
+     * @param initialDelay the delay in milliseconds before the first retry
+     * @param maxDelay the maximum delay in milliseconds
+     * @param random the source of the jitter
+     * @return a delay between half and all of <tt>initialDelay * 2^(attempt - 1)</tt>, capped to <tt>maxDelay</tt>
+     */
+    static long getDelay(int attempt, long initialDelay, long maxDelay, Random random)
+    {
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+}
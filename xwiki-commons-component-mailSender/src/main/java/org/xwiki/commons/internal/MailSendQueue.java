@@ -0,0 +1,221 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory queue of mails drained by a pool of worker threads. Each queued mail gets an id which can be used
+ * to follow its delivery status.
+ */
+public class MailSendQueue
+{
+    /** The mail is waiting for a worker. */
+    public static final String QUEUED = "queued";
+
+    /** A worker is sending the mail. */
+    public static final String SENDING = "sending";
+
+    /** The mail has been accepted by the SMTP server. */
+    public static final String SENT = "sent";
+
+    /** The mail could not be sent. */
+    public static final String FAILED = "failed";
+
+    /** The mail could not be sent yet and will be sent again, its status is updated once the retries are over. */
+    public static final String RETRYING = "retrying";
+
+    /** Minimum number of statuses remembered, the oldest ones are forgotten first. */
+    private static final int MIN_STATUS_HISTORY = 10000;
+
+    /**
+     * Does the actual delivery of the queued mails.
+     */
+    public interface Deliverer
+    {
+        /**
+         * @param id the id of the queued mail
+         * @param mail the mail to send
+         * @param configuration the configuration of the wiki from which the mail has been queued
+         * @return the status of the mail: {@link #SENT}, {@link #FAILED} or {@link #RETRYING}
+         */
+        String deliver(String id, Mail mail, MailServerConfiguration configuration);
+    }
+
+    private final Deliverer deliverer;
+
+    private final ThreadPoolExecutor executor;
+
+    private final Map<String, String> statuses;
+
+    /**
+     * @param deliverer sends the mails
+     * @param workers the number of worker threads
+     * @param capacity the maximum number of mails waiting to be sent
+     */
+    public MailSendQueue(Deliverer deliverer, int workers, int capacity)
+    {
+        this.deliverer = deliverer;
+        this.executor =
+            new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                capacity), new DaemonThreadFactory("Mail sender worker"));
+        final int history = Math.max(MIN_STATUS_HISTORY, 2 * capacity);
+        this.statuses = Collections.synchronizedMap(new LinkedHashMap<String, String>()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                return size() > history;
+            }
+        });
+    }
+
+    /**
+     * Queue a mail under a known id.
+     *
+     * @param id the id of the mail
+     * @param mail the mail to send
+     * @param configuration the configuration to send it with
+     * @return the id of the queued mail, or null if the queue is full
+     */
+    public String submit(String id, Mail mail, MailServerConfiguration configuration)
+    {
+        this.statuses.put(id, QUEUED);
+        try {
+            this.executor.execute(new Delivery(id, mail, configuration));
+        } catch (RejectedExecutionException e) {
+            this.statuses.remove(id);
+            return null;
+        }
+        return id;
+    }
+
+    /**
+     * @param id the id returned when the mail was queued
+     * @return the status of the mail, or null if the id is unknown
+     */
+    public String getStatus(String id)
+    {
+        return this.statuses.get(id);
+    }
+
+    /**
+     * Update the status of a mail once the retries it was waiting for are over.
+     *
+     * @param id the id of the mail
+     * @param status {@link #SENT} or {@link #FAILED}
+     */
+    public void setStatus(String id, String status)
+    {
+        synchronized (this.statuses) {
+            // Not remembered again if it has been forgotten meanwhile
+            if (this.statuses.containsKey(id)) {
+                this.statuses.put(id, status);
+            }
+        }
+    }
+
+    private void replaceStatus(String id, String expected, String status)
+    {
+        synchronized (this.statuses) {
+            if (expected.equals(this.statuses.get(id))) {
+                this.statuses.put(id, status);
+            }
+        }
+    }
+
+    /**
+     * @return the number of mails waiting for a worker
+     */
+    public int getQueuedCount()
+    {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * Stop the workers once the mails being sent are done. Mails still queued are dropped and marked as failed.
+     *
+     * @param timeout the time in milliseconds given to the mails being sent, after which the workers are interrupted
+     * @return the ids of the dropped mails
+     */
+    public List<String> shutdown(long timeout)
+    {
+        this.executor.shutdown();
+        List<Runnable> dropped = new ArrayList<Runnable>();
+        this.executor.getQueue().drainTo(dropped);
+        List<String> ids = new ArrayList<String>(dropped.size());
+        for (Runnable delivery : dropped) {
+            String id = ((Delivery) delivery).id;
+            replaceStatus(id, QUEUED, FAILED);
+            ids.add(id);
+        }
+        try {
+            if (!this.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                this.executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        return ids;
+    }
+
+    /**
+     * The sending of a queued mail by a worker.
+     */
+    private class Delivery implements Runnable
+    {
+        private final String id;
+
+        private final Mail mail;
+
+        private final MailServerConfiguration configuration;
+
+        Delivery(String id, Mail mail, MailServerConfiguration configuration)
+        {
+            this.id = id;
+            this.mail = mail;
+            this.configuration = configuration;
+        }
+
+        @Override
+        public void run()
+        {
+            statuses.put(this.id, SENDING);
+            String status = FAILED;
+            try {
+                status = deliverer.deliver(this.id, this.mail, this.configuration);
+            } finally {
+                // Unless a retry already finished
+                replaceStatus(this.id, SENDING, status);
+            }
+        }
+    }
+}
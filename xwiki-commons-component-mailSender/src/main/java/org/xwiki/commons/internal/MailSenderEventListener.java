@@ -0,0 +1,130 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.DocumentModelBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.commons.MailSender;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps the caches of the {@link DefaultMailSender} in sync with the wiki: the mail configuration is dropped when
+ * <tt>XWiki.XWikiPreferences</tt> is saved, the cached mail templates are dropped when their document changes and the
+ * cached view rights when rights or groups are modified.
+ */
+@Component
+@Named("mailsender")
+@Singleton
+public class MailSenderEventListener implements EventListener
+{
+    private static final List<Event> EVENTS = Arrays.<Event> asList(new DocumentCreatedEvent(),
+        new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+
+    /** Classes of the objects defining rights and groups. */
+    private static final String[] RIGHT_CLASSES = {"XWikiRights", "XWikiGlobalRights", "XWikiGroups"};
+
+    /** Class of the objects defining the mail templates. */
+    private static final String[] MAIL_CLASSES = {"Mail"};
+
+    /** Lazily resolved to avoid instantiating the mail sender as soon as the listener is registered. */
+    @Inject
+    private Provider<MailSender> mailSenderProvider;
+
+    @Override
+    public String getName()
+    {
+        return "mailsender";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        MailSender mailSender = this.mailSenderProvider.get();
+        if (!(mailSender instanceof DefaultMailSender) || !(source instanceof DocumentModelBridge)) {
+            return;
+        }
+        DefaultMailSender defaultMailSender = (DefaultMailSender) mailSender;
+        DocumentReference reference = ((DocumentModelBridge) source).getDocumentReference();
+
+        if (isPreferences(reference)) {
+            defaultMailSender.invalidateConfiguration(reference.getWikiReference().getName());
+        }
+        if (!(source instanceof XWikiDocument)) {
+            defaultMailSender.invalidateTemplate(reference);
+            return;
+        }
+        XWikiDocument document = (XWikiDocument) source;
+        // Only the documents holding a template have been cached, the others don't need to lock the cache
+        if (hasObjects(document, MAIL_CLASSES) || hasObjects(document.getOriginalDocument(), MAIL_CLASSES)) {
+            defaultMailSender.invalidateTemplate(reference);
+        }
+        if (hasObjects(document, RIGHT_CLASSES) || hasObjects(document.getOriginalDocument(), RIGHT_CLASSES)) {
+            defaultMailSender.invalidateRights();
+        }
+    }
+
+    /**
+     * @param classes the names of the classes, in the <tt>XWiki</tt> space
+     * @return true if the document holds objects of one of the classes: templates, or rights and group members whose
+     *         modification can change the view right on the templates
+     */
+    private boolean hasObjects(XWikiDocument document, String[] classes)
+    {
+        if (document == null) {
+            return false;
+        }
+        String wiki = document.getDocumentReference().getWikiReference().getName();
+        for (String xclass : classes) {
+            List<BaseObject> objects = document.getXObjects(new DocumentReference(wiki, "XWiki", xclass));
+            if (objects != null && !objects.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isPreferences(DocumentReference reference)
+    {
+        return "XWikiPreferences".equals(reference.getName())
+            && "XWiki".equals(reference.getLastSpaceReference().getName());
+    }
+}
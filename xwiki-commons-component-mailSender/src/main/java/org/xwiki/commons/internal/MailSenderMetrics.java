@@ -0,0 +1,341 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the mail sender. Recording only updates atomic counters, so that it can stay
+ * enabled in production.
+ */
+public class MailSenderMetrics implements MailSenderMetricsMXBean
+{
+    /** The stages of sending a mail. */
+    public enum Stage
+    {
+        /** Resolving the mail configuration of the wiki. */
+        CONFIGURATION,
+        /** Rendering a mail template. */
+        RENDERING,
+        /** Building the MIME message. */
+        MIME,
+        /** Waiting for the rate limits of the relay and of the recipient domains. */
+        THROTTLE,
+        /** Getting a connection to the SMTP server, from the pool or by connecting. */
+        CONNECT,
+        /** Sending the message on the connection. */
+        TRANSMIT
+    }
+
+    /**
+     * Latency histogram with power of two buckets in microseconds, precise enough to tell stages apart and to see
+     * the tail latencies.
+     */
+    private static class Histogram
+    {
+        private static final int BUCKETS = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong total = new AtomicLong();
+
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos)
+        {
+            long micros = nanos / 1000;
+            this.buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            this.count.incrementAndGet();
+            this.total.addAndGet(nanos);
+            long currentMax;
+            while (nanos > (currentMax = this.max.get()) && !this.max.compareAndSet(currentMax, nanos)) {
+                // Retry
+            }
+        }
+
+        double getMeanMillis()
+        {
+            long n = this.count.get();
+            return n > 0 ? this.total.get() / (n * 1000000d) : 0;
+        }
+
+        double getMaxMillis()
+        {
+            return this.max.get() / 1000000d;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given percentile
+         */
+        double getPercentileMillis(double percentile)
+        {
+            long n = this.count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += this.buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min((1L << i) / 1000d, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        void reset()
+        {
+            for (int i = 0; i < BUCKETS; i++) {
+                this.buckets.set(i, 0);
+            }
+            this.count.set(0);
+            this.total.set(0);
+            this.max.set(0);
+        }
+    }
+
+    private final Map<Stage, Histogram> stages = new EnumMap<Stage, Histogram>(Stage.class);
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private final AtomicLong suppressed = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final ConcurrentMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+
+    public MailSenderMetrics()
+    {
+        for (Stage stage : Stage.values()) {
+            this.stages.put(stage, new Histogram());
+        }
+    }
+
+    /**
+     * @return the start time to give to {@link #record(Stage, long)}
+     */
+    public long start()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param stage the stage which has just ended
+     * @param start the value returned by {@link #start()} when the stage began
+     */
+    public void record(Stage stage, long start)
+    {
+        this.stages.get(stage).record(System.nanoTime() - start);
+    }
+
+    public void recordSent()
+    {
+        this.sent.incrementAndGet();
+    }
+
+    /**
+     * @param cause why the mail could not be sent
+     */
+    public void recordFailure(Throwable cause)
+    {
+        this.failed.incrementAndGet();
+        String type = cause.getClass().getName();
+        AtomicLong counter = this.failures.get(type);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = this.failures.putIfAbsent(type, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    public void addBytesSent(long bytes)
+    {
+        this.bytesSent.addAndGet(bytes);
+    }
+
+    /**
+     * @param recipients the number of recipients skipped because their address is suppressed
+     */
+    public void addSuppressed(int recipients)
+    {
+        this.suppressed.addAndGet(recipients);
+    }
+
+    /**
+     * @param notifications the number of notifications which didn't need a mail of their own, being sent in a digest
+     */
+    public void addCoalesced(int notifications)
+    {
+        this.coalesced.addAndGet(notifications);
+    }
+
+    @Override
+    public long getMailsSent()
+    {
+        return this.sent.get();
+    }
+
+    @Override
+    public long getMailsFailed()
+    {
+        return this.failed.get();
+    }
+
+    @Override
+    public long getBytesSent()
+    {
+        return this.bytesSent.get();
+    }
+
+    @Override
+    public long getRecipientsSuppressed()
+    {
+        return this.suppressed.get();
+    }
+
+    @Override
+    public long getNotificationsCoalesced()
+    {
+        return this.coalesced.get();
+    }
+
+    @Override
+    public Map<String, Long> getFailures()
+    {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : this.failures.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts()
+    {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<Stage, Histogram> entry : this.stages.entrySet()) {
+            result.put(getName(entry.getKey()), entry.getValue().count.get());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getStageMeanMillis()
+    {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<Stage, Histogram> entry : this.stages.entrySet()) {
+            result.put(getName(entry.getKey()), entry.getValue().getMeanMillis());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getStageP50Millis()
+    {
+        return getPercentiles(0.5);
+    }
+
+    @Override
+    public Map<String, Double> getStageP99Millis()
+    {
+        return getPercentiles(0.99);
+    }
+
+    @Override
+    public Map<String, Double> getStageMaxMillis()
+    {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<Stage, Histogram> entry : this.stages.entrySet()) {
+            result.put(getName(entry.getKey()), entry.getValue().getMaxMillis());
+        }
+        return result;
+    }
+
+    @Override
+    public void reset()
+    {
+        for (Histogram histogram : this.stages.values()) {
+            histogram.reset();
+        }
+        this.sent.set(0);
+        this.failed.set(0);
+        this.bytesSent.set(0);
+        this.suppressed.set(0);
+        this.coalesced.set(0);
+        this.failures.clear();
+    }
+
+    /**
+     * @return all the metrics: "sent", "failed", "bytesSent", "suppressed", "coalesced", "failures" and, for each
+     *         stage, a map with its "count", "mean", "p50", "p99" and "max" latencies in milliseconds
+     */
+    public Map<String, Object> getStatistics()
+    {
+        Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+        statistics.put("sent", getMailsSent());
+        statistics.put("failed", getMailsFailed());
+        statistics.put("bytesSent", getBytesSent());
+        statistics.put("suppressed", getRecipientsSuppressed());
+        statistics.put("coalesced", getNotificationsCoalesced());
+        statistics.put("failures", getFailures());
+        for (Map.Entry<Stage, Histogram> entry : this.stages.entrySet()) {
+            Histogram histogram = entry.getValue();
+            Map<String, Object> stage = new LinkedHashMap<String, Object>();
+            stage.put("count", histogram.count.get());
+            stage.put("mean", histogram.getMeanMillis());
+            stage.put("p50", histogram.getPercentileMillis(0.5));
+            stage.put("p99", histogram.getPercentileMillis(0.99));
+            stage.put("max", histogram.getMaxMillis());
+            statistics.put(getName(entry.getKey()), stage);
+        }
+        return statistics;
+    }
+
+    private Map<String, Double> getPercentiles(double percentile)
+    {
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<Stage, Histogram> entry : this.stages.entrySet()) {
+            result.put(getName(entry.getKey()), entry.getValue().getPercentileMillis(percentile));
+        }
+        return result;
+    }
+
+    private String getName(Stage stage)
+    {
+        return stage.name().toLowerCase();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link MailSenderMetrics}, registered as <tt>org.xwiki:type=MailSender</tt>. Latencies are in
+ * milliseconds, keyed by stage name.
+ */
+public interface MailSenderMetricsMXBean
+{
+    long getMailsSent();
+
+    long getMailsFailed();
+
+    long getBytesSent();
+
+    /**
+     * @return the number of recipients skipped because their address is suppressed
+     */
+    long getRecipientsSuppressed();
+
+    /**
+     * @return the number of notifications sent in a digest instead of a mail of their own
+     */
+    long getNotificationsCoalesced();
+
+    /**
+     * @return the number of failures per exception class name
+     */
+    Map<String, Long> getFailures();
+
+    Map<String, Long> getStageCounts();
+
+    Map<String, Double> getStageMeanMillis();
+
+    Map<String, Double> getStageP50Millis();
+
+    Map<String, Double> getStageP99Millis();
+
+    Map<String, Double> getStageMaxMillis();
+
+    /**
+     * Set all the counters back to zero.
+     */
+    void reset();
+}
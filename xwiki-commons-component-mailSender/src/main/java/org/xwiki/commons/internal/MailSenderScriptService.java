@@ -19,7 +19,10 @@
  */
 package org.xwiki.commons.internal;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.velocity.VelocityContext;
@@ -75,13 +78,80 @@ public class MailSenderScriptService implements ScriptService
      * Send the mail passed as argument
      * 
      * @param mail Mail to be send
-     * @return 1 if the email has been sent
+     * @return 1 if the email has been sent, 2 if it could not be sent yet and will be sent again in the background
+     *         (don't send it again), 0 if it has not been sent
      */
     public int send(Mail mail)
     {
         return this.mailSender.send(mail);
     }
 
+    /**
+     * Queue the mail passed as argument. It is sent in the background and the current request doesn't wait for it.
+     * 
+     * @param mail Mail to be send
+     * @return the id of the queued mail, null if it could not be queued
+     */
+    public String sendAsync(Mail mail)
+    {
+        return this.mailSender.sendAsync(mail);
+    }
+
+    /**
+     * Get the delivery status of a mail queued with {@link #sendAsync(Mail)}
+     * 
+     * @param id the id returned by sendAsync
+     * @return "queued", "sending", "retrying" (not sent yet, it will be sent again), "sent", "failed", or null if the
+     *         id is unknown
+     */
+    public String getMailStatus(String id)
+    {
+        return this.mailSender.getMailStatus(id);
+    }
+
+    /**
+     * Send several mails over as few SMTP connections as possible. A failing mail doesn't prevent the next ones from
+     * being sent.
+     * 
+     * @param mails Mails to be send
+     * @return for each mail, in order, 1 if it has been sent, 2 if it will be sent again in the background and 0
+     *         otherwise
+     */
+    public int[] sendBatch(Collection<Mail> mails)
+    {
+        return this.mailSender.sendBatch(mails);
+    }
+
+    /**
+     * Send a notification in a digest gathering the notifications sent to the same recipient in the same category
+     * during the next minutes (<tt>mail.sender.coalesce.window</tt>). The digest is rendered from the
+     * <tt>XWiki.Mail</tt> object of the <tt>mail.sender.coalesce.template</tt> document, with the notifications in
+     * <tt>$mails</tt>, their <tt>$category</tt> and their <tt>$recipient</tt>. The digest is rendered later, with no
+     * current document, so <tt>$doc</tt> and the request are not available to the template.
+     * 
+     * @param mail Mail to be sent, not to be modified anymore
+     * @param category Groups the notifications which can be sent in the same digest, e.g. "watchlist"
+     * @return true if the notification is sent or waiting for the digest, false if it has not been sent or if the
+     *         author of the calling document has no programming rights
+     */
+    public boolean sendCoalesced(Mail mail, String category)
+    {
+        return this.mailSender.sendCoalesced(mail, category);
+    }
+
+    /**
+     * Send a separate copy of a mail to each of its recipients, who don't see the others. The mail is rendered once,
+     * which makes it much cheaper than sending a mail per recipient, e.g. for announcements.
+     * 
+     * @param mail Mail to be sent, its To, Cc and Bcc recipients all getting the same copy
+     * @return the number of recipients the mail has been sent to; the ones who didn't get it because of a temporary
+     *         failure are not counted and get it later, don't send it to them again
+     */
+    public int sendToEach(Mail mail)
+    {
+        return this.mailSender.sendToEach(mail);
+    }
+
     /**
      * Uses an XWiki document to build the message subject and context, based on variables stored in the
      * VelocityContext. Sends the mail.
@@ -94,7 +164,7 @@ public class MailSenderScriptService implements ScriptService
      * @param bcc Email Hidden Carbon Copy
      * @param language Language of the email
      * @param vcontext Velocity context passed to the velocity renderer.
-     * @return True if the email has been sent
+     * @return 1 if the email has been sent, 2 if it will be sent again in the background
      */
     public int sendMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
         String language, VelocityContext vContext)
@@ -115,7 +185,7 @@ public class MailSenderScriptService implements ScriptService
      * @param bcc Email Hidden Carbon Copy
      * @param language Language of the email
      * @param parameters Parameters to add to the current velocity context
-     * @return True if the email has been sent
+     * @return 1 if the email has been sent, 2 if it will be sent again in the background
      */
     public int sendMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
         String language, Map<String, Object> parameters)
@@ -124,6 +194,24 @@ public class MailSenderScriptService implements ScriptService
         return this.mailSender.sendMailFromTemplate(templateDocFullName, from, to, cc, bcc, language, parameters);
     }
 
+    /**
+     * Sends the same template to many recipients (mail merge), each mail being rendered with the parameters of its
+     * recipient on top of the current VelocityContext.
+     * 
+     * @param templateDocFullName Full name of the template to be used (example: XWiki.MyEmailTemplate). The template
+     *            needs to have an XWiki.Email object attached
+     * @param from Email sender
+     * @param language Language of the email
+     * @param recipients Map of the recipient addresses to the parameters of their mail
+     * @return for each recipient, in order, 1 if the mail has been sent, 2 if it will be sent again in the background
+     *         and 0 otherwise
+     */
+    public int[] sendMailMerge(String templateDocFullName, String from, String language,
+        Map<String, Map<String, Object>> recipients)
+    {
+        return this.mailSender.sendMailMerge(templateDocFullName, from, language, recipients);
+    }
+
     /**
      * Send a mail having the properties specified
      * 
@@ -132,7 +220,7 @@ public class MailSenderScriptService implements ScriptService
      * @param subject Mail subject
      * @param html Mail html content
      * @param alternative Mail alternative text content.
-     * @return 1 if the email has been sent
+     * @return 1 if the email has been sent, 2 if it will be sent again in the background
      */
     public int sendHtmlMail(String from, String to, String subject, String html, String alternative)
     {
@@ -156,4 +244,105 @@ public class MailSenderScriptService implements ScriptService
     {
         return this.mailSender.createCalendar(location, summary, startDate, endDate);
     }
+
+    /**
+     * @return the statistics of the cache of encoded attachments: "hits", "misses", "hitRatio", "bytesSaved",
+     *         "entries" and "size"
+     */
+    public Map<String, Object> getAttachmentCacheStatistics()
+    {
+        if (this.mailSender instanceof DefaultMailSender) {
+            return ((DefaultMailSender) this.mailSender).getAttachmentCacheStatistics();
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * @return the mail sender metrics: "sent", "failed", "bytesSent", the number of "suppressed" recipients and of
+     *         notifications "coalesced" in digests, the "failures" per exception type, for each stage
+     *         ("configuration", "rendering", "mime", "throttle", "connect", "transmit") its "count" and "mean", "p50",
+     *         "p99" and "max" latencies in milliseconds, the "attachmentCache" statistics and the status of the
+     *         "relays" of the current wiki
+     */
+    public Map<String, Object> getStatistics()
+    {
+        if (this.mailSender instanceof DefaultMailSender) {
+            return ((DefaultMailSender) this.mailSender).getStatistics();
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Requires programming rights.
+     *
+     * @return the mails which could not be delivered to some of their recipients, with their "id", "wiki",
+     *         "recipients", "reason", "date" and "subject"
+     */
+    public List<Map<String, Object>> getDeadLetters()
+    {
+        if (this.mailSender instanceof DefaultMailSender) {
+            return ((DefaultMailSender) this.mailSender).getDeadLetters();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Requires programming rights.
+     *
+     * @param id the id of a dead letter
+     * @return the mail which could not be delivered, e.g. to send it again, or null if there is no such dead letter
+     */
+    public Mail getDeadLetterMail(String id)
+    {
+        return this.mailSender instanceof DefaultMailSender ? ((DefaultMailSender) this.mailSender)
+            .getDeadLetterMail(id) : null;
+    }
+
+    /**
+     * Forget a dead letter, once it has been dealt with. Requires programming rights.
+     *
+     * @param id the id of the dead letter
+     * @return true if the dead letter has been removed
+     */
+    public boolean removeDeadLetter(String id)
+    {
+        return this.mailSender instanceof DefaultMailSender
+            && ((DefaultMailSender) this.mailSender).removeDeadLetter(id);
+    }
+
+    /**
+     * Stop sending mails to some addresses, e.g. because they bounced or unsubscribed. Requires programming rights.
+     *
+     * @param addresses the addresses, without display name
+     * @return the number of addresses added, the others being already suppressed
+     */
+    public int suppress(List<String> addresses)
+    {
+        return this.mailSender instanceof DefaultMailSender ? ((DefaultMailSender) this.mailSender)
+            .suppress(addresses) : 0;
+    }
+
+    /**
+     * Send mails to a suppressed address again. Requires programming rights.
+     *
+     * @param address the address, without display name
+     * @return true if the address was suppressed
+     */
+    public boolean unsuppress(String address)
+    {
+        return this.mailSender instanceof DefaultMailSender
+            && ((DefaultMailSender) this.mailSender).unsuppress(address);
+    }
+
+    /**
+     * Requires programming rights.
+     *
+     * @param address an address, without display name
+     * @return true if mails are not sent to the address
+     */
+    public boolean isSuppressed(String address)
+    {
+        return this.mailSender instanceof DefaultMailSender
+            && ((DefaultMailSender) this.mailSender).isSuppressed(address);
+    }
 }
@@ -0,0 +1,457 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Tuning parameters of the mail sender. They are read from the resolved mail properties, so they can be set in the
+ * <tt>javamail_extra_props</tt> field of <tt>XWiki.XWikiPreferences</tt> next to the regular JavaMail properties
+ * (JavaMail ignores the keys it doesn't know).
+ */
+public class MailSenderSettings
+{
+    /** Maximum number of SMTP connections kept open by the transport pool. */
+    public static final String POOL_SIZE = "mail.sender.pool.size";
+
+    /** Time in milliseconds after which an unused pooled connection is closed. */
+    public static final String POOL_IDLE_TIMEOUT = "mail.sender.pool.idleTimeout";
+
+    /**
+     * Time in milliseconds to wait for a pooled connection when all of them are in use, after which the mail is
+     * retried later.
+     */
+    public static final String POOL_BORROW_TIMEOUT = "mail.sender.pool.borrowTimeout";
+
+    /** Number of threads sending the mails queued with {@code sendAsync}. */
+    public static final String ASYNC_WORKERS = "mail.sender.async.workers";
+
+    /** Maximum number of mails waiting in the asynchronous queue. */
+    public static final String ASYNC_QUEUE_SIZE = "mail.sender.async.queueSize";
+
+    /** Maximum number of resolved mail templates kept in memory, 0 to read them on each use. */
+    public static final String TEMPLATE_CACHE_SIZE = "mail.sender.template.cacheSize";
+
+    /** Time in milliseconds during which the view right of a user on a mail template is cached. */
+    public static final String RIGHTS_CACHE_TTL = "mail.sender.template.rightsCacheTtl";
+
+    /** Number of threads rendering the mails of a mail merge, defaults to the number of processors. */
+    public static final String MERGE_THREADS = "mail.sender.merge.threads";
+
+    /** Size in bytes above which an attachment is moved to a temporary file until its mail is sent, 0 to disable. */
+    public static final String ATTACHMENT_SPILL_THRESHOLD = "mail.sender.attachment.spillThreshold";
+
+    /** Maximum size in bytes of the cache of base64 encoded attachments, 0 to disable it. */
+    public static final String ATTACHMENT_CACHE_SIZE = "mail.sender.attachment.cacheSize";
+
+    /** Whether the encoded attachments are cached outside of the heap. */
+    public static final String ATTACHMENT_CACHE_OFF_HEAP = "mail.sender.attachment.cacheOffHeap";
+
+    /** Maximum number of HTML bodies whose plain text alternative is kept, 0 to convert them on each use. */
+    public static final String PLAIN_CACHE_SIZE = "mail.sender.plain.cacheSize";
+
+    /** Length above which HTML bodies are converted to plain text by stripping tags, 0 to always render them. */
+    public static final String PLAIN_FAST_THRESHOLD = "mail.sender.plain.fastThreshold";
+
+    /** Maximum number of recipients per SMTP transaction, 0 to send a message to all its recipients at once. */
+    public static final String RECIPIENT_CHUNK_SIZE = "mail.sender.recipientChunkSize";
+
+    /** Whether the envelope commands are pipelined when the server advertises PIPELINING (RFC 2920). */
+    public static final String PIPELINING = "mail.sender.pipelining";
+
+    /** Maximum number of messages per second handed to the SMTP relay, 0 for no limit. */
+    public static final String RELAY_RATE = "mail.sender.rate.relay";
+
+    /** Number of messages which can be sent at once to the relay before its rate applies. */
+    public static final String RELAY_BURST = "mail.sender.rate.relayBurst";
+
+    /**
+     * Maximum number of recipients per second of a same domain, 0 for no limit. Suffixed with a domain name
+     * (<tt>mail.sender.rate.domain.example.org</tt>) it sets the rate of that domain only.
+     */
+    public static final String DOMAIN_RATE = "mail.sender.rate.domain";
+
+    /** Number of recipients of a domain which can be sent to at once, can be suffixed with a domain name too. */
+    public static final String DOMAIN_BURST = "mail.sender.rate.domainBurst";
+
+    /**
+     * Comma separated SMTP relays to send through instead of the server of the preferences, each written
+     * <tt>host[:port][*weight]</tt>. The relays share the credentials and the other settings.
+     */
+    public static final String RELAYS = "mail.sender.relays";
+
+    /** Number of consecutive failures after which a relay isn't used anymore for a while. */
+    public static final String RELAY_MAX_FAILURES = "mail.sender.relay.maxFailures";
+
+    /** Time in milliseconds during which a failing relay isn't used, before being tried again. */
+    public static final String RELAY_EJECTION_TIME = "mail.sender.relay.ejectionTime";
+
+    /** Comma separated files in the <tt>mime.types</tt> format to read the MIME types of the attachments from. */
+    public static final String MIME_TYPES_FILES = "mail.sender.mimeTypes.files";
+
+    /** Comma separated <tt>extension=type</tt> pairs, taking precedence over the MIME types read from the files. */
+    public static final String MIME_TYPES = "mail.sender.mimeTypes";
+
+    /** Maximum number of times a mail is sent again to the recipients who didn't get it, 0 to never retry. */
+    public static final String RETRY_MAX_ATTEMPTS = "mail.sender.retry.maxAttempts";
+
+    /** Delay in milliseconds before the first retry, doubled for each following one. */
+    public static final String RETRY_INITIAL_DELAY = "mail.sender.retry.initialDelay";
+
+    /** Maximum delay in milliseconds between two retries. */
+    public static final String RETRY_MAX_DELAY = "mail.sender.retry.maxDelay";
+
+    /** Maximum number of parsed recipient addresses kept in memory, 0 to parse them on each use. */
+    public static final String ADDRESS_CACHE_SIZE = "mail.sender.address.cacheSize";
+
+    /**
+     * SMTP client to send with: {@link #ENGINE_JAVAMAIL} or {@link #ENGINE_NIO}, whose sessions are multiplexed by a
+     * single thread per relay. <tt>mail.sender.pool.size</tt> is then the number of sessions per relay.
+     */
+    public static final String ENGINE = "mail.sender.engine";
+
+    /** Value of {@link #ENGINE} for the JavaMail transports, the default. */
+    public static final String ENGINE_JAVAMAIL = "javamail";
+
+    /** Value of {@link #ENGINE} for the non blocking SMTP client, ignored when SSL or STARTTLS is enabled. */
+    public static final String ENGINE_NIO = "nio";
+
+    /**
+     * Time in milliseconds during which the notifications sent to a recipient in the same category are gathered in a
+     * single digest, 0 to send them at once.
+     */
+    public static final String COALESCE_WINDOW = "mail.sender.coalesce.window";
+
+    /** Maximum number of notifications in a digest, which is sent as soon as it's reached. */
+    public static final String COALESCE_MAX_MAILS = "mail.sender.coalesce.maxMails";
+
+    /** Document holding the <tt>XWiki.Mail</tt> object the digests are rendered from. */
+    public static final String COALESCE_TEMPLATE = "mail.sender.coalesce.template";
+
+    private static final int DEFAULT_POOL_SIZE = 5;
+
+    private static final int DEFAULT_ASYNC_WORKERS = 2;
+
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+
+    private static final long DEFAULT_POOL_IDLE_TIMEOUT = 60000L;
+
+    private static final long DEFAULT_POOL_BORROW_TIMEOUT = 30000L;
+
+    private static final int DEFAULT_TEMPLATE_CACHE_SIZE = 500;
+
+    private static final long DEFAULT_RIGHTS_CACHE_TTL = 30000L;
+
+    private static final long DEFAULT_ATTACHMENT_SPILL_THRESHOLD = 10 * 1024 * 1024L;
+
+    private static final long DEFAULT_ATTACHMENT_CACHE_SIZE = 32 * 1024 * 1024L;
+
+    private static final int DEFAULT_PLAIN_CACHE_SIZE = 200;
+
+    private static final int DEFAULT_PLAIN_FAST_THRESHOLD = 256 * 1024;
+
+    private static final int DEFAULT_RECIPIENT_CHUNK_SIZE = 100;
+
+    private static final int DEFAULT_RELAY_MAX_FAILURES = 3;
+
+    private static final long DEFAULT_RELAY_EJECTION_TIME = 30000L;
+
+    private static final int DEFAULT_RETRY_MAX_ATTEMPTS = 5;
+
+    private static final long DEFAULT_RETRY_INITIAL_DELAY = 60000L;
+
+    private static final long DEFAULT_RETRY_MAX_DELAY = 3600000L;
+
+    private static final int DEFAULT_ADDRESS_CACHE_SIZE = 10000;
+
+    private static final long DEFAULT_COALESCE_WINDOW = 300000L;
+
+    private static final int DEFAULT_COALESCE_MAX_MAILS = 100;
+
+    private static final String DEFAULT_COALESCE_TEMPLATE = "XWiki.MailDigest";
+
+    private final Properties properties;
+
+    public MailSenderSettings(Properties properties)
+    {
+        this.properties = properties;
+    }
+
+    public int getPoolSize()
+    {
+        return Math.max(1, getInt(POOL_SIZE, DEFAULT_POOL_SIZE));
+    }
+
+    public long getPoolIdleTimeout()
+    {
+        return getLong(POOL_IDLE_TIMEOUT, DEFAULT_POOL_IDLE_TIMEOUT);
+    }
+
+    public long getPoolBorrowTimeout()
+    {
+        return Math.max(0, getLong(POOL_BORROW_TIMEOUT, DEFAULT_POOL_BORROW_TIMEOUT));
+    }
+
+    public int getAsyncWorkers()
+    {
+        return Math.max(1, getInt(ASYNC_WORKERS, DEFAULT_ASYNC_WORKERS));
+    }
+
+    public int getAsyncQueueSize()
+    {
+        return Math.max(1, getInt(ASYNC_QUEUE_SIZE, DEFAULT_ASYNC_QUEUE_SIZE));
+    }
+
+    public int getTemplateCacheSize()
+    {
+        return Math.max(0, getInt(TEMPLATE_CACHE_SIZE, DEFAULT_TEMPLATE_CACHE_SIZE));
+    }
+
+    public long getRightsCacheTimeToLive()
+    {
+        return getLong(RIGHTS_CACHE_TTL, DEFAULT_RIGHTS_CACHE_TTL);
+    }
+
+    public int getMergeThreads()
+    {
+        return Math.max(1, getInt(MERGE_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public long getAttachmentSpillThreshold()
+    {
+        return Math.max(0, getLong(ATTACHMENT_SPILL_THRESHOLD, DEFAULT_ATTACHMENT_SPILL_THRESHOLD));
+    }
+
+    public long getAttachmentCacheSize()
+    {
+        return Math.max(0, getLong(ATTACHMENT_CACHE_SIZE, DEFAULT_ATTACHMENT_CACHE_SIZE));
+    }
+
+    public boolean isAttachmentCacheOffHeap()
+    {
+        return getBoolean(ATTACHMENT_CACHE_OFF_HEAP, false);
+    }
+
+    public int getPlainCacheSize()
+    {
+        return Math.max(0, getInt(PLAIN_CACHE_SIZE, DEFAULT_PLAIN_CACHE_SIZE));
+    }
+
+    public int getPlainFastThreshold()
+    {
+        return Math.max(0, getInt(PLAIN_FAST_THRESHOLD, DEFAULT_PLAIN_FAST_THRESHOLD));
+    }
+
+    public int getRecipientChunkSize()
+    {
+        return Math.max(0, getInt(RECIPIENT_CHUNK_SIZE, DEFAULT_RECIPIENT_CHUNK_SIZE));
+    }
+
+    public boolean isPipelining()
+    {
+        return getBoolean(PIPELINING, true);
+    }
+
+    public double getRelayRate()
+    {
+        return getDouble(RELAY_RATE, 0);
+    }
+
+    public double getRelayBurst()
+    {
+        return getDouble(RELAY_BURST, Math.max(1, getRelayRate()));
+    }
+
+    /**
+     * @return true if the rate of at least one recipient domain is limited
+     */
+    public boolean hasDomainRates()
+    {
+        if (getDouble(DOMAIN_RATE, 0) > 0) {
+            return true;
+        }
+        for (String key : this.properties.stringPropertyNames()) {
+            if (key.startsWith(DOMAIN_RATE + '.') && getDouble(key, 0) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public double getDomainRate(String domain)
+    {
+        return getDouble(DOMAIN_RATE + '.' + domain, getDouble(DOMAIN_RATE, 0));
+    }
+
+    public double getDomainBurst(String domain)
+    {
+        return getDouble(DOMAIN_BURST + '.' + domain,
+            getDouble(DOMAIN_BURST, Math.max(1, getDomainRate(domain))));
+    }
+
+    /**
+     * @return the configured relays, empty to send through the server of the preferences
+     */
+    public List<String> getRelays()
+    {
+        return getList(RELAYS, "");
+    }
+
+    public int getRelayMaxFailures()
+    {
+        return Math.max(1, getInt(RELAY_MAX_FAILURES, DEFAULT_RELAY_MAX_FAILURES));
+    }
+
+    public long getRelayEjectionTime()
+    {
+        return Math.max(0, getLong(RELAY_EJECTION_TIME, DEFAULT_RELAY_EJECTION_TIME));
+    }
+
+    public List<String> getMimeTypesFiles()
+    {
+        return getList(MIME_TYPES_FILES, MimeTypeRegistry.SYSTEM_MIME_TYPES);
+    }
+
+    /**
+     * @return the MIME types overriding the ones of the files, per extension
+     */
+    public Map<String, String> getMimeTypes()
+    {
+        Map<String, String> types = new LinkedHashMap<String, String>();
+        for (String pair : getList(MIME_TYPES, "")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                types.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+            }
+        }
+        return types;
+    }
+
+    public int getRetryMaxAttempts()
+    {
+        return Math.max(0, getInt(RETRY_MAX_ATTEMPTS, DEFAULT_RETRY_MAX_ATTEMPTS));
+    }
+
+    public long getRetryInitialDelay()
+    {
+        return Math.max(1, getLong(RETRY_INITIAL_DELAY, DEFAULT_RETRY_INITIAL_DELAY));
+    }
+
+    public long getRetryMaxDelay()
+    {
+        return Math.max(getRetryInitialDelay(), getLong(RETRY_MAX_DELAY, DEFAULT_RETRY_MAX_DELAY));
+    }
+
+    public String getEngine()
+    {
+        return getString(ENGINE, ENGINE_JAVAMAIL).toLowerCase();
+    }
+
+    public int getAddressCacheSize()
+    {
+        return Math.max(0, getInt(ADDRESS_CACHE_SIZE, DEFAULT_ADDRESS_CACHE_SIZE));
+    }
+
+    public long getCoalesceWindow()
+    {
+        return Math.max(0, getLong(COALESCE_WINDOW, DEFAULT_COALESCE_WINDOW));
+    }
+
+    public int getCoalesceMaxMails()
+    {
+        return Math.max(1, getInt(COALESCE_MAX_MAILS, DEFAULT_COALESCE_MAX_MAILS));
+    }
+
+    public String getCoalesceTemplate()
+    {
+        return getString(COALESCE_TEMPLATE, DEFAULT_COALESCE_TEMPLATE);
+    }
+
+    protected String getString(String key, String defaultValue)
+    {
+        String value = this.properties.getProperty(key);
+        return StringUtils.isBlank(value) ? defaultValue : value.trim();
+    }
+
+    /**
+     * @return the non blank items of a comma separated value
+     */
+    protected List<String> getList(String key, String defaultValue)
+    {
+        List<String> items = new ArrayList<String>();
+        for (String item : StringUtils.split(getString(key, defaultValue), ',')) {
+            if (StringUtils.isNotBlank(item)) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
+    protected int getInt(String key, int defaultValue)
+    {
+        String value = this.properties.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    protected long getLong(String key, long defaultValue)
+    {
+        String value = this.properties.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    protected double getDouble(String key, double defaultValue)
+    {
+        String value = this.properties.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    protected boolean getBoolean(String key, boolean defaultValue)
+    {
+        String value = this.properties.getProperty(key);
+        return StringUtils.isBlank(value) ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
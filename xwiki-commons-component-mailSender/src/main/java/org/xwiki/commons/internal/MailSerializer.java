@@ -0,0 +1,156 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import com.xpn.xwiki.api.Attachment;
+import com.xpn.xwiki.doc.XWikiAttachment;
+
+/**
+ * Binary form of a {@link Mail}, used to keep mails on disk. Attachments are stored with their content and restored
+ * as standalone attachments which don't belong to any document.
+ */
+public final class MailSerializer
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private MailSerializer()
+    {
+        // Utility class
+    }
+
+    public static void write(Mail mail, DataOutput out) throws IOException
+    {
+        writeString(mail.getFrom(), out);
+        writeString(mail.getTo(), out);
+        writeString(mail.getCc(), out);
+        writeString(mail.getBcc(), out);
+        writeString(mail.getReplyTo(), out);
+        writeString(mail.getSubject(), out);
+
+        out.writeInt(mail.getHeaders().size());
+        for (Map.Entry<String, String> header : mail.getHeaders().entrySet()) {
+            writeString(header.getKey(), out);
+            writeString(header.getValue(), out);
+        }
+
+        out.writeInt(mail.getContents().size());
+        for (String[] content : mail.getContents()) {
+            writeString(content[0], out);
+            writeString(content[1], out);
+        }
+
+        out.writeInt(mail.getAttachments().size());
+        for (Attachment attachment : mail.getAttachments()) {
+            writeString(attachment.getFilename(), out);
+            byte[] data;
+            try {
+                data = attachment.getContent();
+            } catch (Exception e) {
+                throw new IOException("Failed to read the content of attachment [" + attachment.getFilename() + "]",
+                    e);
+            }
+            writeBytes(data, out);
+        }
+    }
+
+    public static Mail read(DataInput in) throws IOException
+    {
+        Mail mail = new Mail();
+        mail.setFrom(readString(in));
+        mail.setTo(readString(in));
+        mail.setCc(readString(in));
+        mail.setBcc(readString(in));
+        mail.setReplyTo(readString(in));
+        mail.setSubject(readString(in));
+
+        int headers = in.readInt();
+        for (int i = 0; i < headers; i++) {
+            mail.setHeader(readString(in), readString(in));
+        }
+
+        int contents = in.readInt();
+        for (int i = 0; i < contents; i++) {
+            mail.addContent(readString(in), readString(in));
+        }
+
+        int attachments = in.readInt();
+        for (int i = 0; i < attachments; i++) {
+            String filename = readString(in);
+            byte[] data = readBytes(in);
+            mail.addFile(createAttachment(filename, data));
+        }
+        return mail;
+    }
+
+    /**
+     * Create an attachment which doesn't belong to any document.
+     *
+     * @param filename the name of the attachment
+     * @param data its content
+     * @return the attachment
+     * @throws IOException if the content can't be set
+     */
+    public static Attachment createAttachment(String filename, byte[] data) throws IOException
+    {
+        XWikiAttachment attachment = new XWikiAttachment();
+        attachment.setFilename(filename);
+        attachment.setContent(new ByteArrayInputStream(data));
+        return new Attachment(null, attachment, null);
+    }
+
+    static void writeString(String value, DataOutput out) throws IOException
+    {
+        writeBytes(value != null ? value.getBytes(UTF8) : null, out);
+    }
+
+    static String readString(DataInput in) throws IOException
+    {
+        byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, UTF8) : null;
+    }
+
+    private static void writeBytes(byte[] value, DataOutput out) throws IOException
+    {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+
+import javax.mail.NoSuchProviderException;
+import javax.mail.Provider;
+import javax.mail.Session;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * The mail configuration of a wiki, resolved once from <tt>XWiki.XWikiPreferences</tt> and kept until the
+ * preferences are saved again. Mails are sent through the server of the preferences, or through the relays listed in
+ * {@link MailSenderSettings#RELAYS}, each with its own session and connection pool, or its own
+ * {@link NioSmtpEngine} when {@link MailSenderSettings#ENGINE} asks for it.
+ */
+public class MailServerConfiguration
+{
+    private static final String SEND_PARTIAL = "mail.smtp.sendpartial";
+
+    private static final String HOST = "mail.smtp.host";
+
+    private static final String PORT = "mail.smtp.port";
+
+    /** Properties enabling TLS, which only the JavaMail transports support. */
+    private static final String[] TLS_PROPERTIES = {"mail.smtp.ssl.enable", "mail.smtp.starttls.enable"};
+
+    private final String wiki;
+
+    private final Properties properties;
+
+    private final MailSenderSettings settings;
+
+    private final Session session;
+
+    private final RelayBalancer relays;
+
+    private final RateLimiter rateLimiter;
+
+    private volatile boolean closed;
+
+    /**
+     * @param wiki the wiki the configuration belongs to
+     * @param properties the JavaMail properties resolved from the preferences of the wiki
+     * @param rateBuckets the rate limit buckets, shared with the configurations of the other wikis
+     */
+    public MailServerConfiguration(String wiki, Properties properties, RateLimiter.Buckets rateBuckets)
+    {
+        this.wiki = wiki;
+        this.properties = properties;
+        this.settings = new MailSenderSettings(properties);
+        if (!properties.containsKey(SEND_PARTIAL)) {
+            // Send to the valid recipients even if some are rejected, the others are retried or given up separately
+            properties.setProperty(SEND_PARTIAL, "true");
+        }
+        this.session = createSession(properties);
+        this.relays = new RelayBalancer(createRelays());
+        this.rateLimiter = new RateLimiter(this.settings, rateBuckets);
+    }
+
+    private Session createSession(Properties sessionProperties)
+    {
+        Session newSession = Session.getInstance(sessionProperties, null);
+        if (this.settings.isPipelining()) {
+            enablePipelining(newSession);
+        }
+        return newSession;
+    }
+
+    /**
+     * Create the relays listed in the settings, as <tt>host[:port][*weight]</tt>. Without such list the server of the
+     * preferences is the only relay.
+     */
+    private List<SmtpRelay> createRelays()
+    {
+        List<SmtpRelay> result = new ArrayList<SmtpRelay>();
+        for (String relay : this.settings.getRelays()) {
+            String address = relay;
+            int weight = 1;
+            int star = relay.indexOf('*');
+            if (star >= 0) {
+                address = relay.substring(0, star).trim();
+                try {
+                    weight = Integer.parseInt(relay.substring(star + 1).trim());
+                } catch (NumberFormatException e) {
+                    // Keep the default weight
+                }
+            }
+            Properties relayProperties = new Properties();
+            relayProperties.putAll(this.properties);
+            int colon = address.lastIndexOf(':');
+            if (colon >= 0) {
+                relayProperties.setProperty(HOST, address.substring(0, colon));
+                relayProperties.setProperty(PORT, address.substring(colon + 1));
+            } else {
+                relayProperties.setProperty(HOST, address);
+            }
+            // Named by host and port, the key of the rate limit of the relay
+            result.add(createRelay(relayProperties.get(HOST) + ":" + relayProperties.get(PORT), weight,
+                createSession(relayProperties)));
+        }
+        if (result.isEmpty()) {
+            result.add(createRelay(this.properties.get(HOST) + ":" + this.properties.get(PORT), 1, this.session));
+        }
+        return result;
+    }
+
+    private SmtpRelay createRelay(String name, int weight, Session relaySession)
+    {
+        if (useEngine()) {
+            try {
+                MailTransportEngine engine = new NioSmtpEngine(relaySession, this.settings.getPoolSize(),
+                    this.settings.getPoolIdleTimeout());
+                return new SmtpRelay(name, weight, null, engine, this.settings.getRelayMaxFailures(),
+                    this.settings.getRelayEjectionTime());
+            } catch (MessagingException e) {
+                // Fall back on the JavaMail transports
+            }
+        }
+        TransportPool pool = new TransportPool(relaySession, this.settings.getPoolSize(),
+            this.settings.getPoolIdleTimeout(), this.settings.getPoolBorrowTimeout());
+        return new SmtpRelay(name, weight, pool, this.settings.getRelayMaxFailures(),
+            this.settings.getRelayEjectionTime());
+    }
+
+    /**
+     * @return true if the non blocking engine has been asked for and can talk to the relays
+     */
+    private boolean useEngine()
+    {
+        if (!MailSenderSettings.ENGINE_NIO.equals(this.settings.getEngine())) {
+            return false;
+        }
+        for (String tls : TLS_PROPERTIES) {
+            if ("true".equals(this.properties.getProperty(tls))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Use the pipelining transport for SMTP, unless another provider than the JavaMail one has been configured.
+     */
+    private static void enablePipelining(Session session)
+    {
+        try {
+            if (SMTPTransport.class.getName().equals(session.getProvider("smtp").getClassName())) {
+                session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp",
+                    PipeliningSmtpTransport.class.getName(), "XWiki", null));
+            }
+        } catch (NoSuchProviderException e) {
+            // No SMTP provider at all, sending will fail anyway
+        }
+    }
+
+    /**
+     * @return the wiki whose preferences this configuration has been resolved from
+     */
+    public String getWiki()
+    {
+        return this.wiki;
+    }
+
+    public Properties getProperties()
+    {
+        return this.properties;
+    }
+
+    public MailSenderSettings getSettings()
+    {
+        return this.settings;
+    }
+
+    public Session getSession()
+    {
+        return this.session;
+    }
+
+    /**
+     * @return the relays to send the mails through
+     */
+    public RelayBalancer getRelays()
+    {
+        return this.relays;
+    }
+
+    /**
+     * @return the rate limits of the relays of this configuration and of the domains sent to through them
+     */
+    public RateLimiter getRateLimiter()
+    {
+        return this.rateLimiter;
+    }
+
+    /**
+     * Release the resources held by this configuration once it has been replaced.
+     */
+    public void close()
+    {
+        this.closed = true;
+        this.relays.close();
+    }
+
+    /**
+     * @return true if this configuration has been replaced and can't be used to send mails anymore
+     */
+    public boolean isClosed()
+    {
+        return this.closed;
+    }
+}
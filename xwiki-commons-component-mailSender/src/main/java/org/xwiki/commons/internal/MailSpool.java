@@ -0,0 +1,533 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Crash safe store of the mails waiting to be sent. It's an append-only log split in segment files:
+ * <ul>
+ * <li>queuing a mail appends an <em>enqueue</em> record and waits for it to be on disk. Concurrent appenders share
+ * the same <tt>fsync</tt> (group commit) so that the throughput isn't bounded by the disk latency;</li>
+ * <li>once the mail has been sent an <em>ack</em> record is appended, without waiting for the disk. If it is lost in a
+ * crash the mail is sent again, which is better than losing it;</li>
+ * <li>the oldest segments are deleted once all their mails are acknowledged. When only a few mails keep an old
+ * segment alive they are copied at the end of the log so that the segment can be deleted (compaction).</li>
+ * </ul>
+ * Each record is {@code length, crc32, type, payload}; a torn record at the end of a segment is ignored when the log
+ * is read back.
+ */
+public class MailSpool
+{
+    /** A mail read back from the spool when it's opened. */
+    public static class Entry
+    {
+        private final String id;
+
+        private final String wiki;
+
+        private final Mail mail;
+
+        Entry(String id, String wiki, Mail mail)
+        {
+            this.id = id;
+            this.wiki = wiki;
+            this.mail = mail;
+        }
+
+        public String getId()
+        {
+            return this.id;
+        }
+
+        public String getWiki()
+        {
+            return this.wiki;
+        }
+
+        public Mail getMail()
+        {
+            return this.mail;
+        }
+    }
+
+    /** Where the enqueue record of a pending mail is. */
+    private static class Location
+    {
+        private final Segment segment;
+
+        private final long offset;
+
+        private final int length;
+
+        Location(Segment segment, long offset, int length)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment
+    {
+        private final long sequence;
+
+        private final File file;
+
+        /** Number of enqueue records written in the segment. */
+        private int records;
+
+        /** Number of those records which are not acknowledged yet. */
+        private int live;
+
+        Segment(long sequence, File file)
+        {
+            this.sequence = sequence;
+            this.file = file;
+        }
+    }
+
+    private static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** Number of segments above which the oldest one is compacted whatever the number of mails it still holds. */
+    private static final int MAX_SEGMENTS = 8;
+
+    private static final byte ENQUEUE = 1;
+
+    private static final byte ACK = 2;
+
+    /** Size of the length and checksum which precede each record. */
+    private static final int HEADER_SIZE = 8;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+
+    private final long segmentSize;
+
+    private final Object writeLock = new Object();
+
+    private final Object syncLock = new Object();
+
+    /** Segments from the oldest to the newest one, the last one being the one written to. */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    private final Map<String, Location> pending = new HashMap<String, Location>();
+
+    private Segment active;
+
+    private FileChannel channel;
+
+    /** Number of bytes written since the spool has been opened, used to know what a sync covers. */
+    private long written;
+
+    private final AtomicLong synced = new AtomicLong();
+
+    public MailSpool(File directory)
+    {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory where the segments are stored
+     * @param segmentSize the size after which a new segment is started
+     */
+    public MailSpool(File directory, long segmentSize)
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Read the existing segments and get ready to append new records.
+     *
+     * @return the mails which have not been acknowledged, in the order they have been queued
+     * @throws IOException if the spool can't be read
+     */
+    public List<Entry> open() throws IOException
+    {
+        synchronized (this.writeLock) {
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                throw new IOException("Failed to create the mail spool directory [" + this.directory + "]");
+            }
+
+            // Replay all the segments to find the mails which have not been acknowledged
+            Map<String, Location> found = new LinkedHashMap<String, Location>();
+            for (File file : listSegmentFiles()) {
+                String name = file.getName();
+                long sequence =
+                    Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(sequence, file);
+                this.segments.put(sequence, segment);
+                replay(segment, found);
+            }
+
+            List<Entry> entries = new ArrayList<Entry>(found.size());
+            for (Map.Entry<String, Location> entry : found.entrySet()) {
+                Location location = entry.getValue();
+                location.segment.live++;
+                this.pending.put(entry.getKey(), location);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(read(location)));
+                in.readByte();
+                String id = MailSerializer.readString(in);
+                String wiki = MailSerializer.readString(in);
+                entries.add(new Entry(id, wiki, MailSerializer.read(in)));
+            }
+
+            long next = this.segments.isEmpty() ? 0 : this.segments.lastKey() + 1;
+            startSegment(next);
+            deleteAcknowledgedSegments();
+
+            return entries;
+        }
+    }
+
+    /**
+     * Store a mail and wait until it's safely on disk.
+     *
+     * @param id the id of the mail
+     * @param wiki the wiki from which the mail is sent
+     * @param mail the mail
+     * @throws IOException if the mail can't be stored
+     */
+    public void append(String id, String wiki, Mail mail) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(ENQUEUE);
+        MailSerializer.writeString(id, out);
+        MailSerializer.writeString(wiki, out);
+        MailSerializer.write(mail, out);
+        out.flush();
+
+        long end;
+        synchronized (this.writeLock) {
+            Location location = write(buffer.toByteArray());
+            location.segment.records++;
+            location.segment.live++;
+            this.pending.put(id, location);
+            end = this.written;
+            rollIfNeeded();
+        }
+        sync(end);
+    }
+
+    /**
+     * Mark a mail as sent, it won't be returned by {@link #open()} anymore.
+     *
+     * @param id the id of the mail
+     * @throws IOException if the acknowledgement can't be written
+     */
+    public void acknowledge(String id) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(ACK);
+        MailSerializer.writeString(id, out);
+        out.flush();
+
+        synchronized (this.writeLock) {
+            Location location = this.pending.remove(id);
+            if (location == null) {
+                return;
+            }
+            location.segment.live--;
+            write(buffer.toByteArray());
+            rollIfNeeded();
+            deleteAcknowledgedSegments();
+            compactOldestSegment();
+        }
+    }
+
+    /**
+     * @return the number of mails which have not been acknowledged
+     */
+    public int size()
+    {
+        synchronized (this.writeLock) {
+            return this.pending.size();
+        }
+    }
+
+    /**
+     * Flush and close the current segment.
+     */
+    public void close()
+    {
+        synchronized (this.writeLock) {
+            if (this.channel != null) {
+                try {
+                    this.channel.force(false);
+                    this.channel.close();
+                } catch (IOException e) {
+                    // Nothing more can be done, the unacknowledged mails will be sent again
+                }
+                this.channel = null;
+            }
+        }
+    }
+
+    /**
+     * Wait until everything written up to the given position is on disk. The first thread to get here does the
+     * {@code fsync} for all the records appended before it started; the others usually find their record already
+     * covered.
+     */
+    private void sync(long position) throws IOException
+    {
+        synchronized (this.syncLock) {
+            if (this.synced.get() >= position) {
+                return;
+            }
+            long upTo;
+            FileChannel current;
+            synchronized (this.writeLock) {
+                upTo = this.written;
+                current = this.channel;
+            }
+            // Null once the spool is closed, which forces the segment to disk
+            if (current != null) {
+                try {
+                    current.force(false);
+                } catch (ClosedChannelException e) {
+                    // The segment has been rolled over, which forces it to disk
+                }
+            }
+            if (upTo > this.synced.get()) {
+                this.synced.set(upTo);
+            }
+        }
+    }
+
+    /** Must be called with the write lock held. */
+    private Location write(byte[] payload) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+
+        long offset = this.channel.position();
+        while (record.hasRemaining()) {
+            this.channel.write(record);
+        }
+        this.written += HEADER_SIZE + payload.length;
+        return new Location(this.active, offset, payload.length);
+    }
+
+    /** Must be called with the write lock held. */
+    private void rollIfNeeded() throws IOException
+    {
+        if (this.channel.position() >= this.segmentSize) {
+            startSegment(this.active.sequence + 1);
+        }
+    }
+
+    /** Must be called with the write lock held. */
+    private void startSegment(long sequence) throws IOException
+    {
+        if (this.channel != null) {
+            this.channel.force(false);
+            this.channel.close();
+            if (this.written > this.synced.get()) {
+                this.synced.set(this.written);
+            }
+        }
+        Segment segment = new Segment(sequence, new File(this.directory, segmentName(sequence)));
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        this.channel = file.getChannel();
+        this.channel.position(this.channel.size());
+        this.segments.put(sequence, segment);
+        this.active = segment;
+    }
+
+    /**
+     * Delete the oldest segments as long as all their mails are acknowledged. Segments are only deleted from the
+     * oldest one so that an acknowledgement is never lost while the mail it refers to is still on disk.
+     */
+    private void deleteAcknowledgedSegments()
+    {
+        while (!this.segments.isEmpty()) {
+            Segment oldest = this.segments.firstEntry().getValue();
+            if (oldest == this.active || oldest.live > 0) {
+                break;
+            }
+            this.segments.remove(oldest.sequence);
+            oldest.file.delete();
+        }
+    }
+
+    /**
+     * When few mails are keeping the oldest segment alive, or when there are too many segments, copy the pending
+     * mails of the oldest segment to the current one so that it can be deleted.
+     */
+    private void compactOldestSegment() throws IOException
+    {
+        if (this.segments.size() < 2) {
+            return;
+        }
+        Segment oldest = this.segments.firstEntry().getValue();
+        if (oldest == this.active || (oldest.live * 4 > oldest.records && this.segments.size() <= MAX_SEGMENTS)) {
+            return;
+        }
+        List<Map.Entry<String, Location>> moved = new ArrayList<Map.Entry<String, Location>>();
+        for (Map.Entry<String, Location> entry : this.pending.entrySet()) {
+            if (entry.getValue().segment == oldest) {
+                moved.add(entry);
+            }
+        }
+        for (Map.Entry<String, Location> entry : moved) {
+            Location copy = write(read(entry.getValue()));
+            copy.segment.records++;
+            copy.segment.live++;
+            oldest.live--;
+            this.pending.put(entry.getKey(), copy);
+        }
+        // The copies must be on disk before the originals are deleted
+        this.channel.force(false);
+        if (this.written > this.synced.get()) {
+            this.synced.set(this.written);
+        }
+        deleteAcknowledgedSegments();
+        rollIfNeeded();
+    }
+
+    private byte[] read(Location location) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        if (location.segment == this.active && this.channel != null) {
+            readFully(this.channel, buffer, location.offset + HEADER_SIZE);
+        } else {
+            RandomAccessFile file = new RandomAccessFile(location.segment.file, "r");
+            try {
+                readFully(file.getChannel(), buffer, location.offset + HEADER_SIZE);
+            } finally {
+                file.close();
+            }
+        }
+        return buffer.array();
+    }
+
+    private void readFully(FileChannel from, ByteBuffer buffer, long position) throws IOException
+    {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            int count = from.read(buffer, current);
+            if (count < 0) {
+                throw new IOException("Unexpected end of the mail spool segment");
+            }
+            current += count;
+        }
+    }
+
+    /**
+     * Read the records of a segment. A torn or corrupted record ends the segment: it's truncated there so that new
+     * records are never written after garbage.
+     */
+    private void replay(Segment segment, Map<String, Location> found) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        try {
+            FileChannel in = file.getChannel();
+            long size = in.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(in, header, position);
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length <= 0 || position + HEADER_SIZE + length > size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(in, payload, position + HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload.array()));
+                byte type = data.readByte();
+                String id = MailSerializer.readString(data);
+                if (type == ENQUEUE) {
+                    segment.records++;
+                    found.remove(id);
+                    found.put(id, new Location(segment, position, length));
+                } else if (type == ACK) {
+                    found.remove(id);
+                }
+                position += HEADER_SIZE + length;
+            }
+            if (position < size) {
+                in.truncate(position);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private List<File> listSegmentFiles()
+    {
+        File[] files = this.directory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        // The sequence number is zero padded so the names sort in sequence order
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private String segmentName(long sequence)
+    {
+        return String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX);
+    }
+}
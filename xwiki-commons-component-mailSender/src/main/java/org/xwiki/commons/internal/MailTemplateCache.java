@@ -0,0 +1,214 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Caches what {@code sendMailFromTemplate} needs before rendering: the <tt>XWiki.Mail</tt> object to use for a
+ * (wiki, template, language) and whether a user may view a template. Templates are kept until their document changes,
+ * rights for a short time and until rights change.
+ */
+public class MailTemplateCache
+{
+    /** A template document and the sources of the <tt>XWiki.Mail</tt> object matching a language. */
+    public static class ResolvedTemplate
+    {
+        private final DocumentReference reference;
+
+        private final int objectNumber;
+
+        private final String subject;
+
+        private final String text;
+
+        private final String html;
+
+        public ResolvedTemplate(DocumentReference reference, int objectNumber, String subject, String text,
+            String html)
+        {
+            this.reference = reference;
+            this.objectNumber = objectNumber;
+            this.subject = subject;
+            this.text = text;
+            this.html = html;
+        }
+
+        public DocumentReference getReference()
+        {
+            return this.reference;
+        }
+
+        public int getObjectNumber()
+        {
+            return this.objectNumber;
+        }
+
+        public String getSubject()
+        {
+            return this.subject;
+        }
+
+        public String getText()
+        {
+            return this.text;
+        }
+
+        public String getHtml()
+        {
+            return this.html;
+        }
+    }
+
+    private static class ViewRight
+    {
+        private final boolean granted;
+
+        private final long expiration;
+
+        ViewRight(boolean granted, long expiration)
+        {
+            this.granted = granted;
+            this.expiration = expiration;
+        }
+    }
+
+    private final Map<String, ResolvedTemplate> templates;
+
+    private final Map<String, ViewRight> rights;
+
+    private final long rightsTimeToLive;
+
+    /**
+     * @param maxEntries the maximum number of templates and of rights kept
+     * @param rightsTimeToLive the time in milliseconds during which a right is cached
+     */
+    public MailTemplateCache(int maxEntries, long rightsTimeToLive)
+    {
+        this.templates = new LruMap<ResolvedTemplate>(maxEntries);
+        this.rights = new LruMap<ViewRight>(maxEntries);
+        this.rightsTimeToLive = rightsTimeToLive;
+    }
+
+    /**
+     * @param templateKey identifies the template document, as returned by the mail sender
+     * @param language the requested language
+     * @return the cached template or null
+     */
+    public ResolvedTemplate getTemplate(String templateKey, String language)
+    {
+        synchronized (this.templates) {
+            return this.templates.get(templateKey + language);
+        }
+    }
+
+    public void putTemplate(String templateKey, String language, ResolvedTemplate template)
+    {
+        synchronized (this.templates) {
+            this.templates.put(templateKey + language, template);
+        }
+    }
+
+    /**
+     * @param user the user sending the mail
+     * @param templateKey identifies the template document
+     * @return whether the user can view the template, or null if it's not known
+     */
+    public Boolean hasViewRight(String user, String templateKey)
+    {
+        ViewRight right;
+        synchronized (this.rights) {
+            right = this.rights.get(user + '|' + templateKey);
+        }
+        if (right == null || right.expiration < System.currentTimeMillis()) {
+            return null;
+        }
+        return right.granted;
+    }
+
+    public void putViewRight(String user, String templateKey, boolean granted)
+    {
+        if (this.rightsTimeToLive > 0) {
+            synchronized (this.rights) {
+                this.rights.put(user + '|' + templateKey, new ViewRight(granted, System.currentTimeMillis()
+                    + this.rightsTimeToLive));
+            }
+        }
+    }
+
+    /**
+     * Forget the cached template and rights of a document.
+     *
+     * @param templateKey identifies the template document
+     */
+    public void invalidateTemplate(String templateKey)
+    {
+        synchronized (this.templates) {
+            removeKeys(this.templates, templateKey, false);
+        }
+        synchronized (this.rights) {
+            removeKeys(this.rights, '|' + templateKey, true);
+        }
+    }
+
+    /**
+     * Forget all the cached rights.
+     */
+    public void invalidateRights()
+    {
+        synchronized (this.rights) {
+            this.rights.clear();
+        }
+    }
+
+    private void removeKeys(Map<String, ? > map, String part, boolean suffix)
+    {
+        Iterator<String> it = map.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (suffix ? key.endsWith(part) : key.startsWith(part)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class LruMap<V> extends LinkedHashMap<String, V>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        LruMap(int maxEntries)
+        {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest)
+        {
+            return size() > this.maxEntries;
+        }
+    }
+}
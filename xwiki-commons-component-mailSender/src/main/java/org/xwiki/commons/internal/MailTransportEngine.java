@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.concurrent.Future;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends messages to a single SMTP relay without tying a thread to each connection, as an alternative to the pooled
+ * JavaMail transports. The engine opens and reuses its connections itself.
+ */
+public interface MailTransportEngine
+{
+    /**
+     * Queue a message for sending.
+     *
+     * @param message the message to send, serialized before this method returns
+     * @param recipients the envelope recipients
+     * @return completed once the relay has accepted or refused the message; {@link Future#get()} throws an
+     *         {@link java.util.concurrent.ExecutionException} caused by a {@link javax.mail.SendFailedException} if
+     *         some recipients were refused, or by a {@link MessagingException} if the message could not be sent at
+     *         all
+     * @throws MessagingException if the message can't be serialized or the engine is closed
+     */
+    Future<Void> submit(MimeMessage message, Address[] recipients) throws MessagingException;
+
+    /**
+     * @return the number of messages submitted and not answered yet
+     */
+    int getPendingCount();
+
+    /**
+     * Close the connections. The messages not sent yet fail.
+     */
+    void close();
+}
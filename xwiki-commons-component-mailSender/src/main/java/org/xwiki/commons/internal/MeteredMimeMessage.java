@@ -0,0 +1,119 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+/**
+ * Message adding the number of bytes written to the transport to the {@link MailSenderMetrics}.
+ */
+public class MeteredMimeMessage extends MimeMessage
+{
+    private final MailSenderMetrics metrics;
+
+    public MeteredMimeMessage(Session session, MailSenderMetrics metrics)
+    {
+        super(session);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException
+    {
+        CountingOutputStream out = new CountingOutputStream(os);
+        try {
+            super.writeTo(out, ignoreList);
+        } finally {
+            this.metrics.addBytesSent(out.count);
+        }
+    }
+
+    /**
+     * Compute the size of a message as written to the transport, line endings converted to CRLF, e.g. to announce it
+     * to the server. The bytes written to compute it are not counted as sent.
+     *
+     * @param message the message to measure
+     * @param ignoreList the headers which are not written
+     * @return the size of the message in bytes
+     * @throws IOException if the content of the message can't be read
+     * @throws MessagingException if the message can't be written
+     */
+    public static long getSize(MimeMessage message, String[] ignoreList) throws IOException, MessagingException
+    {
+        CountingOutputStream out = new CountingOutputStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                // Only counted
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                // Only counted
+            }
+        });
+        OutputStream crlf = new CRLFOutputStream(out);
+        if (message instanceof MeteredMimeMessage) {
+            ((MeteredMimeMessage) message).writeUnmetered(crlf, ignoreList);
+        } else {
+            message.writeTo(crlf, ignoreList);
+        }
+        return out.count;
+    }
+
+    private void writeUnmetered(OutputStream os, String[] ignoreList) throws IOException, MessagingException
+    {
+        super.writeTo(os, ignoreList);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        private long count;
+
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+}
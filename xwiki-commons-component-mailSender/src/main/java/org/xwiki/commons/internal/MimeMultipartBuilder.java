@@ -0,0 +1,182 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMultipart;
+
+import com.xpn.xwiki.api.Attachment;
+
+/**
+ * Builds the MIME structure of a {@link Mail}: the alternative contents, the images referenced by <tt>cid:</tt> URLs
+ * in the HTML contents grouped with them in <tt>related</tt> parts, and the other attachments in a <tt>mixed</tt>
+ * wrapper. The attachments are indexed by file name so that the work is linear in the size of the contents plus the
+ * number of attachments, and an image referenced several times by the same HTML content is only embedded once. When
+ * several attachments have the same name, the first one is embedded and the others are attached.
+ */
+public class MimeMultipartBuilder
+{
+    /** Matches the images embedded in an HTML content, the file name being the second group. */
+    private static final Pattern CID_PATTERN = Pattern.compile("src=('|\")cid:([^'\"]*)('|\")",
+        Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
+    private static final String TEXT_PLAIN = "text/plain";
+
+    private static final String TEXT_HTML = "text/html";
+
+    private static final String CHARSET = "; charset=";
+
+    /** Creates the parts which depend on the mail sender configuration. */
+    public interface PartFactory
+    {
+        /**
+         * @param attachment an attachment of the mail
+         * @return the part holding it
+         */
+        MimeBodyPart createAttachmentPart(Attachment attachment);
+
+        /**
+         * @param html an HTML content
+         * @return its plain text version, or null if it can't be converted
+         */
+        String createPlain(String html);
+    }
+
+    private final PartFactory partFactory;
+
+    private final String encoding;
+
+    /**
+     * @param partFactory creates the attachment and plain text parts
+     * @param encoding the charset of the text contents
+     */
+    public MimeMultipartBuilder(PartFactory partFactory, String encoding)
+    {
+        this.partFactory = partFactory;
+        this.encoding = encoding;
+    }
+
+    /**
+     * @param mail the mail
+     * @return the content of the message
+     * @throws MessagingException if a part can't be created
+     */
+    public Multipart build(Mail mail) throws MessagingException
+    {
+        Multipart contentsMultipart = new MimeMultipart("alternative");
+
+        if (mail.getContents().size() == 1) // To add an alternative plain part
+        {
+            String[] content = mail.getContents().get(0);
+            if (content[0].equals(TEXT_PLAIN)) {
+                contentsMultipart.addBodyPart(createTextPart(content[1], content[0]));
+            }
+            if (content[0].equals(TEXT_HTML)) {
+                contentsMultipart.addBodyPart(createTextPart(this.partFactory.createPlain(content[1]), TEXT_PLAIN));
+            }
+        }
+
+        Map<String, Attachment> attachmentsByName = new HashMap<String, Attachment>();
+        for (Attachment attachment : mail.getAttachments()) {
+            if (!attachmentsByName.containsKey(attachment.getFilename())) {
+                attachmentsByName.put(attachment.getFilename(), attachment);
+            }
+        }
+        Set<Attachment> embeddedImages = Collections.newSetFromMap(new IdentityHashMap<Attachment, Boolean>());
+
+        for (String[] content : mail.getContents()) {
+            BodyPart contentPart = createTextPart(content[1], content[0]);
+            Set<String> related = content[0].equals(TEXT_HTML) ? findEmbeddedImages(content[1], attachmentsByName)
+                : null;
+            if (related != null && !related.isEmpty()) {
+                Multipart htmlMultipart = new MimeMultipart("related");
+                htmlMultipart.addBodyPart(contentPart);
+                for (String filename : related) {
+                    Attachment image = attachmentsByName.get(filename);
+                    htmlMultipart.addBodyPart(this.partFactory.createAttachmentPart(image));
+                    embeddedImages.add(image);
+                }
+                BodyPart htmlWrapper = new MimeBodyPart();
+                htmlWrapper.setContent(htmlMultipart);
+                contentsMultipart.addBodyPart(htmlWrapper);
+            } else {
+                contentsMultipart.addBodyPart(contentPart);
+            }
+        }
+
+        Multipart attachmentsMultipart = null;
+        for (Attachment attachment : mail.getAttachments()) {
+            if (!embeddedImages.contains(attachment)) {
+                if (attachmentsMultipart == null) {
+                    attachmentsMultipart = new MimeMultipart();
+                }
+                attachmentsMultipart.addBodyPart(this.partFactory.createAttachmentPart(attachment));
+            }
+        }
+        if (attachmentsMultipart != null) {
+            Multipart wrapper = new MimeMultipart("mixed");
+            BodyPart body = new MimeBodyPart();
+            body.setContent(contentsMultipart);
+            wrapper.addBodyPart(body);
+            BodyPart attachments = new MimeBodyPart();
+            attachments.setContent(attachmentsMultipart);
+            wrapper.addBodyPart(attachments);
+            return wrapper;
+        }
+        return contentsMultipart;
+    }
+
+    /**
+     * @return the names of the attachments referenced by the HTML content, in order of first reference
+     */
+    private Set<String> findEmbeddedImages(String html, Map<String, Attachment> attachmentsByName)
+    {
+        Set<String> found = new LinkedHashSet<String>();
+        Matcher matcher = CID_PATTERN.matcher(html);
+        while (matcher.find()) {
+            String filename = matcher.group(2);
+            if (attachmentsByName.containsKey(filename)) {
+                found.add(filename);
+            }
+        }
+        return found;
+    }
+
+    private BodyPart createTextPart(String text, String contentType) throws MessagingException
+    {
+        BodyPart part = new MimeBodyPart();
+        part.setContent(text, contentType + CHARSET + this.encoding);
+        part.setHeader("Content-Disposition", "inline");
+        part.setHeader("Content-Transfer-Encoding", "quoted-printable");
+        return part;
+    }
+}
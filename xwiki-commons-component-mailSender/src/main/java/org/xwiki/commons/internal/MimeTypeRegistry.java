@@ -0,0 +1,285 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Maps file extensions to MIME types, case insensitively. The built-in types ({@link MimeTypesUtil#MIME_TYPES} and
+ * the common types it lacks) are completed by the files in the <tt>mime.types</tt> format of the system, which only
+ * add the extensions not known yet, then replaced by explicit overrides. When the extension is unknown the type is
+ * guessed from the first bytes of the content.
+ */
+public class MimeTypeRegistry
+{
+    /** The type of the content whose type is not known. */
+    public static final String DEFAULT_TYPE = "application/octet-stream";
+
+    /** Where the system lists its MIME types. */
+    public static final String SYSTEM_MIME_TYPES = "/etc/mime.types";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /** Types missing from the legacy table, or which have changed since then. */
+    private static final String[][] MODERN_TYPES = {{"application/json", "json"}, {"application/xml", "xml"},
+        {"application/javascript", "js"}, {"application/pdf", "pdf"}, {"application/rtf", "rtf"},
+        {"application/epub+zip", "epub"}, {"application/x-7z-compressed", "7z"},
+        {"application/x-rar-compressed", "rar"}, {"application/x-bzip2", "bz2"}, {"application/gzip", "tgz"},
+        {"application/x-xz", "xz"},
+        {"application/vnd.ms-excel", "xls"}, {"application/vnd.ms-powerpoint", "ppt"},
+        {"application/vnd.openxmlformats-officedocument.wordprocessingml.document", "docx"},
+        {"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "xlsx"},
+        {"application/vnd.openxmlformats-officedocument.presentationml.presentation", "pptx"},
+        {"application/vnd.oasis.opendocument.text", "odt"}, {"application/vnd.oasis.opendocument.spreadsheet", "ods"},
+        {"application/vnd.oasis.opendocument.presentation", "odp"},
+        {"application/vnd.oasis.opendocument.graphics", "odg"}, {"application/xhtml+xml", "xhtml"},
+        {"audio/ogg", "ogg"}, {"audio/ogg", "oga"}, {"audio/flac", "flac"}, {"audio/mp4", "m4a"},
+        {"audio/webm", "weba"}, {"image/svg+xml", "svg"}, {"image/webp", "webp"}, {"image/bmp", "bmp"},
+        {"image/x-icon", "ico"}, {"image/heic", "heic"}, {"image/avif", "avif"}, {"text/css", "css"},
+        {"text/csv", "csv"}, {"text/calendar", "ics"}, {"text/markdown", "md"}, {"text/vcard", "vcf"},
+        {"video/mp4", "mp4"}, {"video/mp4", "m4v"}, {"video/webm", "webm"}, {"video/ogg", "ogv"},
+        {"video/x-matroska", "mkv"}, {"font/woff", "woff"}, {"font/woff2", "woff2"}, {"font/ttf", "ttf"},
+        {"font/otf", "otf"}};
+
+    private static volatile MimeTypeRegistry defaultRegistry;
+
+    private final Map<String, String> types = new HashMap<String, String>(4096);
+
+    /**
+     * Create a registry holding the built-in types only.
+     */
+    public MimeTypeRegistry()
+    {
+        register(MimeTypesUtil.MIME_TYPES);
+        register(MODERN_TYPES);
+    }
+
+    /**
+     * @param files the files in the <tt>mime.types</tt> format completing the built-in types, the first file giving
+     *            the type of an extension winning; the missing ones are skipped
+     * @param overrides the types to use whatever the files say, per extension
+     * @throws IOException if an existing file can't be read
+     */
+    public MimeTypeRegistry(List<String> files, Map<String, String> overrides) throws IOException
+    {
+        this();
+        for (String file : files) {
+            File mimeTypes = new File(file);
+            if (mimeTypes.isFile()) {
+                Reader reader = new InputStreamReader(new FileInputStream(mimeTypes), ASCII);
+                try {
+                    load(reader);
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+        for (Map.Entry<String, String> override : overrides.entrySet()) {
+            register(override.getKey(), override.getValue());
+        }
+    }
+
+    /**
+     * @return the registry with the built-in and the system types, used when no configured registry is available
+     */
+    public static MimeTypeRegistry getDefault()
+    {
+        MimeTypeRegistry registry = defaultRegistry;
+        if (registry == null) {
+            try {
+                registry =
+                    new MimeTypeRegistry(Collections.singletonList(SYSTEM_MIME_TYPES),
+                        Collections.<String, String> emptyMap());
+            } catch (IOException e) {
+                registry = new MimeTypeRegistry();
+            }
+            defaultRegistry = registry;
+        }
+        return registry;
+    }
+
+    /**
+     * Read types in the <tt>mime.types</tt> format: a type followed by its extensions on each line, <tt>#</tt>
+     * starting a comment. The extensions already known keep their type.
+     *
+     * @param reader the types to read
+     * @throws IOException if the types can't be read
+     */
+    public void load(Reader reader) throws IOException
+    {
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            String[] tokens = StringUtils.split(line);
+            for (int i = 1; i < tokens.length; i++) {
+                String extension = tokens[i].toLowerCase(Locale.ENGLISH);
+                if (!this.types.containsKey(extension)) {
+                    this.types.put(extension, tokens[0]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param extension a file extension, without the dot
+     * @param type the MIME type of the files having this extension
+     */
+    public void register(String extension, String type)
+    {
+        this.types.put(extension.toLowerCase(Locale.ENGLISH), type);
+    }
+
+    private void register(String[][] typesAndExtensions)
+    {
+        for (String[] typeAndExtension : typesAndExtensions) {
+            register(typeAndExtension[1], typeAndExtension[0]);
+        }
+    }
+
+    /**
+     * @param filename a file name
+     * @return the MIME type matching the extension of the file name, null if it's unknown
+     */
+    public String getTypeFromFilename(String filename)
+    {
+        if (filename == null) {
+            return null;
+        }
+        int index = filename.lastIndexOf('.');
+        String extension = index >= 0 ? filename.substring(index + 1) : filename;
+        return extension.length() > 0 ? this.types.get(extension.toLowerCase(Locale.ENGLISH)) : null;
+    }
+
+    /**
+     * @param filename the name of the file
+     * @param content the content of the file, or at least its first bytes, null if not known
+     * @return the MIME type matching the extension of the file name, or else the one matching its content, or else
+     *         {@link #DEFAULT_TYPE}
+     */
+    public String getType(String filename, byte[] content)
+    {
+        String type = getTypeFromFilename(filename);
+        if (type == null && content != null) {
+            type = sniff(content);
+        }
+        return type != null ? type : DEFAULT_TYPE;
+    }
+
+    /**
+     * Guess the type of a content from its magic bytes.
+     *
+     * @param content the content, or at least its first bytes
+     * @return the type of the content, null if it isn't recognized
+     */
+    public static String sniff(byte[] content)
+    {
+        if (startsWith(content, 0, 0x25, 0x50, 0x44, 0x46, 0x2D)) {
+            return "application/pdf";
+        } else if (startsWith(content, 0, 0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return "image/png";
+        } else if (startsWith(content, 0, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        } else if (startsWith(content, 0, 0x47, 0x49, 0x46, 0x38)) {
+            return "image/gif";
+        } else if (startsWith(content, 0, 0x52, 0x49, 0x46, 0x46) && startsWith(content, 8, 0x57, 0x45, 0x42, 0x50)) {
+            return "image/webp";
+        } else if (startsWith(content, 0, 0x52, 0x49, 0x46, 0x46) && startsWith(content, 8, 0x57, 0x41, 0x56, 0x45)) {
+            return "audio/x-wav";
+        } else if (startsWith(content, 0, 0x49, 0x49, 0x2A, 0x00) || startsWith(content, 0, 0x4D, 0x4D, 0x00, 0x2A)) {
+            return "image/tiff";
+        } else if (startsWith(content, 0, 0x42, 0x4D)) {
+            return "image/bmp";
+        } else if (startsWith(content, 0, 0x50, 0x4B, 0x03, 0x04)) {
+            return "application/zip";
+        } else if (startsWith(content, 0, 0x1F, 0x8B)) {
+            return "application/gzip";
+        } else if (startsWith(content, 0, 0x37, 0x7A, 0xBC, 0xAF, 0x27, 0x1C)) {
+            return "application/x-7z-compressed";
+        } else if (startsWith(content, 0, 0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1)) {
+            // Legacy Office documents, Word being the most frequent
+            return "application/msword";
+        } else if (startsWith(content, 0, 0x4F, 0x67, 0x67, 0x53)) {
+            return "audio/ogg";
+        } else if (startsWith(content, 0, 0x49, 0x44, 0x33) || startsWith(content, 0, 0xFF, 0xFB)) {
+            return "audio/mpeg";
+        } else if (startsWith(content, 4, 0x66, 0x74, 0x79, 0x70)) {
+            return "video/mp4";
+        } else if (startsWith(content, 0, 0x7B, 0x5C, 0x72, 0x74, 0x66)) {
+            return "application/rtf";
+        } else if (startsWith(content, 0, 0x25, 0x21, 0x50, 0x53)) {
+            return "application/postscript";
+        }
+        return sniffText(content);
+    }
+
+    private static String sniffText(byte[] content)
+    {
+        int offset = 0;
+        // Skip the UTF-8 byte order mark and the leading white spaces
+        if (startsWith(content, 0, 0xEF, 0xBB, 0xBF)) {
+            offset = 3;
+        }
+        int length = Math.min(content.length, offset + 256);
+        while (offset < length && Character.isWhitespace(content[offset])) {
+            offset++;
+        }
+        String start = new String(content, offset, length - offset, ASCII).toLowerCase(Locale.ENGLISH);
+        if (start.startsWith("<svg") || (start.startsWith("<?xml") && start.contains("<svg"))) {
+            return "image/svg+xml";
+        } else if (start.startsWith("<!doctype html") || start.startsWith("<html")) {
+            return "text/html";
+        } else if (start.startsWith("<?xml")) {
+            return "application/xml";
+        } else if (start.startsWith("begin:vcalendar")) {
+            return "text/calendar";
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] content, int offset, int... magic)
+    {
+        if (content.length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((content[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
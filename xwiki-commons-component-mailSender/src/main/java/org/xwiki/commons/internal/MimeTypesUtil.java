@@ -50,26 +50,13 @@ public class MimeTypesUtil {
         {"x-conference/x-cooltalk", "ice"}, {"x-world/x-vrml", "wrl"}, {"x-world/x-vrml", "vrml"}};
 
 
+    /**
+     * @param filename a file name
+     * @return the MIME type matching its extension, whatever its case, <tt>application/octet-stream</tt> if unknown
+     * @see MimeTypeRegistry
+     */
     public static String getMimeTypeFromFilename(String filename)
     {
-        int index = filename.lastIndexOf(".");
-        String extension = filename;
-        if (index != -1) {
-            if (index == filename.length())
-                return ("application/octet-stream");
-            else
-                extension = filename.substring(index + 1);
-        }
-        String type = null;
-        for (int i = 0; i < MIME_TYPES.length; i++) {
-            if (MIME_TYPES[i][1].equals(extension)) {
-               type = MIME_TYPES[i][0];
-               break;
-            }
-        }
-        if (type == null)
-            return ("application/octet-stream");
-        else
-            return (type);
+        return MimeTypeRegistry.getDefault().getType(filename, null);
     }
 }
@@ -0,0 +1,961 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import com.sun.mail.util.BASE64EncoderStream;
+
+/**
+ * {@link MailTransportEngine} built on a non blocking SMTP client: a single thread multiplexes all the connections to
+ * the relay with a {@link Selector}, so that many messages can be in flight without a thread blocked on each of them.
+ * The envelope is sent in a single write when the server supports <tt>PIPELINING</tt> (RFC 2920) and the content
+ * with <tt>BDAT</tt>, without dot stuffing, when it supports <tt>CHUNKING</tt> (RFC 3030). Connections are reused
+ * between messages and closed once idle longer than the configured timeout. SSL and STARTTLS are not supported.
+ */
+public class NioSmtpEngine implements MailTransportEngine
+{
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Headers JavaMail doesn't send either. */
+    private static final String[] IGNORED_HEADERS = {"Bcc", "Content-Length"};
+
+    private static final Address[] NONE = new Address[0];
+
+    private static final String CRLF = "\r\n";
+
+    private static final String PIPELINING = "PIPELINING";
+
+    private static final String CHUNKING = "CHUNKING";
+
+    private static final String SIZE = "SIZE";
+
+    private static final String AUTH = "AUTH";
+
+    private static final String RSET = "RSET";
+
+    /** Longest time the selector waits, so that the timeouts are checked regularly. */
+    private static final long TICK = 200;
+
+    private static final long DEFAULT_TIMEOUT = 60000L;
+
+    private static final int DEFAULT_PORT = 25;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int OK = 250;
+
+    private enum State
+    {
+        CONNECTING, GREETING, EHLO, HELO, AUTH, IDLE, MAIL, RCPT, DATA, BODY, RSET
+    }
+
+    private final Session session;
+
+    private final String host;
+
+    private final int port;
+
+    private final String localHost;
+
+    private final String username;
+
+    private final String password;
+
+    private final int maxConnections;
+
+    private final long idleTimeout;
+
+    private final long connectionTimeout;
+
+    private final long timeout;
+
+    private final Selector selector;
+
+    private final Queue<Job> jobs = new ConcurrentLinkedQueue<Job>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** Only accessed by the selector thread. */
+    private final List<Connection> connections = new ArrayList<Connection>();
+
+    private volatile boolean closed;
+
+    /**
+     * A message waiting to be sent or being sent.
+     */
+    static final class Job implements Future<Void>
+    {
+        private final String from;
+
+        private final Address[] recipients;
+
+        private final String[] addresses;
+
+        /** Headers sent before the content, specific to the recipients of a {@link FanOutMessage}. */
+        private final byte[] head;
+
+        private final byte[] content;
+
+        /** The message whose content is shared with other jobs, null if the content is only used by this job. */
+        private final FanOutMessage shared;
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile MessagingException failure;
+
+        /** Whether the job has already been queued again after its connection was dropped. */
+        private boolean requeued;
+
+        private boolean settled;
+
+        Job(String from, Address[] recipients, byte[] content)
+        {
+            this(from, recipients, new byte[0], content, null);
+        }
+
+        Job(String from, Address[] recipients, byte[] head, byte[] content, FanOutMessage shared)
+        {
+            this.from = from;
+            this.recipients = recipients;
+            this.addresses = new String[recipients.length];
+            for (int i = 0; i < recipients.length; i++) {
+                this.addresses[i] = recipients[i] instanceof InternetAddress
+                    ? ((InternetAddress) recipients[i]).getAddress() : recipients[i].toString();
+            }
+            this.head = head;
+            this.content = content;
+            this.shared = shared;
+        }
+
+        long getLength()
+        {
+            return this.head.length + this.content.length;
+        }
+
+        /**
+         * @return the content as sent after <tt>DATA</tt>, stuffed once for all the copies of a shared message
+         */
+        byte[] getStuffedContent()
+        {
+            return this.shared != null ? this.shared.getStuffedBody() : dotStuff(this.content);
+        }
+
+        /**
+         * @return false if the job was already completed
+         */
+        synchronized boolean settle(MessagingException result)
+        {
+            if (this.settled) {
+                return false;
+            }
+            this.settled = true;
+            this.failure = result;
+            return true;
+        }
+
+        void release()
+        {
+            this.done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return this.done.getCount() == 0;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException
+        {
+            this.done.await();
+            return report();
+        }
+
+        @Override
+        public Void get(long time, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if (!this.done.await(time, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private Void report() throws ExecutionException
+        {
+            if (this.failure != null) {
+                throw new ExecutionException(this.failure);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param session the session whose <tt>mail.smtp.*</tt> properties give the server, the credentials and the
+     *            timeouts
+     * @param maxConnections the maximum number of connections opened at the same time
+     * @param idleTimeout time in milliseconds after which an idle connection is closed, 0 to keep them forever
+     * @throws MessagingException if the selector can't be opened
+     */
+    public NioSmtpEngine(Session session, int maxConnections, long idleTimeout) throws MessagingException
+    {
+        this.session = session;
+        this.host = session.getProperties().getProperty("mail.smtp.host", "localhost");
+        Object configuredPort = session.getProperties().get("mail.smtp.port");
+        this.port = configuredPort != null ? Integer.parseInt(configuredPort.toString().trim()) : DEFAULT_PORT;
+        this.localHost = getLocalHost(session);
+        if ("true".equals(session.getProperty("mail.smtp.auth"))) {
+            this.username = StringUtils.defaultString(session.getProperty("mail.smtp.server.username"));
+            this.password = StringUtils.defaultString(session.getProperty("mail.smtp.server.password"));
+        } else {
+            this.username = null;
+            this.password = null;
+        }
+        this.maxConnections = Math.max(1, maxConnections);
+        this.idleTimeout = idleTimeout;
+        this.connectionTimeout = getTimeout(session, "mail.smtp.connectiontimeout");
+        this.timeout = getTimeout(session, "mail.smtp.timeout");
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new MessagingException("Failed to open the selector of the SMTP engine", e);
+        }
+        Thread thread = new DaemonThreadFactory("Mail SMTP engine " + this.host + ':' + this.port).newThread(
+            new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    loop();
+                }
+            });
+        thread.start();
+    }
+
+    @Override
+    public Future<Void> submit(MimeMessage message, Address[] recipients) throws MessagingException
+    {
+        if (recipients == null || recipients.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+        String from = PipeliningSmtpTransport.getEnvelopeFrom(this.session, message);
+        Job job;
+        if (message instanceof FanOutMessage.Copy) {
+            // The content is already serialized, only the headers of the copy are
+            FanOutMessage.Copy copy = (FanOutMessage.Copy) message;
+            job = new Job(from, recipients, copy.serializeHead(), copy.getMessage().getBody(), copy.getMessage());
+        } else {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                message.writeTo(out, IGNORED_HEADERS);
+            } catch (IOException e) {
+                throw new MessagingException("Failed to serialize the message", e);
+            }
+            job = new Job(from, recipients, toCanonical(out.toByteArray()));
+        }
+        synchronized (this) {
+            // Checked under the lock so that the selector thread doesn't stop with a job left behind
+            if (this.closed) {
+                throw new MessagingException("The SMTP engine is closed");
+            }
+            this.pending.incrementAndGet();
+        }
+        this.jobs.add(job);
+        this.selector.wakeup();
+        return job;
+    }
+
+    @Override
+    public int getPendingCount()
+    {
+        return this.pending.get();
+    }
+
+    /**
+     * Stop accepting messages. The messages already submitted are still sent, then the connections are closed.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (this) {
+            this.closed = true;
+        }
+        this.selector.wakeup();
+    }
+
+    /**
+     * Convert the line breaks to CRLF, making sure the content ends with one.
+     *
+     * @param raw the serialized message
+     * @return the message as it must be transmitted with <tt>BDAT</tt>
+     */
+    static byte[] toCanonical(byte[] raw)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + raw.length / 32 + 2);
+        int previous = '\n';
+        for (int i = 0; i < raw.length; i++) {
+            int b = raw[i];
+            if (b == '\n' && previous != '\r') {
+                out.write('\r');
+            } else if (previous == '\r' && b != '\n') {
+                out.write('\n');
+            }
+            out.write(b);
+            previous = b;
+        }
+        if (previous == '\r') {
+            out.write('\n');
+        } else if (previous != '\n') {
+            out.write('\r');
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Double the dots starting a line and add the terminating line.
+     *
+     * @param canonical a message returned by {@link #toCanonical(byte[])}
+     * @return the message as it must be transmitted after <tt>DATA</tt>
+     */
+    static byte[] dotStuff(byte[] canonical)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(canonical.length + canonical.length / 64 + 3);
+        boolean lineStart = true;
+        for (byte b : canonical) {
+            if (lineStart && b == '.') {
+                out.write('.');
+            }
+            out.write(b);
+            lineStart = b == '\n';
+        }
+        out.write('.');
+        out.write('\r');
+        out.write('\n');
+        return out.toByteArray();
+    }
+
+    private void loop()
+    {
+        while (!this.closed || this.pending.get() > 0) {
+            try {
+                this.selector.select(TICK);
+            } catch (IOException e) {
+                // Nothing to do but trying again on the next tick
+            }
+            Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                ((Connection) key.attachment()).handle(key);
+            }
+            dispatch();
+            expire(System.currentTimeMillis());
+        }
+        for (Connection connection : new ArrayList<Connection>(this.connections)) {
+            connection.quit();
+        }
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            // The engine is stopped anyway
+        }
+    }
+
+    /**
+     * Hand the queued jobs to the idle connections, opening new ones if needed.
+     */
+    private void dispatch()
+    {
+        while (!this.jobs.isEmpty()) {
+            Connection idle = null;
+            for (Connection connection : this.connections) {
+                if (connection.state == State.IDLE) {
+                    idle = connection;
+                    break;
+                }
+            }
+            if (idle != null) {
+                idle.resume();
+            } else if (this.connections.size() < this.maxConnections) {
+                Job job = this.jobs.poll();
+                if (job != null) {
+                    Connection connection = new Connection(job);
+                    this.connections.add(connection);
+                    connection.connect();
+                }
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Close the connections idle for too long, or waiting for a reply for too long.
+     */
+    private void expire(long now)
+    {
+        for (Connection connection : new ArrayList<Connection>(this.connections)) {
+            if (connection.state == State.IDLE && (this.closed || now >= connection.deadline)) {
+                connection.quit();
+            } else if (now >= connection.deadline) {
+                connection.fail(new MessagingException("Timeout while talking to the SMTP server " + this.host));
+            }
+        }
+    }
+
+    private void complete(Job job, MessagingException failure)
+    {
+        if (job.settle(failure)) {
+            // Counted down first so that the caller doesn't see its own message as still pending
+            this.pending.decrementAndGet();
+            job.release();
+        }
+    }
+
+    private static String getLocalHost(Session session)
+    {
+        String name = session.getProperty("mail.smtp.localhost");
+        if (StringUtils.isBlank(name)) {
+            try {
+                name = InetAddress.getLocalHost().getCanonicalHostName();
+            } catch (UnknownHostException e) {
+                name = "localhost";
+            }
+        }
+        return name;
+    }
+
+    private static long getTimeout(Session session, String key)
+    {
+        try {
+            long value = Long.parseLong(StringUtils.defaultString(session.getProperty(key)).trim());
+            return value > 0 ? value : DEFAULT_TIMEOUT;
+        } catch (NumberFormatException e) {
+            return DEFAULT_TIMEOUT;
+        }
+    }
+
+    private static Address[] toArray(List<Address> addresses)
+    {
+        return addresses.toArray(new Address[addresses.size()]);
+    }
+
+    /**
+     * A connection to the relay and the state of its current SMTP transaction. Only used by the selector thread.
+     */
+    private final class Connection
+    {
+        private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+        private final StringBuilder line = new StringBuilder();
+
+        private final List<String> reply = new ArrayList<String>();
+
+        private final LinkedList<ByteBuffer> output = new LinkedList<ByteBuffer>();
+
+        /** Extensions advertised in the <tt>EHLO</tt> reply, with their parameters. */
+        private final Map<String, String> extensions = new HashMap<String, String>();
+
+        private final List<Address> accepted = new ArrayList<Address>();
+
+        private final List<Address> deferred = new ArrayList<Address>();
+
+        private final List<Address> rejected = new ArrayList<Address>();
+
+        private SocketChannel channel;
+
+        private SelectionKey key;
+
+        private State state = State.CONNECTING;
+
+        private long deadline;
+
+        private Job job;
+
+        /** The failure to report once the transaction has been reset, null if it succeeded. */
+        private MessagingException outcome;
+
+        private int replies;
+
+        private int transactions;
+
+        /** Whether the connection has been closed. */
+        private boolean discarded;
+
+        Connection(Job job)
+        {
+            this.job = job;
+        }
+
+        void connect()
+        {
+            try {
+                this.channel = SocketChannel.open();
+                this.channel.configureBlocking(false);
+                // Commands are already batched, don't let Nagle's algorithm delay them further
+                this.channel.socket().setTcpNoDelay(true);
+                boolean connected = this.channel.connect(new InetSocketAddress(host, port));
+                this.key = this.channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT,
+                    this);
+                this.state = connected ? State.GREETING : State.CONNECTING;
+                this.deadline = System.currentTimeMillis() + (connected ? timeout : connectionTimeout);
+            } catch (IOException e) {
+                fail(new MessagingException("Could not connect to the SMTP server " + host + ':' + port, e));
+            } catch (RuntimeException e) {
+                // Unresolved address
+                fail(new MessagingException("Could not connect to the SMTP server " + host + ':' + port, e));
+            }
+        }
+
+        void handle(SelectionKey selected)
+        {
+            try {
+                if (selected.isValid() && selected.isConnectable()) {
+                    try {
+                        this.channel.finishConnect();
+                    } catch (IOException e) {
+                        fail(new MessagingException("Could not connect to the SMTP server " + host + ':' + port, e));
+                        return;
+                    }
+                    this.state = State.GREETING;
+                    this.deadline = System.currentTimeMillis() + timeout;
+                    selected.interestOps(SelectionKey.OP_READ);
+                }
+                if (selected.isValid() && selected.isWritable()) {
+                    flush();
+                }
+                if (selected.isValid() && selected.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                fail(new MessagingException("Lost the connection to the SMTP server " + host + ':' + port, e));
+            } catch (RuntimeException e) {
+                // Don't let the selector thread die, the other connections are still fine
+                fail(new MessagingException("Unexpected failure of the SMTP connection", e));
+            }
+        }
+
+        /**
+         * Take the next queued job, if any.
+         */
+        void resume()
+        {
+            try {
+                next();
+            } catch (IOException e) {
+                fail(new MessagingException("Lost the connection to the SMTP server " + host + ':' + port, e));
+            }
+        }
+
+        void quit()
+        {
+            if (this.state == State.IDLE) {
+                try {
+                    this.channel.write(ByteBuffer.wrap(("QUIT" + CRLF).getBytes(ASCII)));
+                } catch (IOException e) {
+                    // Closed anyway
+                }
+            }
+            fail(new MessagingException("The SMTP engine is closed"));
+        }
+
+        /**
+         * Close the connection and complete its job.
+         */
+        void fail(MessagingException failure)
+        {
+            this.discarded = true;
+            connections.remove(this);
+            if (this.key != null) {
+                this.key.cancel();
+            }
+            if (this.channel != null) {
+                try {
+                    this.channel.close();
+                } catch (IOException e) {
+                    // The connection is discarded anyway
+                }
+            }
+            if (this.job != null) {
+                boolean delivered = this.state == State.BODY || this.state == State.RSET;
+                if (this.state == State.RSET && this.outcome != null) {
+                    complete(this.job, this.outcome);
+                } else if (!delivered && this.transactions > 0 && !this.job.requeued && !closed) {
+                    // The server probably dropped a connection which had been opened earlier
+                    this.job.requeued = true;
+                    jobs.add(this.job);
+                } else {
+                    complete(this.job, failure);
+                }
+                this.job = null;
+            }
+            this.state = State.IDLE;
+            this.deadline = Long.MAX_VALUE;
+        }
+
+        private void read() throws IOException
+        {
+            if (this.channel.read(this.input) < 0) {
+                throw new IOException("Connection closed by the server");
+            }
+            this.input.flip();
+            while (this.input.hasRemaining() && !this.discarded) {
+                char c = (char) (this.input.get() & 0xFF);
+                if (c == '\n') {
+                    onLine();
+                } else if (c != '\r') {
+                    this.line.append(c);
+                }
+            }
+            this.input.clear();
+        }
+
+        private void onLine() throws IOException
+        {
+            String text = this.line.toString();
+            this.line.setLength(0);
+            this.reply.add(text);
+            if (text.length() > 3 && text.charAt(3) == '-') {
+                // Multi-line reply, wait for its last line
+                return;
+            }
+            List<String> lines = new ArrayList<String>(this.reply);
+            this.reply.clear();
+            int code;
+            try {
+                code = Integer.parseInt(text.substring(0, Math.min(3, text.length())));
+            } catch (NumberFormatException e) {
+                code = -1;
+            }
+            this.deadline = System.currentTimeMillis() + timeout;
+            if (code < 0 || code == 421) {
+                fail(new MessagingException(StringUtils.join(lines, '\n')));
+            } else {
+                onReply(code, lines);
+            }
+        }
+
+        private void onReply(int code, List<String> lines) throws IOException
+        {
+            switch (this.state) {
+                case GREETING:
+                    if (code == 220) {
+                        send("EHLO " + localHost);
+                        this.state = State.EHLO;
+                    } else {
+                        fail(new MessagingException(StringUtils.join(lines, '\n')));
+                    }
+                    break;
+                case EHLO:
+                    if (code == OK) {
+                        readExtensions(lines);
+                        authenticate();
+                    } else {
+                        send("HELO " + localHost);
+                        this.state = State.HELO;
+                    }
+                    break;
+                case HELO:
+                    if (code == OK) {
+                        authenticate();
+                    } else {
+                        fail(new MessagingException(StringUtils.join(lines, '\n')));
+                    }
+                    break;
+                case AUTH:
+                    if (code == 235) {
+                        next();
+                    } else {
+                        fail(new AuthenticationFailedException(StringUtils.join(lines, '\n')));
+                    }
+                    break;
+                case MAIL:
+                    onMailReply(code, lines);
+                    break;
+                case RCPT:
+                    onRecipientReply(code);
+                    break;
+                case DATA:
+                    if (code == 354) {
+                        this.state = State.BODY;
+                        this.output.add(ByteBuffer.wrap(this.job.head));
+                        write(this.job.getStuffedContent());
+                    } else {
+                        abort(new SendFailedException(StringUtils.join(lines, '\n'), null, NONE,
+                            merge(this.accepted, this.deferred), toArray(this.rejected)));
+                    }
+                    break;
+                case BODY:
+                    onBodyReply(code, lines);
+                    break;
+                case RSET:
+                    if (code == OK) {
+                        finish();
+                    } else {
+                        fail(new MessagingException(StringUtils.join(lines, '\n')));
+                    }
+                    break;
+                default:
+                    fail(new MessagingException("Unexpected reply from the SMTP server: " + StringUtils.join(lines,
+                        '\n')));
+            }
+        }
+
+        private void readExtensions(List<String> lines)
+        {
+            this.extensions.clear();
+            for (String extension : lines.subList(1, lines.size())) {
+                if (extension.length() > 4) {
+                    String[] parts = StringUtils.split(extension.substring(4).toUpperCase(), " =", 2);
+                    if (parts.length > 0) {
+                        this.extensions.put(parts[0], parts.length > 1 ? parts[1] : "");
+                    }
+                }
+            }
+        }
+
+        private void authenticate() throws IOException
+        {
+            if (username == null) {
+                next();
+            } else if (!this.extensions.containsKey(AUTH)
+                || !ArrayUtils.contains(StringUtils.split(this.extensions.get(AUTH)), "PLAIN")) {
+                fail(new AuthenticationFailedException("The SMTP server doesn't support AUTH PLAIN"));
+            } else {
+                String credentials = '\0' + username + '\0' + password;
+                send("AUTH PLAIN "
+                    + new String(BASE64EncoderStream.encode(credentials.getBytes(UTF8)), ASCII));
+                this.state = State.AUTH;
+            }
+        }
+
+        /**
+         * Start sending the next job, or wait for one.
+         */
+        private void next() throws IOException
+        {
+            while (true) {
+                Job next = this.job != null ? this.job : jobs.poll();
+                if (next == null) {
+                    this.state = State.IDLE;
+                    this.deadline = idleTimeout > 0 ? System.currentTimeMillis() + idleTimeout : Long.MAX_VALUE;
+                    return;
+                }
+                if (start(next)) {
+                    return;
+                }
+            }
+        }
+
+        private boolean start(Job next) throws IOException
+        {
+            this.job = next;
+            String size = this.extensions.get(SIZE);
+            long maxSize = StringUtils.isNumeric(size) && size.length() > 0 ? Long.parseLong(size) : 0;
+            if (maxSize > 0 && next.getLength() > maxSize) {
+                this.job = null;
+                complete(next, new SendFailedException("The message exceeds the maximum size of " + maxSize
+                    + " bytes of the SMTP server", null, NONE, NONE, next.recipients));
+                return false;
+            }
+            this.accepted.clear();
+            this.deferred.clear();
+            this.rejected.clear();
+            this.outcome = null;
+            this.replies = 0;
+            StringBuilder commands = new StringBuilder();
+            commands.append("MAIL FROM:<").append(next.from).append('>');
+            if (size != null) {
+                commands.append(" SIZE=").append(next.getLength());
+            }
+            commands.append(CRLF);
+            if (this.extensions.containsKey(PIPELINING)) {
+                for (String address : next.addresses) {
+                    commands.append("RCPT TO:<").append(address).append('>').append(CRLF);
+                }
+            }
+            this.state = State.MAIL;
+            write(commands.toString().getBytes(ASCII));
+            return true;
+        }
+
+        private void onMailReply(int code, List<String> lines) throws IOException
+        {
+            if (code != OK) {
+                this.outcome = new SendFailedException(StringUtils.join(lines, '\n'), null, NONE,
+                    this.job.recipients, NONE);
+            }
+            if (this.extensions.containsKey(PIPELINING)) {
+                // The replies to the RCPT commands follow
+                this.state = State.RCPT;
+            } else if (this.outcome != null) {
+                abort(this.outcome);
+            } else {
+                this.state = State.RCPT;
+                send("RCPT TO:<" + this.job.addresses[0] + '>');
+            }
+        }
+
+        private void onRecipientReply(int code) throws IOException
+        {
+            Address recipient = this.job.recipients[this.replies++];
+            if (code == OK || code == 251) {
+                this.accepted.add(recipient);
+            } else if (code >= 500) {
+                this.rejected.add(recipient);
+            } else {
+                this.deferred.add(recipient);
+            }
+            if (this.replies < this.job.recipients.length) {
+                if (!this.extensions.containsKey(PIPELINING)) {
+                    send("RCPT TO:<" + this.job.addresses[this.replies] + '>');
+                }
+            } else if (this.outcome != null) {
+                abort(this.outcome);
+            } else if (this.accepted.isEmpty()) {
+                abort(new SendFailedException("Invalid Addresses", null, NONE, toArray(this.deferred),
+                    toArray(this.rejected)));
+            } else if (this.extensions.containsKey(CHUNKING)) {
+                this.state = State.BODY;
+                this.output.add(ByteBuffer.wrap(("BDAT " + this.job.getLength() + " LAST" + CRLF).getBytes(ASCII)));
+                this.output.add(ByteBuffer.wrap(this.job.head));
+                write(this.job.content);
+            } else {
+                this.state = State.DATA;
+                send("DATA");
+            }
+        }
+
+        private void onBodyReply(int code, List<String> lines) throws IOException
+        {
+            if (code == OK) {
+                if (!this.deferred.isEmpty() || !this.rejected.isEmpty()) {
+                    this.outcome = new SendFailedException("Invalid Addresses", null, toArray(this.accepted),
+                        toArray(this.deferred), toArray(this.rejected));
+                }
+                finish();
+            } else {
+                abort(new SendFailedException(StringUtils.join(lines, '\n'), null, NONE,
+                    merge(this.accepted, this.deferred), toArray(this.rejected)));
+            }
+        }
+
+        /**
+         * Reset the transaction, then report the failure.
+         */
+        private void abort(MessagingException failure) throws IOException
+        {
+            this.outcome = failure;
+            this.state = State.RSET;
+            send(RSET);
+        }
+
+        private void finish() throws IOException
+        {
+            Job done = this.job;
+            MessagingException failure = this.outcome;
+            this.job = null;
+            this.outcome = null;
+            this.transactions++;
+            complete(done, failure);
+            next();
+        }
+
+        private Address[] merge(List<Address> first, List<Address> second)
+        {
+            List<Address> all = new ArrayList<Address>(first);
+            all.addAll(second);
+            return toArray(all);
+        }
+
+        private void send(String command) throws IOException
+        {
+            write((command + CRLF).getBytes(ASCII));
+        }
+
+        private void write(byte[] bytes) throws IOException
+        {
+            this.output.add(ByteBuffer.wrap(bytes));
+            flush();
+        }
+
+        private void flush() throws IOException
+        {
+            if (!this.output.isEmpty()) {
+                // A single gathering write for the BDAT command and its chunk
+                this.channel.write(this.output.toArray(new ByteBuffer[this.output.size()]));
+                while (!this.output.isEmpty() && !this.output.getFirst().hasRemaining()) {
+                    this.output.removeFirst();
+                }
+            }
+            this.key.interestOps(this.output.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+}
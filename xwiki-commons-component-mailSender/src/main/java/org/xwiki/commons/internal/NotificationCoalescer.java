@@ -0,0 +1,208 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers the notifications sent to a recipient in the same category during a time window, so that a single digest is
+ * sent for all of them. The window opens with the first notification and isn't extended by the next ones, so that no
+ * notification waits longer than the window. Pending notifications are kept in memory and lost on crash.
+ *
+ * @param <C> what the sender needs to send a digest, captured when the window opens
+ */
+public class NotificationCoalescer<C>
+{
+    /**
+     * Sends the digests, from the thread of the coalescer.
+     *
+     * @param <C> what the sender needs to send a digest
+     */
+    public interface Sender<C>
+    {
+        /**
+         * @param recipient the recipient of the notifications
+         * @param category the category of the notifications
+         * @param mails the notifications received during the window, the oldest first
+         * @param context what was given with the first notification of the window
+         */
+        void send(String recipient, String category, List<Mail> mails, C context);
+    }
+
+    /** The notifications of a window. */
+    private static class Batch<C>
+    {
+        private final String recipient;
+
+        private final String category;
+
+        private final C context;
+
+        private final int maxMails;
+
+        private final List<Mail> mails = new ArrayList<Mail>();
+
+        private ScheduledFuture< ? > flush;
+
+        Batch(String recipient, String category, C context, int maxMails)
+        {
+            this.recipient = recipient;
+            this.category = category;
+            this.context = context;
+            this.maxMails = maxMails;
+        }
+    }
+
+    private final Sender<C> sender;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /** The open windows, by key. */
+    private final Map<String, Batch<C>> batches = new HashMap<String, Batch<C>>();
+
+    /**
+     * @param sender sends the digests
+     */
+    public NotificationCoalescer(Sender<C> sender)
+    {
+        this.sender = sender;
+        this.executor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("Mail notification coalescer"));
+    }
+
+    /**
+     * Add a notification to the window of its recipient and category, opening it if needed.
+     *
+     * @param key identifies the recipient and the category
+     * @param recipient the recipient to give to the sender
+     * @param category the category to give to the sender
+     * @param mail the notification, not to be modified anymore
+     * @param context what the sender needs to send the digest, ignored if the window is already open
+     * @param window time in milliseconds after which the digest is sent
+     * @param maxMails the number of notifications after which the digest is sent without waiting for the end of the
+     *            window
+     * @return false if the coalescer is closed, the notification has not been added
+     */
+    public boolean add(final String key, String recipient, String category, Mail mail, C context, long window,
+        int maxMails)
+    {
+        synchronized (this.batches) {
+            if (this.executor.isShutdown()) {
+                return false;
+            }
+            Batch<C> batch = this.batches.get(key);
+            if (batch == null) {
+                batch = new Batch<C>(recipient, category, context, Math.max(1, maxMails));
+                this.batches.put(key, batch);
+                final Batch<C> opened = batch;
+                batch.flush = this.executor.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        flush(key, opened);
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+            batch.mails.add(mail);
+            if (batch.mails.size() >= batch.maxMails) {
+                // Closed now so that the next notifications open a new window
+                this.batches.remove(key);
+                batch.flush.cancel(false);
+                final Batch<C> full = batch;
+                this.executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        send(full);
+                    }
+                });
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of notifications waiting for their window to end
+     */
+    public int getPendingCount()
+    {
+        int count = 0;
+        synchronized (this.batches) {
+            for (Batch<C> batch : this.batches.values()) {
+                count += batch.mails.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Send the pending digests without waiting for the end of their window, then stop.
+     *
+     * @param timeout time in milliseconds to wait for the digests to be sent
+     */
+    public void close(long timeout)
+    {
+        synchronized (this.batches) {
+            for (final Batch<C> batch : this.batches.values()) {
+                batch.flush.cancel(false);
+                this.executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        send(batch);
+                    }
+                });
+            }
+            this.batches.clear();
+            this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            this.executor.shutdown();
+        }
+        try {
+            this.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(String key, Batch<C> batch)
+    {
+        synchronized (this.batches) {
+            // The batch may have been sent already because it was full
+            if (this.batches.get(key) != batch) {
+                return;
+            }
+            this.batches.remove(key);
+        }
+        send(batch);
+    }
+
+    private void send(Batch<C> batch)
+    {
+        this.sender.send(batch.recipient, batch.category, batch.mails, batch.context);
+    }
+}
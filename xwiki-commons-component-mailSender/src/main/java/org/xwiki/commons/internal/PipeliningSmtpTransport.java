@@ -0,0 +1,165 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.event.TransportEvent;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * SMTP transport using command pipelining (RFC 2920) when the server advertises it: the <tt>MAIL FROM</tt> and all
+ * the <tt>RCPT TO</tt> commands of a message are written before reading any reply, so that a message costs two round
+ * trips (envelope, then data) instead of one per recipient. Falls back to the regular JavaMail implementation when
+ * the server doesn't support pipelining, and when <tt>mail.smtp.sendpartial</tt> is not set since the message must
+ * then not be sent to the valid recipients if some are rejected. The size of the message is given in
+ * <tt>MAIL FROM</tt> when the server supports the <tt>SIZE</tt> extension (RFC 1870), and the transport listeners are
+ * notified of the outcome as with the JavaMail implementation.
+ */
+public class PipeliningSmtpTransport extends SMTPTransport
+{
+    private static final String SEND_PARTIAL = "mail.smtp.sendpartial";
+
+    private static final String[] IGNORE_HEADERS = {"Bcc", "Content-Length"};
+
+    private static final Address[] NONE = new Address[0];
+
+    public PipeliningSmtpTransport(Session session, URLName urlname)
+    {
+        super(session, urlname);
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException
+    {
+        if (!(message instanceof MimeMessage) || addresses == null || addresses.length == 0
+            || !supportsExtension("PIPELINING") || !Boolean.parseBoolean(this.session.getProperty(SEND_PARTIAL))) {
+            super.sendMessage(message, addresses);
+            return;
+        }
+
+        String mailFrom = "MAIL FROM:<" + getEnvelopeFrom(this.session, (MimeMessage) message) + ">";
+        if (supportsExtension("SIZE")) {
+            try {
+                mailFrom += " SIZE=" + MeteredMimeMessage.getSize((MimeMessage) message, IGNORE_HEADERS);
+            } catch (IOException e) {
+                throw new MessagingException("IOException while sending message", e);
+            }
+        }
+        sendCommand(mailFrom);
+        for (Address address : addresses) {
+            sendCommand("RCPT TO:<" + ((InternetAddress) address).getAddress() + ">");
+        }
+
+        int mailFromReply = readServerResponse();
+        String mailFromResponse = getLastServerResponse();
+        List<Address> accepted = new ArrayList<Address>();
+        List<Address> deferred = new ArrayList<Address>();
+        List<Address> rejected = new ArrayList<Address>();
+        for (Address address : addresses) {
+            int reply = readServerResponse();
+            if (reply == 250 || reply == 251) {
+                accepted.add(address);
+            } else if (reply >= 400 && reply < 500) {
+                deferred.add(address);
+            } else {
+                rejected.add(address);
+            }
+        }
+
+        if (mailFromReply != 250) {
+            reset();
+            notifyTransportListeners(TransportEvent.MESSAGE_NOT_DELIVERED, NONE, addresses, NONE, message);
+            throw new SendFailedException(mailFromResponse, null, NONE, addresses, NONE);
+        }
+        if (accepted.isEmpty()) {
+            reset();
+            notifyTransportListeners(TransportEvent.MESSAGE_NOT_DELIVERED, NONE, toArray(deferred),
+                toArray(rejected), message);
+            throw new SendFailedException("No recipient accepted", null, NONE, toArray(deferred), toArray(rejected));
+        }
+
+        try {
+            OutputStream out = data();
+            message.writeTo(out, IGNORE_HEADERS);
+            finishData();
+        } catch (IOException e) {
+            notifyTransportListeners(TransportEvent.MESSAGE_NOT_DELIVERED, NONE, addresses, NONE, message);
+            throw new MessagingException("IOException while sending message", e);
+        } catch (SendFailedException e) {
+            // The message has been rejected, nobody got it
+            notifyTransportListeners(TransportEvent.MESSAGE_NOT_DELIVERED, NONE, addresses, NONE, message);
+            throw new SendFailedException(e.getMessage(), e, NONE, addresses, NONE);
+        }
+
+        if (!deferred.isEmpty() || !rejected.isEmpty()) {
+            notifyTransportListeners(TransportEvent.MESSAGE_PARTIALLY_DELIVERED, toArray(accepted),
+                toArray(deferred), toArray(rejected), message);
+            throw new SendFailedException("Invalid Addresses", null, toArray(accepted), toArray(deferred),
+                toArray(rejected));
+        }
+        notifyTransportListeners(TransportEvent.MESSAGE_DELIVERED, toArray(accepted), NONE, NONE, message);
+    }
+
+    /**
+     * @return the address to give in <tt>MAIL FROM</tt>: <tt>mail.smtp.from</tt>, else the sender of the message,
+     *         else the local address
+     */
+    static String getEnvelopeFrom(Session session, MimeMessage message) throws MessagingException
+    {
+        String from = session.getProperty("mail.smtp.from");
+        if (from == null) {
+            Address[] addresses = message.getFrom();
+            if (addresses != null && addresses.length > 0 && addresses[0] instanceof InternetAddress) {
+                from = ((InternetAddress) addresses[0]).getAddress();
+            } else {
+                InternetAddress local = InternetAddress.getLocalAddress(session);
+                from = local != null ? local.getAddress() : "";
+            }
+        }
+        return from;
+    }
+
+    /**
+     * End the transaction, which the server still considers open after a failed envelope.
+     */
+    private void reset() throws MessagingException
+    {
+        sendCommand("RSET");
+        readServerResponse();
+    }
+
+    private static Address[] toArray(List<Address> addresses)
+    {
+        return addresses.toArray(new Address[addresses.size()]);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.xwiki.rendering.parser.StreamParser;
+import org.xwiki.rendering.renderer.PrintRendererFactory;
+import org.xwiki.rendering.renderer.printer.DefaultWikiPrinter;
+import org.xwiki.rendering.renderer.printer.WikiPrinter;
+
+/**
+ * Converts the HTML content of a mail to the plain text alternative. Conversions are cached by HTML content, so that
+ * a newsletter sent to many recipients is converted once. HTML bodies larger than the fast threshold skip the
+ * rendering pipeline and are converted by a simple single pass tag stripper.
+ */
+public class PlainTextConverter
+{
+    /** Tags after which the text continues on a new line. */
+    private static final String[] BLOCK_TAGS = {"p", "div", "tr", "li", "ul", "ol", "table", "h1", "h2", "h3", "h4",
+        "h5", "h6", "blockquote", "pre", "hr", "dl", "dt", "dd"};
+
+    private final StreamParser htmlParser;
+
+    private final PrintRendererFactory rendererFactory;
+
+    private final int fastThreshold;
+
+    private final Map<String, String> cache;
+
+    /**
+     * @param htmlParser the HTML parser
+     * @param rendererFactory creates the plain text renderers
+     * @param cacheSize the maximum number of conversions kept, 0 to disable the cache
+     * @param fastThreshold the length above which the fast conversion is used, 0 to always use the rendering pipeline
+     */
+    public PlainTextConverter(StreamParser htmlParser, PrintRendererFactory rendererFactory, final int cacheSize,
+        int fastThreshold)
+    {
+        this.htmlParser = htmlParser;
+        this.rendererFactory = rendererFactory;
+        this.fastThreshold = fastThreshold;
+        this.cache = cacheSize > 0 ? new LinkedHashMap<String, String>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                return size() > cacheSize;
+            }
+        } : null;
+    }
+
+    /**
+     * @param html the HTML to convert
+     * @return the plain text
+     * @throws Exception if the HTML can't be parsed
+     */
+    public String convert(String html) throws Exception
+    {
+        if (this.cache == null) {
+            return doConvert(html);
+        }
+        String key = hash(html);
+        String plain;
+        synchronized (this.cache) {
+            plain = this.cache.get(key);
+        }
+        if (plain == null) {
+            plain = doConvert(html);
+            synchronized (this.cache) {
+                this.cache.put(key, plain);
+            }
+        }
+        return plain;
+    }
+
+    private String doConvert(String html) throws Exception
+    {
+        if (this.fastThreshold > 0 && html.length() > this.fastThreshold) {
+            return fastConvert(html);
+        }
+        WikiPrinter printer = new DefaultWikiPrinter(new StringBuffer(html.length() / 2));
+        this.htmlParser.parse(new StringReader(html), this.rendererFactory.createRenderer(printer));
+        return printer.toString();
+    }
+
+    /**
+     * Strip the tags of an HTML document in a single pass, keeping line breaks for block elements and decoding the
+     * usual entities. The content of <tt>script</tt> and <tt>style</tt> elements is dropped.
+     *
+     * @param html the HTML to convert
+     * @return the text of the document
+     */
+    public static String fastConvert(String html)
+    {
+        StringBuilder text = new StringBuilder(html.length() / 2);
+        int length = html.length();
+        int i = 0;
+        boolean pendingSpace = false;
+        while (i < length) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                int end = html.indexOf('>', i);
+                if (end < 0) {
+                    break;
+                }
+                String name = getTagName(html, i + 1, end);
+                if ("script".equals(name) || "style".equals(name)) {
+                    int close = indexOfIgnoreCase(html, "</" + name, end);
+                    end = close < 0 ? length - 1 : html.indexOf('>', close);
+                    if (end < 0) {
+                        end = length - 1;
+                    }
+                } else if ("br".equals(name) || isBlockTag(name)) {
+                    newLine(text, "br".equals(name));
+                    pendingSpace = false;
+                }
+                i = end + 1;
+            } else if (Character.isWhitespace(c)) {
+                pendingSpace = text.length() > 0 && text.charAt(text.length() - 1) != '\n';
+                i++;
+            } else {
+                if (pendingSpace) {
+                    text.append(' ');
+                    pendingSpace = false;
+                }
+                if (c == '&') {
+                    i = appendEntity(html, i, text);
+                } else {
+                    text.append(c);
+                    i++;
+                }
+            }
+        }
+        int end = text.length();
+        while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        text.setLength(end);
+        return text.toString();
+    }
+
+    /**
+     * @return the lower case name of the tag starting at the given index, without the leading slash of closing tags
+     */
+    private static String getTagName(String html, int start, int end)
+    {
+        int i = start;
+        if (i < end && html.charAt(i) == '/') {
+            i++;
+        }
+        int nameStart = i;
+        while (i < end && Character.isLetterOrDigit(html.charAt(i))) {
+            i++;
+        }
+        return html.substring(nameStart, i).toLowerCase();
+    }
+
+    private static boolean isBlockTag(String name)
+    {
+        for (String tag : BLOCK_TAGS) {
+            if (tag.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void newLine(StringBuilder text, boolean always)
+    {
+        if (text.length() > 0 && (always || text.charAt(text.length() - 1) != '\n')) {
+            text.append('\n');
+        }
+    }
+
+    private static int appendEntity(String html, int start, StringBuilder text)
+    {
+        int end = html.indexOf(';', start);
+        if (end < 0 || end - start > 10) {
+            text.append('&');
+            return start + 1;
+        }
+        String entity = html.substring(start + 1, end);
+        char decoded = 0;
+        if ("amp".equals(entity)) {
+            decoded = '&';
+        } else if ("lt".equals(entity)) {
+            decoded = '<';
+        } else if ("gt".equals(entity)) {
+            decoded = '>';
+        } else if ("quot".equals(entity)) {
+            decoded = '"';
+        } else if ("apos".equals(entity) || "#39".equals(entity)) {
+            decoded = '\'';
+        } else if ("nbsp".equals(entity)) {
+            decoded = ' ';
+        } else if (entity.startsWith("#")) {
+            try {
+                int code =
+                    entity.length() > 1 && (entity.charAt(1) == 'x' || entity.charAt(1) == 'X') ? Integer.parseInt(
+                        entity.substring(2), 16) : Integer.parseInt(entity.substring(1));
+                text.appendCodePoint(code);
+                return end + 1;
+            } catch (IllegalArgumentException e) {
+                // Not a valid character reference, keep it as is
+            }
+        }
+        if (decoded == 0) {
+            text.append(html, start, end + 1);
+        } else {
+            text.append(decoded);
+        }
+        return end + 1;
+    }
+
+    private static int indexOfIgnoreCase(String html, String part, int from)
+    {
+        int last = html.length() - part.length();
+        for (int i = from; i <= last; i++) {
+            if (html.regionMatches(true, i, part, 0, part.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String hash(String html)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(html.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
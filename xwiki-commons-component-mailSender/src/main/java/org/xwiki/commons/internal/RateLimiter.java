@@ -0,0 +1,266 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Token buckets limiting the rate at which messages are handed to each SMTP relay, and the rate at which recipients of
+ * each domain are sent to. Sending over the limit isn't refused: it is deferred until the buckets have refilled, so
+ * that the throughput stays at the maximum the remote side accepts instead of triggering throttling and greylisting.
+ * The rates are the ones of a wiki while the {@link Buckets} are shared by all the wikis, since they send through the
+ * same relays to the same domains.
+ */
+public class RateLimiter
+{
+    /** Maximum number of domain buckets kept, the least recently used ones are dropped. */
+    private static final int MAX_DOMAINS = 10000;
+
+    /**
+     * The buckets of the relays, by host and port, and of the recipient domains. They outlive the configurations so
+     * that the limits keep holding when the mail preferences are saved.
+     */
+    public static class Buckets
+    {
+        private final Map<String, TokenBucket> relays = new HashMap<String, TokenBucket>();
+
+        private final Map<String, TokenBucket> domains = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest)
+            {
+                return size() > MAX_DOMAINS;
+            }
+        };
+    }
+
+    /**
+     * A bucket refilled continuously at a fixed rate up to its burst size. Tokens can be reserved beyond what the
+     * bucket holds, the caller then has to wait for the debt to be paid back.
+     */
+    static class TokenBucket
+    {
+        /** Tokens per nanosecond. */
+        private double rate;
+
+        private double burst;
+
+        private double tokens;
+
+        private long lastRefill;
+
+        /**
+         * @param rate the number of tokens added per second
+         * @param burst the maximum number of tokens the bucket can hold
+         * @param now the current time in nanoseconds
+         */
+        TokenBucket(double rate, double burst, long now)
+        {
+            this.rate = rate / 1000000000d;
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+            this.lastRefill = now;
+        }
+
+        /**
+         * @param permits the number of tokens to take
+         * @param now the current time in nanoseconds
+         * @return the time in nanoseconds to wait before using the tokens, 0 if they are available right away
+         */
+        synchronized long reserve(int permits, long now)
+        {
+            this.tokens = Math.min(this.burst, this.tokens + (now - this.lastRefill) * this.rate);
+            this.lastRefill = now;
+            this.tokens -= permits;
+            return this.tokens >= 0 ? 0 : (long) Math.ceil(-this.tokens / this.rate);
+        }
+
+        /**
+         * Change the rate, e.g. when the configuration of the wiki sending through the relay has changed, keeping the
+         * tokens already taken.
+         *
+         * @param rate the number of tokens added per second
+         * @param burst the maximum number of tokens the bucket can hold
+         * @param now the current time in nanoseconds
+         */
+        synchronized void setRate(double rate, double burst, long now)
+        {
+            this.tokens = Math.min(this.burst, this.tokens + (now - this.lastRefill) * this.rate);
+            this.lastRefill = now;
+            this.rate = rate / 1000000000d;
+            this.burst = Math.max(1, burst);
+            this.tokens = Math.min(this.burst, this.tokens);
+        }
+    }
+
+    private final MailSenderSettings settings;
+
+    private final double relayRate;
+
+    private final boolean domainLimited;
+
+    private final Buckets buckets;
+
+    /**
+     * @param settings the configured rates and bursts
+     */
+    public RateLimiter(MailSenderSettings settings)
+    {
+        this(settings, new Buckets());
+    }
+
+    /**
+     * @param settings the configured rates and bursts
+     * @param buckets the buckets to take the tokens from
+     */
+    public RateLimiter(MailSenderSettings settings, Buckets buckets)
+    {
+        this.settings = settings;
+        this.relayRate = settings.getRelayRate();
+        this.domainLimited = settings.hasDomainRates();
+        this.buckets = buckets;
+    }
+
+    /**
+     * @return false if neither the relays nor any domain is limited, in which case
+     *         {@link #acquire(String, Address[])} never waits
+     */
+    public boolean isEnabled()
+    {
+        return this.relayRate > 0 || this.domainLimited;
+    }
+
+    /**
+     * Wait until a message can be sent to the given recipients: it takes one token from the bucket of the relay and
+     * one token per recipient from the bucket of each recipient domain.
+     *
+     * @param relay the host and port of the relay the message is sent through
+     * @param recipients the recipients of the message
+     * @return the time waited in nanoseconds
+     * @throws MessagingException if the thread is interrupted while waiting
+     */
+    public long acquire(String relay, Address[] recipients) throws MessagingException
+    {
+        long wait = reserve(relay, recipients);
+        pause(wait);
+        return wait;
+    }
+
+    /**
+     * Take the tokens needed to send a message to the given recipients, without waiting for them.
+     *
+     * @param relay the host and port of the relay the message is sent through
+     * @param recipients the recipients of the message
+     * @return the time in nanoseconds to wait before sending the message, see {@link #pause(long)}
+     */
+    public long reserve(String relay, Address[] recipients)
+    {
+        long now = System.nanoTime();
+        long wait = this.relayRate > 0 ? getRelayBucket(relay, now).reserve(1, now) : 0;
+        if (this.domainLimited) {
+            Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+            for (Address recipient : recipients) {
+                String domain = getDomain(recipient);
+                if (domain != null) {
+                    Integer count = counts.get(domain);
+                    counts.put(domain, count == null ? 1 : count + 1);
+                }
+            }
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                TokenBucket bucket = getDomainBucket(entry.getKey(), now);
+                if (bucket != null) {
+                    wait = Math.max(wait, bucket.reserve(entry.getValue(), now));
+                }
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * @param wait the time to wait in nanoseconds, as returned by {@link #reserve(String, Address[])}
+     * @throws MessagingException if the thread is interrupted while waiting
+     */
+    public static void pause(long wait) throws MessagingException
+    {
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while waiting for the sending rate limit", e);
+            }
+        }
+    }
+
+    private TokenBucket getRelayBucket(String relay, long now)
+    {
+        TokenBucket bucket;
+        synchronized (this.buckets.relays) {
+            bucket = this.buckets.relays.get(relay);
+            if (bucket == null) {
+                bucket = new TokenBucket(this.relayRate, this.settings.getRelayBurst(), now);
+                this.buckets.relays.put(relay, bucket);
+                return bucket;
+            }
+        }
+        bucket.setRate(this.relayRate, this.settings.getRelayBurst(), now);
+        return bucket;
+    }
+
+    private TokenBucket getDomainBucket(String domain, long now)
+    {
+        double rate = this.settings.getDomainRate(domain);
+        if (rate <= 0) {
+            return null;
+        }
+        TokenBucket bucket;
+        synchronized (this.buckets.domains) {
+            bucket = this.buckets.domains.get(domain);
+            if (bucket == null) {
+                bucket = new TokenBucket(rate, this.settings.getDomainBurst(domain), now);
+                this.buckets.domains.put(domain, bucket);
+                return bucket;
+            }
+        }
+        bucket.setRate(rate, this.settings.getDomainBurst(domain), now);
+        return bucket;
+    }
+
+    private String getDomain(Address recipient)
+    {
+        if (recipient instanceof InternetAddress) {
+            String address = ((InternetAddress) recipient).getAddress();
+            int at = address != null ? address.lastIndexOf('@') : -1;
+            if (at >= 0) {
+                return address.substring(at + 1).toLowerCase(Locale.ROOT);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Parses the recipient lists of the mails. Lists are split as RFC 5322 address lists: a comma inside a quoted display
+ * name, a comment or angle brackets doesn't separate two addresses. Each address is validated once, then kept
+ * normalized in a bounded LRU cache: the domain is lower cased and the whitespace of the display name collapsed. An
+ * address given several times, in any case, only receives the mail once, in the first of To, Cc and Bcc it appears in.
+ */
+public class RecipientParser
+{
+    private static final InternetAddress[] NONE = new InternetAddress[0];
+
+    /** The recipients of a mail, each of them in a single field. */
+    public static class Recipients
+    {
+        private final InternetAddress[] to;
+
+        private final InternetAddress[] cc;
+
+        private final InternetAddress[] bcc;
+
+        Recipients(InternetAddress[] to, InternetAddress[] cc, InternetAddress[] bcc)
+        {
+            this.to = to;
+            this.cc = cc;
+            this.bcc = bcc;
+        }
+
+        public InternetAddress[] getTo()
+        {
+            return this.to;
+        }
+
+        public InternetAddress[] getCc()
+        {
+            return this.cc;
+        }
+
+        public InternetAddress[] getBcc()
+        {
+            return this.bcc;
+        }
+    }
+
+    /** Normalized addresses by raw address, in access order. */
+    private final Map<String, InternetAddress> cache;
+
+    /**
+     * @param cacheSize the maximum number of addresses kept, 0 to parse them each time
+     */
+    public RecipientParser(final int cacheSize)
+    {
+        this.cache = new LinkedHashMap<String, InternetAddress>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, InternetAddress> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * @param list comma separated addresses, null or empty for none
+     * @return the addresses of the list, without duplicates
+     * @throws AddressException if an address is invalid
+     */
+    public InternetAddress[] parse(String list) throws AddressException
+    {
+        return parse(list, new HashSet<String>());
+    }
+
+    /**
+     * Parse the recipients of a mail, removing the addresses already present in a previous field.
+     *
+     * @param to comma separated addresses of the To field
+     * @param cc comma separated addresses of the Cc field
+     * @param bcc comma separated addresses of the Bcc field
+     * @return the recipients of each field
+     * @throws AddressException if an address is invalid
+     */
+    public Recipients parse(String to, String cc, String bcc) throws AddressException
+    {
+        Set<String> seen = new HashSet<String>();
+        return new Recipients(parse(to, seen), parse(cc, seen), parse(bcc, seen));
+    }
+
+    private InternetAddress[] parse(String list, Set<String> seen) throws AddressException
+    {
+        if (StringUtils.isBlank(list)) {
+            return NONE;
+        }
+        List<InternetAddress> addresses = new ArrayList<InternetAddress>();
+        for (String raw : split(list)) {
+            InternetAddress address = getAddress(raw);
+            if (seen.add(address.getAddress().toLowerCase(Locale.ROOT))) {
+                // Copied so that the cached instance can't be modified
+                addresses.add((InternetAddress) address.clone());
+            }
+        }
+        return addresses.toArray(new InternetAddress[addresses.size()]);
+    }
+
+    private InternetAddress getAddress(String raw) throws AddressException
+    {
+        InternetAddress address;
+        synchronized (this.cache) {
+            address = this.cache.get(raw);
+        }
+        if (address == null) {
+            address = normalize(new InternetAddress(raw));
+            synchronized (this.cache) {
+                this.cache.put(raw, address);
+            }
+        }
+        return address;
+    }
+
+    /**
+     * @return the address with a lower case domain and a display name without extra whitespace
+     */
+    static InternetAddress normalize(InternetAddress parsed)
+    {
+        String address = parsed.getAddress().trim();
+        int at = address.lastIndexOf('@');
+        if (at >= 0) {
+            address = address.substring(0, at + 1) + address.substring(at + 1).toLowerCase(Locale.ROOT);
+        }
+        String personal = StringUtils.normalizeSpace(parsed.getPersonal());
+        try {
+            return new InternetAddress(address, StringUtils.isEmpty(personal) ? null : personal);
+        } catch (UnsupportedEncodingException e) {
+            // Can't happen, the default charset is used
+            return parsed;
+        }
+    }
+
+    /**
+     * Split an address list on the commas which are outside of quoted strings, comments and angle brackets.
+     *
+     * @param list the address list
+     * @return the trimmed, non empty, addresses
+     */
+    static List<String> split(String list)
+    {
+        List<String> addresses = new ArrayList<String>();
+        boolean quoted = false;
+        boolean escaped = false;
+        boolean bracketed = false;
+        int comment = 0;
+        int start = 0;
+        for (int i = 0; i < list.length(); i++) {
+            char c = list.charAt(i);
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\' && (quoted || comment > 0)) {
+                escaped = true;
+            } else if (c == '"' && comment == 0) {
+                quoted = !quoted;
+            } else if (!quoted) {
+                if (c == '(') {
+                    comment++;
+                } else if (c == ')' && comment > 0) {
+                    comment--;
+                } else if (comment == 0 && c == '<') {
+                    bracketed = true;
+                } else if (comment == 0 && c == '>') {
+                    bracketed = false;
+                } else if (comment == 0 && !bracketed && c == ',') {
+                    addToken(addresses, list.substring(start, i));
+                    start = i + 1;
+                }
+            }
+        }
+        addToken(addresses, list.substring(start));
+        return addresses;
+    }
+
+    private static void addToken(List<String> addresses, String token)
+    {
+        String trimmed = token.trim();
+        if (trimmed.length() > 0) {
+            addresses.add(trimmed);
+        }
+    }
+}
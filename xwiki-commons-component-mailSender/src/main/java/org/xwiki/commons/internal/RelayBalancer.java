@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the sending over several SMTP relays. Each send goes to the healthy relay with the fewest connections in
+ * use relatively to its weight, ties being broken in round robin. An ejected relay is probed with the first send
+ * following the end of its ejection. When all the relays are ejected the one coming back first is still tried,
+ * rather than failing without trying.
+ */
+public class RelayBalancer
+{
+    private final List<SmtpRelay> relays;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param relays the relays to send through, at least one
+     */
+    public RelayBalancer(List<SmtpRelay> relays)
+    {
+        this.relays = new ArrayList<SmtpRelay>(relays);
+    }
+
+    public List<SmtpRelay> getRelays()
+    {
+        return this.relays;
+    }
+
+    /**
+     * @return true if the relays are sent to with a {@link MailTransportEngine} rather than with pooled transports
+     */
+    public boolean usesEngine()
+    {
+        return this.relays.get(0).getEngine() != null;
+    }
+
+    /**
+     * @param excluded relays which have already failed for the message being sent
+     * @return the relay to send through, null if all the relays are excluded
+     */
+    public SmtpRelay select(Collection<SmtpRelay> excluded)
+    {
+        long now = System.currentTimeMillis();
+        int size = this.relays.size();
+        int offset = (this.next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        SmtpRelay best = null;
+        double bestLoad = Double.MAX_VALUE;
+        SmtpRelay firstBack = null;
+        for (int i = 0; i < size; i++) {
+            SmtpRelay relay = this.relays.get((offset + i) % size);
+            if (excluded.contains(relay)) {
+                continue;
+            }
+            if (relay.isHealthy()) {
+                double load = relay.getLoad();
+                if (load < bestLoad) {
+                    best = relay;
+                    bestLoad = load;
+                }
+            } else if (relay.claimProbe(now)) {
+                return relay;
+            } else if (firstBack == null || relay.getEjectedUntil() < firstBack.getEjectedUntil()) {
+                firstBack = relay;
+            }
+        }
+        return best != null ? best : firstBack;
+    }
+
+    /**
+     * @param excluded relays which have already failed for the message being sent
+     * @return true if there is a relay left to try
+     */
+    public boolean hasCandidate(Collection<SmtpRelay> excluded)
+    {
+        return excluded.size() < this.relays.size() && !excluded.containsAll(this.relays);
+    }
+
+    /**
+     * @return for each relay its "name", "weight", "active" connections, whether it's "healthy" and its number of
+     *         "consecutiveFailures"
+     */
+    public List<Map<String, Object>> getStatus()
+    {
+        List<Map<String, Object>> status = new ArrayList<Map<String, Object>>(this.relays.size());
+        for (SmtpRelay relay : this.relays) {
+            Map<String, Object> relayStatus = new LinkedHashMap<String, Object>();
+            relayStatus.put("name", relay.getName());
+            relayStatus.put("weight", relay.getWeight());
+            relayStatus.put("active", relay.getActiveCount());
+            relayStatus.put("healthy", relay.isHealthy());
+            relayStatus.put("consecutiveFailures", relay.getConsecutiveFailures());
+            status.add(relayStatus);
+        }
+        return status;
+    }
+
+    /**
+     * Close the connections to all the relays.
+     */
+    public void close()
+    {
+        for (SmtpRelay relay : this.relays) {
+            relay.close();
+        }
+    }
+}
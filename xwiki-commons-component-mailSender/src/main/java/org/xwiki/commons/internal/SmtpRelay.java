@@ -0,0 +1,190 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+/**
+ * An SMTP server mails can be sent through, with its pool of connections (or the engine sending to it) and its
+ * health. A relay failing several times in a row is ejected: it is not used anymore until its ejection time is over,
+ * then a single send probes it and either brings it back or ejects it again.
+ */
+public class SmtpRelay
+{
+    private final String name;
+
+    private final int weight;
+
+    private final TransportPool pool;
+
+    private final MailTransportEngine engine;
+
+    private final int maxFailures;
+
+    private final long ejectionTime;
+
+    private int consecutiveFailures;
+
+    /** Time until which the relay isn't used, 0 if it's healthy. */
+    private long ejectedUntil;
+
+    /**
+     * @param name identifies the relay in logs and statistics, usually <tt>host:port</tt>
+     * @param weight the share of the traffic the relay gets relatively to the other relays
+     * @param pool the connections to the relay
+     * @param maxFailures the number of consecutive failures after which the relay is ejected
+     * @param ejectionTime the time in milliseconds during which an ejected relay isn't used
+     */
+    public SmtpRelay(String name, int weight, TransportPool pool, int maxFailures, long ejectionTime)
+    {
+        this(name, weight, pool, null, maxFailures, ejectionTime);
+    }
+
+    /**
+     * @param name identifies the relay in logs and statistics, usually <tt>host:port</tt>
+     * @param weight the share of the traffic the relay gets relatively to the other relays
+     * @param pool the connections to the relay, null if the engine is used
+     * @param engine sends to the relay instead of the pooled transports, null to use the pool
+     * @param maxFailures the number of consecutive failures after which the relay is ejected
+     * @param ejectionTime the time in milliseconds during which an ejected relay isn't used
+     */
+    public SmtpRelay(String name, int weight, TransportPool pool, MailTransportEngine engine, int maxFailures,
+        long ejectionTime)
+    {
+        this.name = name;
+        this.weight = Math.max(1, weight);
+        this.pool = pool;
+        this.engine = engine;
+        this.maxFailures = Math.max(1, maxFailures);
+        this.ejectionTime = ejectionTime;
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    public int getWeight()
+    {
+        return this.weight;
+    }
+
+    public TransportPool getPool()
+    {
+        return this.pool;
+    }
+
+    /**
+     * @return the engine sending to the relay, null if the pooled transports are used
+     */
+    public MailTransportEngine getEngine()
+    {
+        return this.engine;
+    }
+
+    /**
+     * @return the number of connections in use, or of messages being sent by the engine
+     */
+    public int getActiveCount()
+    {
+        return this.engine != null ? this.engine.getPendingCount() : this.pool.getActiveCount();
+    }
+
+    /**
+     * @return the number of connections in use relatively to the weight of the relay
+     */
+    public double getLoad()
+    {
+        return (getActiveCount() + 1d) / this.weight;
+    }
+
+    public synchronized boolean isHealthy()
+    {
+        return this.ejectedUntil == 0;
+    }
+
+    /**
+     * @return the time until which the relay is ejected, 0 if it's healthy
+     */
+    public synchronized long getEjectedUntil()
+    {
+        return this.ejectedUntil;
+    }
+
+    public synchronized int getConsecutiveFailures()
+    {
+        return this.consecutiveFailures;
+    }
+
+    /**
+     * Take the probe of an ejected relay whose ejection is over. The next probe is allowed only after another ejection
+     * time, unless the probe succeeds in the meantime.
+     *
+     * @param now the current time
+     * @return true if the caller should send through this relay to probe it
+     */
+    public synchronized boolean claimProbe(long now)
+    {
+        if (this.ejectedUntil == 0 || now < this.ejectedUntil) {
+            return false;
+        }
+        this.ejectedUntil = now + this.ejectionTime;
+        return true;
+    }
+
+    /**
+     * The relay accepted a message: it's healthy again.
+     */
+    public synchronized void recordSuccess()
+    {
+        this.consecutiveFailures = 0;
+        this.ejectedUntil = 0;
+    }
+
+    /**
+     * The relay could not be connected to or broke the connection.
+     *
+     * @param now the current time
+     */
+    public synchronized void recordFailure(long now)
+    {
+        this.consecutiveFailures++;
+        if (this.ejectedUntil != 0 || this.consecutiveFailures >= this.maxFailures) {
+            // A failed probe ejects the relay again right away
+            this.ejectedUntil = now + this.ejectionTime;
+        }
+    }
+
+    /**
+     * Close the connections to the relay.
+     */
+    public void close()
+    {
+        if (this.engine != null) {
+            this.engine.close();
+        } else {
+            this.pool.close();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.name;
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Addresses which must not receive mails anymore, e.g. because they hard bounced or unsubscribed. Only a 64 bits hash
+ * of each address is kept, in a sorted array memory mapped from disk, so that millions of addresses take little heap. A
+ * Bloom filter in front of the array answers most lookups without searching it. Additions and removals are appended
+ * to a journal and kept in memory until they are merged into a new array. Without a directory everything is kept in
+ * memory.
+ */
+public class SuppressionList
+{
+    private static final String INDEX = "suppressions.idx";
+
+    private static final String JOURNAL = "suppressions.log";
+
+    private static final int MAGIC = 0x58535550;
+
+    private static final int VERSION = 1;
+
+    /** Magic, version and number of hashes. */
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte ADD = '+';
+
+    private static final byte REMOVE = '-';
+
+    private static final int RECORD_SIZE = 9;
+
+    /** Minimum number of pending changes before they are merged into the array. */
+    private static final int MIN_PENDING = 10000;
+
+    /** Bits of the Bloom filter per address, giving about 1% of false positives with {@link #PROBES}. */
+    private static final int BITS_PER_ADDRESS = 10;
+
+    private static final int PROBES = 7;
+
+    private static final int MIN_BITS = 1024;
+
+    /** The merged hashes and the Bloom filter covering them and the pending additions. */
+    private static final class Snapshot
+    {
+        private final LongBuffer hashes;
+
+        private final AtomicLongArray bloom;
+
+        private final int mask;
+
+        Snapshot(LongBuffer hashes, int pendingCapacity)
+        {
+            this.hashes = hashes;
+            long bits = Math.max(MIN_BITS, (long) (hashes.limit() + pendingCapacity) * BITS_PER_ADDRESS);
+            int size = Integer.highestOneBit((int) Math.min(bits, 1L << 30) - 1) << 1;
+            this.bloom = new AtomicLongArray(size >>> 6);
+            this.mask = size - 1;
+            for (int i = 0; i < hashes.limit(); i++) {
+                mark(hashes.get(i));
+            }
+        }
+
+        void mark(long hash)
+        {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < PROBES; i++) {
+                int bit = (h1 + i * h2) & this.mask;
+                int index = bit >>> 6;
+                long flag = 1L << bit;
+                long word;
+                do {
+                    word = this.bloom.get(index);
+                } while ((word & flag) == 0 && !this.bloom.compareAndSet(index, word, word | flag));
+            }
+        }
+
+        boolean mightContain(long hash)
+        {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < PROBES; i++) {
+                int bit = (h1 + i * h2) & this.mask;
+                if ((this.bloom.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean contains(long hash)
+        {
+            int low = 0;
+            int high = this.hashes.limit() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                long value = this.hashes.get(middle);
+                if (value < hash) {
+                    low = middle + 1;
+                } else if (value > hash) {
+                    high = middle - 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final File directory;
+
+    private volatile Snapshot snapshot = new Snapshot(LongBuffer.allocate(0), MIN_PENDING);
+
+    /** Hashes added since the last merge, not in the array. */
+    private final Set<Long> added = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /** Hashes removed since the last merge, still in the array. */
+    private final Set<Long> removed = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    private volatile int size;
+
+    private DataOutputStream journal;
+
+    /**
+     * @param directory where the suppressed addresses are stored, null to keep them in memory
+     */
+    public SuppressionList(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Map the stored addresses and replay the changes made since they were last merged.
+     *
+     * @throws IOException if the files can't be read or the journal can't be opened
+     */
+    public synchronized void open() throws IOException
+    {
+        if (this.directory == null) {
+            return;
+        }
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Failed to create the directory [" + this.directory + "]");
+        }
+        File index = new File(this.directory, INDEX);
+        LongBuffer hashes = index.exists() ? map(index) : LongBuffer.allocate(0);
+        this.snapshot = new Snapshot(hashes, getMaxPending(hashes.limit()));
+        this.size = hashes.limit();
+        this.added.clear();
+        this.removed.clear();
+
+        File journalFile = new File(this.directory, JOURNAL);
+        if (journalFile.exists()) {
+            replay(journalFile);
+        }
+        this.journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        if (this.added.size() + this.removed.size() >= getMaxPending(this.snapshot.hashes.limit())) {
+            compact();
+        }
+    }
+
+    /**
+     * @param address an email address, without display name
+     * @return true if mails must not be sent to the address
+     */
+    public boolean contains(String address)
+    {
+        return contains(hash(address));
+    }
+
+    /**
+     * @return true if there is no suppressed address, so that the recipients don't need to be checked
+     */
+    public boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * @param address an email address, without display name
+     * @return true if the address has been added, false if it was already suppressed
+     * @throws IOException if the change can't be written to the journal
+     */
+    public synchronized boolean add(String address) throws IOException
+    {
+        return addAll(Collections.singleton(address)) > 0;
+    }
+
+    /**
+     * @param addresses email addresses, without display name
+     * @return the number of addresses added, the others being already suppressed
+     * @throws IOException if the changes can't be written to the journal
+     */
+    public synchronized int addAll(Collection<String> addresses) throws IOException
+    {
+        int count = 0;
+        try {
+            for (String address : addresses) {
+                long hash = hash(address);
+                if (apply(ADD, hash)) {
+                    log(ADD, hash);
+                    count++;
+                }
+            }
+        } finally {
+            flush();
+        }
+        compactIfNeeded();
+        return count;
+    }
+
+    /**
+     * @param address an email address, without display name
+     * @return true if the address has been removed, false if it wasn't suppressed
+     * @throws IOException if the change can't be written to the journal
+     */
+    public synchronized boolean remove(String address) throws IOException
+    {
+        long hash = hash(address);
+        if (!apply(REMOVE, hash)) {
+            return false;
+        }
+        try {
+            log(REMOVE, hash);
+        } finally {
+            flush();
+        }
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Merge the pending changes into a new sorted array and start a new journal.
+     *
+     * @throws IOException if the array or the journal can't be written
+     */
+    public synchronized void compact() throws IOException
+    {
+        Snapshot current = this.snapshot;
+        Long[] additions = this.added.toArray(new Long[this.added.size()]);
+        Arrays.sort(additions);
+        long[] merged = new long[current.hashes.limit() - this.removed.size() + additions.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < current.hashes.limit() || j < additions.length) {
+            if (j == additions.length || i < current.hashes.limit() && current.hashes.get(i) < additions[j]) {
+                long hash = current.hashes.get(i++);
+                if (!this.removed.contains(hash)) {
+                    merged[k++] = hash;
+                }
+            } else {
+                merged[k++] = additions[j++];
+            }
+        }
+        LongBuffer hashes = this.directory != null ? map(write(merged, k)) : LongBuffer.wrap(merged, 0, k).slice();
+        // Published before clearing the pending changes so that a concurrent lookup never misses an address
+        this.snapshot = new Snapshot(hashes, getMaxPending(k));
+        this.added.clear();
+        this.removed.clear();
+        this.size = k;
+        if (this.journal != null) {
+            this.journal.close();
+            this.journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(
+                this.directory, JOURNAL), false)));
+        }
+    }
+
+    public synchronized void close()
+    {
+        if (this.journal != null) {
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                // Every change has already been flushed
+            }
+            this.journal = null;
+        }
+    }
+
+    /**
+     * @return a 64 bits hash of the address, ignoring its case and surrounding whitespace
+     */
+    static long hash(String address)
+    {
+        String normalized = address.trim().toLowerCase(Locale.ROOT);
+        // FNV-1a, then the MurmurHash3 finalizer to spread the bits used by the Bloom filter
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private boolean contains(long hash)
+    {
+        if (!this.snapshot.mightContain(hash)) {
+            return false;
+        }
+        if (!this.removed.isEmpty() && this.removed.contains(hash)) {
+            return false;
+        }
+        // The snapshot is read again after the pending additions, which are cleared only once it has been replaced
+        return !this.added.isEmpty() && this.added.contains(hash) || this.snapshot.contains(hash);
+    }
+
+    /**
+     * @return true if the change had an effect
+     */
+    private boolean apply(byte operation, long hash)
+    {
+        boolean present = contains(hash);
+        if (operation == ADD && !present) {
+            if (!this.removed.remove(hash)) {
+                this.added.add(hash);
+                this.snapshot.mark(hash);
+            }
+            this.size++;
+            return true;
+        } else if (operation == REMOVE && present) {
+            if (!this.added.remove(hash)) {
+                this.removed.add(hash);
+            }
+            this.size--;
+            return true;
+        }
+        return false;
+    }
+
+    private void log(byte operation, long hash) throws IOException
+    {
+        if (this.journal != null) {
+            this.journal.writeByte(operation);
+            this.journal.writeLong(hash);
+        }
+    }
+
+    private void flush() throws IOException
+    {
+        if (this.journal != null) {
+            this.journal.flush();
+        }
+    }
+
+    private void compactIfNeeded() throws IOException
+    {
+        if (this.added.size() + this.removed.size() >= getMaxPending(this.snapshot.hashes.limit())) {
+            compact();
+        }
+    }
+
+    private int getMaxPending(int merged)
+    {
+        return Math.max(MIN_PENDING, merged / 8);
+    }
+
+    private void replay(File journalFile) throws IOException
+    {
+        // Drop a record torn by a crash so that the next ones are appended at the right place
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.setLength(file.length() - file.length() % RECORD_SIZE);
+        } finally {
+            file.close();
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            while (true) {
+                byte operation = in.readByte();
+                apply(operation, in.readLong());
+            }
+        } catch (EOFException e) {
+            // End of the journal
+        } finally {
+            in.close();
+        }
+    }
+
+    private File write(long[] hashes, int count) throws IOException
+    {
+        File index = new File(this.directory, INDEX);
+        File temporary = new File(this.directory, INDEX + ".tmp");
+        FileOutputStream file = new FileOutputStream(temporary);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(hashes[i]);
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!temporary.renameTo(index) && !(index.delete() && temporary.renameTo(index))) {
+            throw new IOException("Failed to replace [" + index + "]");
+        }
+        return index;
+    }
+
+    private LongBuffer map(File index) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(index, "r");
+        try {
+            if (file.length() < HEADER_SIZE || file.readInt() != MAGIC || file.readInt() != VERSION) {
+                throw new IOException("[" + index + "] is not a suppression list");
+            }
+            long count = file.readLong();
+            if (count < 0 || HEADER_SIZE + count * 8 > file.length() || count * 8 > Integer.MAX_VALUE) {
+                throw new IOException("[" + index + "] is corrupted");
+            }
+            // The mapping stays valid once the file is closed
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, count * 8).asLongBuffer();
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Bounded pool of connected SMTP transports sharing the same {@link Session}. Connections are health checked before
+ * being handed out again (for the SMTP provider {@link Transport#isConnected()} issues a <tt>NOOP</tt>) and closed
+ * once they have been idle longer than the configured timeout.
+ */
+public class TransportPool
+{
+    /** Single daemon thread shared by all the pools to close idle connections. */
+    private static final ScheduledExecutorService EVICTOR =
+        Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Mail transport pool evictor"));
+
+    private final Session session;
+
+    private final long idleTimeout;
+
+    private final long borrowTimeout;
+
+    private final int maxSize;
+
+    private final Semaphore permits;
+
+    /** Idle connections, the most recently used first so that the warmest ones are reused. */
+    private final LinkedBlockingDeque<Lease> idle = new LinkedBlockingDeque<Lease>();
+
+    private final ScheduledFuture< ? > evictionTask;
+
+    private volatile boolean closed;
+
+    /**
+     * A transport borrowed from the pool.
+     */
+    public static class Lease
+    {
+        private final Transport transport;
+
+        private final boolean reused;
+
+        private long lastUsed;
+
+        Lease(Transport transport, boolean reused)
+        {
+            this.transport = transport;
+            this.reused = reused;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public Transport getTransport()
+        {
+            return this.transport;
+        }
+
+        /**
+         * @return true if the connection was already opened by a previous send, false if it was opened for this lease
+         */
+        public boolean isReused()
+        {
+            return this.reused;
+        }
+    }
+
+    /**
+     * @param session the session used to open the connections
+     * @param maxSize the maximum number of connections opened at the same time
+     * @param idleTimeout time in milliseconds after which an idle connection is closed, 0 to keep them forever
+     * @param borrowTimeout time in milliseconds to wait for a connection when all of them are borrowed
+     */
+    public TransportPool(Session session, int maxSize, long idleTimeout, long borrowTimeout)
+    {
+        this.session = session;
+        this.idleTimeout = idleTimeout;
+        this.borrowTimeout = borrowTimeout;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+        if (idleTimeout > 0) {
+            this.evictionTask = EVICTOR.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    evictIdle();
+                }
+            }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+        } else {
+            this.evictionTask = null;
+        }
+    }
+
+    public Session getSession()
+    {
+        return this.session;
+    }
+
+    /**
+     * @return the number of connections currently borrowed
+     */
+    public int getActiveCount()
+    {
+        return this.maxSize - this.permits.availablePermits();
+    }
+
+    /**
+     * Get a connected transport, waiting for one to be released if the pool is exhausted.
+     *
+     * @return the lease to give back with {@link #release(Lease)} or {@link #invalidate(Lease)}
+     * @throws MessagingException if no connection can be opened, or if none has been released in time
+     */
+    public Lease borrow() throws MessagingException
+    {
+        if (this.closed) {
+            throw new MessagingException("The transport pool is closed");
+        }
+        try {
+            if (!this.permits.tryAcquire(this.borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new MessagingException("No SMTP connection has been released in " + this.borrowTimeout
+                    + " ms, the " + this.maxSize + " connections of the pool are in use");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for an SMTP connection", e);
+        }
+        try {
+            Lease lease;
+            while ((lease = this.idle.pollFirst()) != null) {
+                if (!isExpired(lease, System.currentTimeMillis()) && lease.transport.isConnected()) {
+                    return new Lease(lease.transport, true);
+                }
+                closeQuietly(lease.transport);
+            }
+            return new Lease(connect(), false);
+        } catch (MessagingException e) {
+            this.permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a transport which can be reused.
+     *
+     * @param lease the lease obtained from {@link #borrow()}
+     */
+    public void release(Lease lease)
+    {
+        try {
+            if (this.closed) {
+                closeQuietly(lease.transport);
+            } else {
+                lease.lastUsed = System.currentTimeMillis();
+                this.idle.offerFirst(lease);
+            }
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Give back a transport which is in an unknown state after a failure. The connection is closed.
+     *
+     * @param lease the lease obtained from {@link #borrow()}
+     */
+    public void invalidate(Lease lease)
+    {
+        try {
+            closeQuietly(lease.transport);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * Close the idle connections and make sure the borrowed ones are closed when released.
+     */
+    public void close()
+    {
+        this.closed = true;
+        if (this.evictionTask != null) {
+            this.evictionTask.cancel(false);
+        }
+        Lease lease;
+        while ((lease = this.idle.pollFirst()) != null) {
+            closeQuietly(lease.transport);
+        }
+    }
+
+    /**
+     * Close the connections which have been idle for too long.
+     */
+    void evictIdle()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Lease> it = this.idle.descendingIterator();
+        while (it.hasNext()) {
+            Lease lease = it.next();
+            if (isExpired(lease, now) && this.idle.remove(lease)) {
+                closeQuietly(lease.transport);
+            }
+        }
+    }
+
+    private boolean isExpired(Lease lease, long now)
+    {
+        return this.idleTimeout > 0 && now - lease.lastUsed > this.idleTimeout;
+    }
+
+    private Transport connect() throws MessagingException
+    {
+        Transport transport = this.session.getTransport("smtp");
+        if ("true".equals(this.session.getProperty("mail.smtp.auth"))) {
+            transport.connect(this.session.getProperty("mail.smtp.server.username"),
+                this.session.getProperty("mail.smtp.server.password"));
+        } else {
+            transport.connect();
+        }
+        return transport;
+    }
+
+    private void closeQuietly(Transport transport)
+    {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            // The connection is discarded anyway
+        }
+    }
+}
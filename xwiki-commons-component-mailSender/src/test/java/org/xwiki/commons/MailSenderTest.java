@@ -19,9 +19,13 @@
  */
 package org.xwiki.commons;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 import javax.mail.Address;
@@ -37,13 +41,25 @@ import org.slf4j.Logger;
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.commons.internal.DefaultMailSender;
 import org.xwiki.commons.internal.Mail;
+import org.xwiki.commons.internal.MailSenderSettings;
+import org.xwiki.commons.internal.MailTemplateCache;
+import org.xwiki.commons.internal.ScriptedSmtpServer;
 import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.test.AbstractMockingComponentTestCase;
 import org.xwiki.test.annotation.MockingRequirement;
+import org.xwiki.velocity.VelocityManager;
+
+import com.xpn.xwiki.XWikiContext;
 
 import org.jmock.Mock;
 import org.jmock.Mockery;
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.jvnet.mock_javamail.Mailbox;
 
 /**
@@ -82,10 +98,13 @@ public class MailSenderTest extends AbstractMockingComponentTestCase<MailSender>
         ReflectionUtils.setFieldValue(this.mailSender, "logger", logger);
         final DocumentAccessBridge documentAccessBridge = mockery.mock(DocumentAccessBridge.class, "mockDAB");
         ReflectionUtils.setFieldValue(this.mailSender, "documentAccessBridge", documentAccessBridge);
+        final Execution execution = getComponentManager().getInstance(Execution.class);
 
         mockery.checking(new Expectations()
         {
             {
+                allowing(execution).getContext();
+                will(returnValue(new ExecutionContext()));
                 oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_server");
                 will(returnValue("myserver"));
                 oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_port");
@@ -125,6 +144,92 @@ public class MailSenderTest extends AbstractMockingComponentTestCase<MailSender>
         Assert.assertEquals("alfred@acme.org", recipients[1].toString());
     }
 
+    @Test
+    public void testConfigurationIsCached() throws Exception
+    {
+        Mockery mockery = getMockery();
+        final Logger logger = mockery.mock(Logger.class);
+        ReflectionUtils.setFieldValue(this.mailSender, "logger", logger);
+        final DocumentAccessBridge documentAccessBridge = mockery.mock(DocumentAccessBridge.class, "mockDAB");
+        ReflectionUtils.setFieldValue(this.mailSender, "documentAccessBridge", documentAccessBridge);
+        final Execution execution = getComponentManager().getInstance(Execution.class);
+
+        // The preferences are only read for the first mail
+        mockery.checking(new Expectations()
+        {
+            {
+                allowing(execution).getContext();
+                will(returnValue(new ExecutionContext()));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_server");
+                will(returnValue("myserver"));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_port");
+                will(returnValue(25));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_server_username");
+                will(returnValue(""));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_server_password");
+                will(returnValue(""));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "javamail_extra_props");
+                will(returnValue(""));
+                oneOf(logger).info("Sending mail : Initializing properties");
+            }
+        });
+
+        for (int i = 0; i < 3; i++) {
+            Mail mail = this.mailSender.newMail("john@acme.org", "peter@acme.org", null, null, "Test " + i);
+            mail.addContent("text/plain", "Test");
+            Assert.assertEquals(1, this.mailSender.send(mail));
+        }
+        mockery.assertIsSatisfied();
+        Assert.assertEquals(3, Mailbox.get("peter@acme.org").size());
+        Map<String, Object> statistics = ((DefaultMailSender) this.mailSender).getStatistics();
+        Assert.assertEquals(3L, statistics.get("sent"));
+        Assert.assertEquals(1L, ((Map< ? , ? >) statistics.get("configuration")).get("count"));
+    }
+
+    @Test
+    public void testSendAsync() throws Exception
+    {
+        Mockery mockery = getMockery();
+        final Logger logger = mockery.mock(Logger.class);
+        ReflectionUtils.setFieldValue(this.mailSender, "logger", logger);
+        final DocumentAccessBridge documentAccessBridge = mockery.mock(DocumentAccessBridge.class, "mockDAB");
+        ReflectionUtils.setFieldValue(this.mailSender, "documentAccessBridge", documentAccessBridge);
+        final Execution execution = getComponentManager().getInstance(Execution.class);
+
+        mockery.checking(new Expectations()
+        {
+            {
+                allowing(execution).getContext();
+                will(returnValue(new ExecutionContext()));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_server");
+                will(returnValue("myserver"));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_port");
+                will(returnValue(25));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_server_username");
+                will(returnValue(""));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_server_password");
+                will(returnValue(""));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "javamail_extra_props");
+                will(returnValue(""));
+                oneOf(logger).info("Sending mail : Initializing properties");
+            }
+        });
+
+        Mail mail = this.mailSender.newMail("john@acme.org", "peter@acme.org", null, null, "Test async");
+        mail.addContent("text/plain", "Test");
+        String id = this.mailSender.sendAsync(mail);
+        Assert.assertNotNull(id);
+
+        long timeout = System.currentTimeMillis() + 10000;
+        while (!"sent".equals(this.mailSender.getMailStatus(id)) && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        mockery.assertIsSatisfied();
+        Assert.assertEquals("sent", this.mailSender.getMailStatus(id));
+        Assert.assertEquals("Test async", Mailbox.get("peter@acme.org").get(0).getSubject());
+        Assert.assertNull(this.mailSender.getMailStatus("unknown"));
+    }
+
     @Test
     public void testNoRecipient()
     {
@@ -145,6 +250,238 @@ public class MailSenderTest extends AbstractMockingComponentTestCase<MailSender>
         Assert.assertEquals(0, result);
     }
 
+    @Test
+    public void testDeferredRecipientsAreRetried() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            server.replyToRecipient("peter@acme.org", "451 Greylisted, try again later");
+            configureRetries(server);
+
+            // Nobody got the mail yet, the caller must not send it again
+            Assert.assertEquals(MailSender.RETRYING, this.mailSender.send(newMail("peter@acme.org")));
+
+            waitForSentMails(1);
+            Assert.assertEquals(1, server.getMessages().size());
+            Assert.assertTrue(((DefaultMailSender) this.mailSender).getDeadLetters().isEmpty());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMailIsRetriedWhenTheServerIsNotAvailable() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            server.replyToMail("421 Service not available");
+            configureRetries(server);
+
+            Assert.assertEquals(MailSender.RETRYING, this.mailSender.send(newMail("peter@acme.org")));
+
+            waitForSentMails(1);
+            Assert.assertEquals(1, server.getMessages().size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMailRejectedForAllRecipientsIsNotSent() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            server.replyToRecipient("peter@acme.org", "550 No such user");
+            configureRetries(server);
+
+            Assert.assertEquals(0, this.mailSender.send(newMail("peter@acme.org")));
+
+            Assert.assertTrue(server.getMessages().isEmpty());
+            Assert.assertEquals(0L, ((DefaultMailSender) this.mailSender).getStatistics().get("sent"));
+            List<Map<String, Object>> deadLetters = ((DefaultMailSender) this.mailSender).getDeadLetters();
+            Assert.assertEquals(1, deadLetters.size());
+            Assert.assertEquals("peter@acme.org", deadLetters.get(0).get("recipients"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPartialDeliveryIsCountedAsSent() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            server.replyToRecipient("paul@acme.org", "550 No such user");
+            configureRetries(server);
+
+            Assert.assertEquals(1, this.mailSender.send(newMail("peter@acme.org, paul@acme.org")));
+
+            Assert.assertEquals(1, server.getMessages().size());
+            Assert.assertEquals(1L, ((DefaultMailSender) this.mailSender).getStatistics().get("sent"));
+            List<Map<String, Object>> deadLetters = ((DefaultMailSender) this.mailSender).getDeadLetters();
+            Assert.assertEquals(1, deadLetters.size());
+            Assert.assertEquals("paul@acme.org", deadLetters.get(0).get("recipients"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSendToEachRetriesTheDeferredCopies() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            server.replyToRecipient("paul@acme.org", "451 Greylisted, try again later");
+            configureRetries(server);
+
+            Assert.assertEquals(1, this.mailSender.sendToEach(newMail("peter@acme.org, paul@acme.org")));
+
+            waitForSentMails(2);
+            Assert.assertEquals(2, server.getMessages().size());
+            // Sent again to paul only
+            Assert.assertTrue(server.getMessages().get(1).contains("To: paul@acme.org"));
+            Assert.assertTrue(((DefaultMailSender) this.mailSender).getDeadLetters().isEmpty());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSendToEachRetriesTheRemainingCopiesWhenTheServerIsNotAvailable() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            server.replyToMail("421 Service not available");
+            configureRetries(server);
+
+            Assert.assertEquals(0, this.mailSender.sendToEach(newMail("peter@acme.org, paul@acme.org")));
+
+            waitForSentMails(2);
+            Assert.assertEquals(2, server.getMessages().size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMailMergeIsRenderedByTheWorkers() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            List<Rendering> renderings = new ArrayList<Rendering>();
+            XWikiContext xwikiContext = configureMailMerge(server, 2, true, renderings);
+
+            int[] results = this.mailSender.sendMailMerge("Main.Newsletter", "john@acme.org", "en",
+                newRecipients("peter@acme.org", "paul@acme.org", "mary@acme.org"));
+
+            Assert.assertArrayEquals(new int[] {1, 1, 1}, results);
+            Assert.assertEquals(3, renderings.size());
+            for (Rendering rendering : renderings) {
+                Assert.assertTrue(rendering.thread.startsWith("Mail merge"));
+                // Each mail is rendered with its own copy of the context of the request
+                Assert.assertNotSame(xwikiContext, rendering.context);
+                Assert.assertEquals("xwiki", rendering.context.getDatabase());
+                Assert.assertEquals("XWiki.JohnDoe", rendering.context.getUser());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMailMergeResultsFollowTheRecipients() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            configureMailMerge(server, 4, true, new ArrayList<Rendering>());
+            String[] recipients = new String[10];
+            for (int i = 0; i < recipients.length; i++) {
+                recipients[i] = "user" + i + "@acme.org";
+            }
+
+            int[] results =
+                this.mailSender.sendMailMerge("Main.Newsletter", "john@acme.org", "en", newRecipients(recipients));
+
+            Assert.assertEquals(recipients.length, results.length);
+            List<String> messages = server.getMessages();
+            Assert.assertEquals(recipients.length, messages.size());
+            for (int i = 0; i < recipients.length; i++) {
+                Assert.assertEquals(1, results[i]);
+                // Rendered in parallel but sent in order
+                Assert.assertTrue(messages.get(i).contains("To: " + recipients[i]));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMailMergeRendersAheadWithinTheWindow() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            List<Rendering> renderings = new ArrayList<Rendering>();
+            // A window of 4 mails for a single worker
+            configureMailMerge(server, 1, true, renderings);
+            String[] recipients = new String[12];
+            for (int i = 0; i < recipients.length; i++) {
+                recipients[i] = "user" + i + "@acme.org";
+            }
+
+            this.mailSender.sendMailMerge("Main.Newsletter", "john@acme.org", "en", newRecipients(recipients));
+
+            Assert.assertEquals(recipients.length, renderings.size());
+            for (int i = 0; i < renderings.size(); i++) {
+                // The single worker renders in order, never more than 4 mails ahead of the sent ones
+                Assert.assertTrue("Mail " + i + " rendered too early", renderings.get(i).sent >= i - 3);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMailMergeGoesOnAfterAFailedRecipient() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            server.replyToRecipient("paul@acme.org", "550 No such user");
+            configureMailMerge(server, 2, true, new ArrayList<Rendering>());
+
+            int[] results = this.mailSender.sendMailMerge("Main.Newsletter", "john@acme.org", "en",
+                newRecipients("peter@acme.org", "paul@acme.org", "mary@acme.org"));
+
+            Assert.assertArrayEquals(new int[] {1, 0, 1}, results);
+            List<String> messages = server.getMessages();
+            Assert.assertEquals(2, messages.size());
+            Assert.assertTrue(messages.get(1).contains("To: mary@acme.org"));
+            List<Map<String, Object>> deadLetters = ((DefaultMailSender) this.mailSender).getDeadLetters();
+            Assert.assertEquals(1, deadLetters.size());
+            Assert.assertEquals("paul@acme.org", deadLetters.get(0).get("recipients"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMailMergeNeedsTheViewRightOnTheTemplate() throws Exception
+    {
+        ScriptedSmtpServer server = new ScriptedSmtpServer();
+        try {
+            List<Rendering> renderings = new ArrayList<Rendering>();
+            configureMailMerge(server, 2, false, renderings);
+
+            int[] results = this.mailSender.sendMailMerge("Main.Newsletter", "john@acme.org", "en",
+                newRecipients("peter@acme.org", "paul@acme.org"));
+
+            Assert.assertArrayEquals(new int[] {0, 0}, results);
+            Assert.assertTrue(renderings.isEmpty());
+            Assert.assertTrue(server.getMessages().isEmpty());
+        } finally {
+            server.stop();
+        }
+    }
+
     @Test
     public void testNoContent()
     {
@@ -181,4 +518,171 @@ public class MailSenderTest extends AbstractMockingComponentTestCase<MailSender>
         getLine.useDelimiter("\n");
         Assert.assertEquals("20130101T090505Z", getLine.next());
     }
+
+    /**
+     * Send with the non blocking SMTP client, which doesn't go through mock_javamail, to the given server and retry
+     * quickly.
+     */
+    private void configureRetries(ScriptedSmtpServer server) throws Exception
+    {
+        configureRetries(server, new ExecutionContext(), "");
+    }
+
+    /**
+     * @param context the execution context of the request
+     * @param properties more Java Mail properties, one per line
+     * @return the mocked document access bridge
+     */
+    private DocumentAccessBridge configureRetries(final ScriptedSmtpServer server, final ExecutionContext context,
+        final String properties) throws Exception
+    {
+        Mockery mockery = getMockery();
+        final Logger logger = mockery.mock(Logger.class);
+        ReflectionUtils.setFieldValue(this.mailSender, "logger", logger);
+        final DocumentAccessBridge documentAccessBridge = mockery.mock(DocumentAccessBridge.class, "mockDAB");
+        ReflectionUtils.setFieldValue(this.mailSender, "documentAccessBridge", documentAccessBridge);
+        final Execution execution = getComponentManager().getInstance(Execution.class);
+
+        mockery.checking(new Expectations()
+        {
+            {
+                ignoring(logger);
+                allowing(execution).getContext();
+                will(returnValue(context));
+                allowing(documentAccessBridge).hasProgrammingRights();
+                will(returnValue(true));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_server");
+                will(returnValue("127.0.0.1"));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_port");
+                will(returnValue(server.getPort()));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_server_username");
+                will(returnValue(""));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "smtp_server_password");
+                will(returnValue(""));
+                oneOf(documentAccessBridge).getProperty("XWiki.XWikiPreferences", "javamail_extra_props");
+                will(returnValue("mail.sender.engine=nio\nmail.sender.retry.initialDelay=100\n"
+                    + "mail.sender.retry.maxDelay=100\n" + properties));
+            }
+        });
+        return documentAccessBridge;
+    }
+
+    /**
+     * Send the mail merges of the <tt>Main.Newsletter</tt> template to the given server, as <tt>XWiki.JohnDoe</tt>.
+     *
+     * @param threads the number of rendering threads
+     * @param viewRight whether the user can view the template
+     * @param renderings filled with the mails rendered
+     * @return the XWiki context of the request
+     */
+    private XWikiContext configureMailMerge(final ScriptedSmtpServer server, int threads, boolean viewRight,
+        final List<Rendering> renderings) throws Exception
+    {
+        XWikiContext xwikiContext = new XWikiContext();
+        xwikiContext.setDatabase("xwiki");
+        xwikiContext.setUser("XWiki.JohnDoe");
+        ExecutionContext context = new ExecutionContext();
+        context.setProperty("xwikicontext", xwikiContext);
+        final DocumentAccessBridge documentAccessBridge =
+            configureRetries(server, context, MailSenderSettings.MERGE_THREADS + '=' + threads + '\n');
+        final Execution execution = getComponentManager().getInstance(Execution.class);
+        final ExecutionContextManager executionContextManager =
+            getComponentManager().getInstance(ExecutionContextManager.class);
+        final VelocityManager velocityManager = getComponentManager().getInstance(VelocityManager.class);
+        final DocumentReference template = new DocumentReference("xwiki", "Main", "Newsletter");
+        final DocumentReference mailClass = new DocumentReference("xwiki", "XWiki", "Mail");
+
+        // Checking the right for real needs a whole wiki
+        MailTemplateCache cache = new MailTemplateCache(10, 60000);
+        cache.putViewRight("XWiki.JohnDoe", "xwiki:Main.Newsletter/", viewRight);
+        ReflectionUtils.setFieldValue(this.mailSender, "mailTemplateCache", cache);
+
+        getMockery().checking(new Expectations()
+        {
+            {
+                allowing(documentAccessBridge).getCurrentDocumentReference();
+                will(returnValue(new DocumentReference("xwiki", "Main", "WebHome")));
+                allowing(documentAccessBridge).getObjectNumber(template, mailClass, "language", "en");
+                will(returnValue(0));
+                allowing(documentAccessBridge).getProperty(template, mailClass, 0, "subject");
+                will(returnValue("Newsletter"));
+                allowing(documentAccessBridge).getProperty(template, mailClass, 0, "text");
+                will(returnValue("News"));
+                allowing(documentAccessBridge).getProperty(template, mailClass, 0, "html");
+                will(returnValue(""));
+                allowing(execution).setContext(with(any(ExecutionContext.class)));
+                allowing(execution).removeContext();
+                allowing(executionContextManager).initialize(with(any(ExecutionContext.class)));
+                will(new CustomAction("record the rendering")
+                {
+                    @Override
+                    public Object invoke(Invocation invocation)
+                    {
+                        ExecutionContext workerContext = (ExecutionContext) invocation.getParameter(0);
+                        synchronized (renderings) {
+                            renderings.add(new Rendering((XWikiContext) workerContext.getProperty("xwikicontext"),
+                                server.getMessages().size()));
+                        }
+                        return null;
+                    }
+                });
+                allowing(velocityManager).getVelocityContext();
+                will(new CustomAction("create a Velocity context")
+                {
+                    @Override
+                    public Object invoke(Invocation invocation)
+                    {
+                        return new VelocityContext();
+                    }
+                });
+            }
+        });
+        return xwikiContext;
+    }
+
+    private Map<String, Map<String, Object>> newRecipients(String... addresses)
+    {
+        Map<String, Map<String, Object>> recipients = new LinkedHashMap<String, Map<String, Object>>();
+        for (String address : addresses) {
+            recipients.put(address, new HashMap<String, Object>());
+        }
+        return recipients;
+    }
+
+    private Mail newMail(String to)
+    {
+        Mail mail = this.mailSender.newMail("john@acme.org", to, null, null, "Test");
+        mail.addContent("text/plain", "Test");
+        return mail;
+    }
+
+    private void waitForSentMails(long count) throws InterruptedException
+    {
+        for (int i = 0; i < 100; i++) {
+            if (((Long) ((DefaultMailSender) this.mailSender).getStatistics().get("sent")) >= count) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        Assert.fail("The mail has not been sent again");
+    }
+
+    /**
+     * A mail rendered for a mail merge.
+     */
+    private static class Rendering
+    {
+        private final XWikiContext context;
+
+        private final String thread = Thread.currentThread().getName();
+
+        /** The number of mails the server had received when the rendering started. */
+        private final int sent;
+
+        Rendering(XWikiContext context, int sent)
+        {
+            this.context = context;
+            this.sent = sent;
+        }
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AttachmentDataSource}.
+ */
+public class AttachmentDataSourceTest
+{
+    @Test
+    public void testSmallAttachmentStaysInMemory() throws Exception
+    {
+        AttachmentDataSource source =
+            new AttachmentDataSource("small.txt", "text/plain", "content".getBytes(), 1024, null);
+        Assert.assertFalse(source.isSpilled());
+        Assert.assertEquals("content", read(source));
+        // The content can be read several times, e.g. when the message is sent again after a failure
+        Assert.assertEquals("content", read(source));
+    }
+
+    @Test
+    public void testSpilledAttachmentIsDeletedWhenMessageIsDisposed() throws Exception
+    {
+        File directory = File.createTempFile("attachments", "");
+        directory.delete();
+        AttachmentDataSource source =
+            new AttachmentDataSource("big.txt", "text/plain", "big content".getBytes(), 4, directory);
+        Assert.assertTrue(source.isSpilled());
+        Assert.assertEquals(1, directory.listFiles().length);
+        Assert.assertEquals("big content", read(source));
+
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(source));
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(part);
+        MimeMessage message = new MimeMessage(Session.getInstance(System.getProperties()));
+        message.setContent(multipart);
+
+        AttachmentDataSource.disposeAll(message);
+        Assert.assertEquals(0, directory.listFiles().length);
+        directory.delete();
+    }
+
+    @Test
+    public void testOtherPartsAreNotReadWhenMessageIsDisposed() throws Exception
+    {
+        final int[] reads = new int[1];
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new DataSource()
+        {
+            @Override
+            public InputStream getInputStream()
+            {
+                reads[0]++;
+                return new ByteArrayInputStream("a,b".getBytes());
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException
+            {
+                throw new IOException("Read-only");
+            }
+
+            @Override
+            public String getContentType()
+            {
+                return "text/csv";
+            }
+
+            @Override
+            public String getName()
+            {
+                return "cached.csv";
+            }
+        }));
+        MimeMultipart multipart = new MimeMultipart();
+        multipart.addBodyPart(part);
+        MimeMessage message = new MimeMessage(Session.getInstance(System.getProperties()));
+        message.setContent(multipart);
+
+        AttachmentDataSource.disposeAll(message);
+        Assert.assertEquals(0, reads[0]);
+    }
+
+    private String read(AttachmentDataSource source) throws Exception
+    {
+        InputStream in = source.getInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.mock_javamail.Mailbox;
+
+/**
+ * Tests for {@link BatchTransmitter}.
+ */
+public class BatchTransmitterTest
+{
+    private TransportPool pool;
+
+    private Session session;
+
+    @Before
+    public void setUp()
+    {
+        Mailbox.clearAll();
+        Properties properties = new Properties();
+        properties.setProperty("mail.smtp.host", "myserver");
+        this.session = Session.getInstance(properties, null);
+        this.pool = new TransportPool(this.session, 1, 0, 1000);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.pool.close();
+    }
+
+    @Test
+    public void testRecipientsAreSentInChunks() throws Exception
+    {
+        Address[] recipients = InternetAddress.parse("a@acme.org,b@acme.org,c@acme.org,d@acme.org,e@acme.org");
+        BatchTransmitter transmitter = new BatchTransmitter(this.pool, 2, new MailSenderMetrics());
+        try {
+            transmitter.send(newMessage(recipients), recipients);
+        } finally {
+            transmitter.close();
+        }
+
+        List<BatchTransmitter.ChunkResult> results = transmitter.getChunkResults();
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(2, results.get(0).getSent().length);
+        Assert.assertEquals(1, results.get(2).getSent().length);
+        Assert.assertNull(results.get(2).getFailure());
+        for (Address recipient : recipients) {
+            Assert.assertEquals(1, Mailbox.get(((InternetAddress) recipient).getAddress()).size());
+        }
+    }
+
+    @Test
+    public void testNoChunkSize() throws Exception
+    {
+        Address[] recipients = InternetAddress.parse("a@acme.org,b@acme.org,c@acme.org");
+        BatchTransmitter transmitter = new BatchTransmitter(this.pool, 0, new MailSenderMetrics());
+        try {
+            transmitter.send(newMessage(recipients), recipients);
+        } finally {
+            transmitter.close();
+        }
+
+        Assert.assertEquals(1, transmitter.getChunkResults().size());
+        Assert.assertEquals(3, transmitter.getChunkResults().get(0).getSent().length);
+    }
+
+    @Test
+    public void testConnectionIsGivenBackWhileThrottled() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty(MailSenderSettings.RELAY_RATE, "2");
+        properties.setProperty(MailSenderSettings.RELAY_BURST, "1");
+        RateLimiter limiter = new RateLimiter(new MailSenderSettings(properties));
+        final Address[] recipients = InternetAddress.parse("a@acme.org");
+        final BatchTransmitter transmitter =
+            new BatchTransmitter(new RelayBalancer(Collections.singletonList(new SmtpRelay("smtp", 1, this.pool, 1,
+                0))), 0, limiter, new MailSenderMetrics());
+        try {
+            transmitter.send(newMessage(recipients), recipients);
+            Assert.assertEquals(1, this.pool.getActiveCount());
+
+            // Over the rate: waits half a second, without the connection
+            Thread sender = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        transmitter.send(newMessage(recipients), recipients);
+                    } catch (Exception e) {
+                        // Checked below
+                    }
+                }
+            };
+            sender.start();
+            Thread.sleep(200);
+            Assert.assertEquals(0, this.pool.getActiveCount());
+            sender.join();
+        } finally {
+            transmitter.close();
+        }
+        Assert.assertEquals(2, Mailbox.get("a@acme.org").size());
+    }
+
+    private MimeMessage newMessage(Address[] recipients) throws Exception
+    {
+        MimeMessage message = new MimeMessage(this.session);
+        message.setFrom(new InternetAddress("john@acme.org"));
+        message.setRecipients(Message.RecipientType.TO, recipients);
+        message.setSubject("Subject");
+        message.setText("Content");
+        return message;
+    }
+}
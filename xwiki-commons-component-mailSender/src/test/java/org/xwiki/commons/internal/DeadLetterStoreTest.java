@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DeadLetterStore}.
+ */
+public class DeadLetterStoreTest
+{
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.directory = File.createTempFile("deadletters", "");
+        this.directory.delete();
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void testDeadLettersAreKeptUntilRemoved() throws Exception
+    {
+        DeadLetterStore store = new DeadLetterStore(this.directory, 100, DAY);
+        store.open();
+        String first = store.add("xwiki", newMail("First"), "peter@acme.org", "550 No such user");
+        String second = store.add("subwiki", newMail("Second"), "paul@acme.org", "Not sent after 5 retries");
+
+        store = new DeadLetterStore(this.directory, 100, DAY);
+        store.open();
+        List<DeadLetterStore.Entry> entries = store.getEntries();
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals(first, entries.get(0).getId());
+        Assert.assertEquals("xwiki", entries.get(0).getWiki());
+        Assert.assertEquals("peter@acme.org", entries.get(0).getRecipients());
+        Assert.assertEquals("550 No such user", entries.get(0).getReason());
+        Assert.assertEquals("First", entries.get(0).getSubject());
+        // Read from its file
+        Assert.assertEquals("text/plain:Content \n ", store.getMail(first).getContentsAsString());
+        Assert.assertEquals(second, entries.get(1).getId());
+
+        Assert.assertTrue(store.remove(first));
+        Assert.assertFalse(store.remove(first));
+        store = new DeadLetterStore(this.directory, 100, DAY);
+        store.open();
+        Assert.assertEquals(1, store.getEntries().size());
+        Assert.assertEquals(second, store.getEntries().get(0).getId());
+    }
+
+    @Test
+    public void testInMemory() throws Exception
+    {
+        DeadLetterStore store = new DeadLetterStore(null, 100, DAY);
+        store.open();
+        String id = store.add("xwiki", newMail("First"), "peter@acme.org", "550 No such user");
+        Assert.assertEquals(1, store.getEntries().size());
+        Assert.assertEquals("First", store.getMail(id).getSubject());
+        Assert.assertTrue(store.remove(id));
+        Assert.assertTrue(store.getEntries().isEmpty());
+        Assert.assertNull(store.getMail(id));
+    }
+
+    @Test
+    public void testOldestDeadLettersAreRemovedPastTheCapacity() throws Exception
+    {
+        DeadLetterStore store = new DeadLetterStore(this.directory, 2, DAY);
+        store.open();
+        String first = store.add("xwiki", newMail("First"), "peter@acme.org", "550 No such user");
+        String second = store.add("xwiki", newMail("Second"), "peter@acme.org", "550 No such user");
+        String third = store.add("xwiki", newMail("Third"), "peter@acme.org", "550 No such user");
+
+        List<DeadLetterStore.Entry> entries = store.getEntries();
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals(second, entries.get(0).getId());
+        Assert.assertEquals(third, entries.get(1).getId());
+        Assert.assertNull(store.getMail(first));
+        Assert.assertEquals(2, this.directory.list().length);
+    }
+
+    @Test
+    public void testExpiredDeadLettersAreRemoved() throws Exception
+    {
+        DeadLetterStore store = new DeadLetterStore(this.directory, 100, DAY);
+        store.open();
+        store.add("xwiki", newMail("First"), "peter@acme.org", "550 No such user");
+        Thread.sleep(10);
+
+        store = new DeadLetterStore(this.directory, 100, 5);
+        store.open();
+        Assert.assertTrue(store.getEntries().isEmpty());
+        Assert.assertEquals(0, this.directory.list().length);
+    }
+
+    private Mail newMail(String subject)
+    {
+        Mail mail = new Mail("john@acme.org", "peter@acme.org,paul@acme.org", null, null, subject);
+        mail.addContent("text/plain", "Content");
+        return mail;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+import javax.mail.internet.MimeBodyPart;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link EncodedAttachmentCache}.
+ */
+public class EncodedAttachmentCacheTest
+{
+    @Test
+    public void testSameContentIsEncodedOnce() throws Exception
+    {
+        EncodedAttachmentCache cache = new EncodedAttachmentCache(1024 * 1024, false);
+        byte[] content = "%PDF-1.4 some document".getBytes();
+
+        String first = write(cache.createPart("doc.pdf", "application/pdf", content));
+        String second = write(cache.createPart("copy.pdf", "application/pdf", content.clone()));
+
+        Assert.assertTrue(first.contains("Content-Transfer-Encoding: base64"));
+        Assert.assertTrue(first.contains("JVBERi0xLjQgc29tZSBkb2N1bWVudA=="));
+        Assert.assertEquals(first, second);
+        Map<String, Object> statistics = cache.getStatistics();
+        Assert.assertEquals(1L, statistics.get("hits"));
+        Assert.assertEquals(1L, statistics.get("misses"));
+        Assert.assertEquals(0.5d, statistics.get("hitRatio"));
+    }
+
+    @Test
+    public void testOffHeapEntriesAreReadable() throws Exception
+    {
+        EncodedAttachmentCache cache = new EncodedAttachmentCache(1024 * 1024, true);
+        byte[] content = "%PDF-1.4 some document".getBytes();
+
+        Assert.assertEquals(write(cache.createPart("doc.pdf", "application/pdf", content)),
+            write(cache.createPart("doc.pdf", "application/pdf", content)));
+    }
+
+    private String write(MimeBodyPart part) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        part.writeTo(out);
+        return out.toString("US-ASCII");
+    }
+}
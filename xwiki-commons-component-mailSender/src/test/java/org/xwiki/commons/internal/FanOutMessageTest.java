@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link FanOutMessage}.
+ */
+public class FanOutMessageTest
+{
+    @Test
+    public void testEachCopyIsAddressedToItsRecipientOnly() throws Exception
+    {
+        Session session = Session.getInstance(new Properties());
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("john@acme.org"));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse("peter@acme.org, paul@acme.org"));
+        message.setRecipients(Message.RecipientType.CC, InternetAddress.parse("mary@acme.org"));
+        message.setSubject("Announcement");
+        message.setText("Hello\n.\nBye");
+        MailSenderMetrics metrics = new MailSenderMetrics();
+        FanOutMessage fanOut = new FanOutMessage(message, session, metrics);
+
+        FanOutMessage.Copy first = fanOut.createCopy(new InternetAddress("Peter <peter@acme.org>"), 0);
+        FanOutMessage.Copy second = fanOut.createCopy(new InternetAddress("mary@acme.org"), 1);
+        String firstContent = write(first);
+        String secondContent = write(second);
+
+        Assert.assertTrue(firstContent.startsWith("To: Peter <peter@acme.org>\r\nMessage-ID: <0."));
+        Assert.assertTrue(secondContent.startsWith("To: mary@acme.org\r\nMessage-ID: <1."));
+        Assert.assertFalse(firstContent.contains("paul@acme.org"));
+        Assert.assertFalse(firstContent.contains("Cc:"));
+        Assert.assertTrue(firstContent.contains("Subject: Announcement\r\n"));
+        Assert.assertTrue(firstContent.endsWith("Hello\r\n.\r\nBye\r\n"));
+        Assert.assertFalse(first.getMessageID().equals(second.getMessageID()));
+
+        // Both copies share the same serialized body
+        Assert.assertEquals(firstContent.substring(firstContent.indexOf("\r\n", firstContent.indexOf("Message-ID"))),
+            secondContent.substring(secondContent.indexOf("\r\n", secondContent.indexOf("Message-ID"))));
+        Assert.assertEquals(firstContent.length(), first.getSize());
+        Assert.assertEquals(firstContent.length() + secondContent.length(), metrics.getBytesSent());
+        Assert.assertEquals("john@acme.org", ((InternetAddress) first.getFrom()[0]).getAddress());
+        Assert.assertEquals(1, first.getAllRecipients().length);
+    }
+
+    @Test
+    public void testTheBodyIsStuffedOnce() throws Exception
+    {
+        Session session = Session.getInstance(new Properties());
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("john@acme.org"));
+        message.setText(".");
+        FanOutMessage fanOut = new FanOutMessage(message, session, new MailSenderMetrics());
+
+        byte[] stuffed = fanOut.getStuffedBody();
+        Assert.assertTrue(new String(stuffed, "US-ASCII").endsWith("\r\n..\r\n.\r\n"));
+        Assert.assertSame(stuffed, fanOut.getStuffedBody());
+    }
+
+    private String write(MimeMessage message) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out, new String[] {"Bcc", "Content-Length"});
+        return out.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MailRetryScheduler}.
+ */
+public class MailRetrySchedulerTest
+{
+    @Test
+    public void testDelayGrowsExponentiallyWithJitter()
+    {
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            assertBetween(500, 1000, MailRetryScheduler.getDelay(1, 1000, 60000, random));
+            assertBetween(1000, 2000, MailRetryScheduler.getDelay(2, 1000, 60000, random));
+            assertBetween(4000, 8000, MailRetryScheduler.getDelay(4, 1000, 60000, random));
+            // Capped
+            assertBetween(30000, 60000, MailRetryScheduler.getDelay(30, 1000, 60000, random));
+        }
+    }
+
+    private void assertBetween(long min, long max, long value)
+    {
+        Assert.assertTrue(value + " < " + min, value >= min);
+        Assert.assertTrue(value + " > " + max, value <= max);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MailSendQueue}.
+ */
+public class MailSendQueueTest
+{
+    private MailSendQueue queue;
+
+    @After
+    public void tearDown()
+    {
+        if (this.queue != null) {
+            this.queue.shutdown(1000);
+        }
+    }
+
+    @Test
+    public void testRetriedMailIsRetryingUntilTheRetryIsOver() throws Exception
+    {
+        this.queue = new MailSendQueue(new MailSendQueue.Deliverer()
+        {
+            @Override
+            public String deliver(String id, Mail mail, MailServerConfiguration configuration)
+            {
+                return MailSendQueue.RETRYING;
+            }
+        }, 1, 10);
+
+        String id = this.queue.submit("1", new Mail(), null);
+        waitForStatus(id, MailSendQueue.RETRYING);
+
+        this.queue.setStatus(id, MailSendQueue.SENT);
+        Assert.assertEquals(MailSendQueue.SENT, this.queue.getStatus(id));
+    }
+
+    @Test
+    public void testRetryOverBeforeTheFirstAttemptReturnsIsKept() throws Exception
+    {
+        this.queue = new MailSendQueue(new MailSendQueue.Deliverer()
+        {
+            @Override
+            public String deliver(String id, Mail mail, MailServerConfiguration configuration)
+            {
+                // The retry gave up before the worker is done with the first attempt
+                queue.setStatus(id, MailSendQueue.FAILED);
+                return MailSendQueue.RETRYING;
+            }
+        }, 1, 10);
+
+        String id = this.queue.submit("1", new Mail(), null);
+        waitForStatus(id, MailSendQueue.FAILED);
+        Thread.sleep(100);
+        Assert.assertEquals(MailSendQueue.FAILED, this.queue.getStatus(id));
+    }
+
+    @Test
+    public void testQueuedMailsFailWhenShutDown() throws Exception
+    {
+        final CountDownLatch sending = new CountDownLatch(1);
+        this.queue = new MailSendQueue(new MailSendQueue.Deliverer()
+        {
+            @Override
+            public String deliver(String id, Mail mail, MailServerConfiguration configuration)
+            {
+                sending.countDown();
+                try {
+                    // Until the worker is interrupted
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return MailSendQueue.FAILED;
+            }
+        }, 1, 10);
+        this.queue.submit("1", new Mail(), null);
+        sending.await();
+        this.queue.submit("2", new Mail(), null);
+        this.queue.submit("3", new Mail(), null);
+
+        Assert.assertEquals(Arrays.asList("2", "3"), this.queue.shutdown(100));
+        Assert.assertEquals(MailSendQueue.FAILED, this.queue.getStatus("2"));
+        Assert.assertEquals(MailSendQueue.FAILED, this.queue.getStatus("3"));
+    }
+
+    @Test
+    public void testUnknownIdIsNotRemembered()
+    {
+        this.queue = new MailSendQueue(null, 1, 10);
+
+        this.queue.setStatus("unknown", MailSendQueue.SENT);
+        Assert.assertNull(this.queue.getStatus("unknown"));
+    }
+
+    private void waitForStatus(String id, String status) throws InterruptedException
+    {
+        for (int i = 0; i < 100 && !status.equals(this.queue.getStatus(id)); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(status, this.queue.getStatus(id));
+    }
+}
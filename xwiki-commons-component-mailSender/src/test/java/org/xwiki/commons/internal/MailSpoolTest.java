@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MailSpool}.
+ */
+public class MailSpoolTest
+{
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.directory = File.createTempFile("mailspool", "");
+        this.directory.delete();
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void testUnacknowledgedMailsAreReplayed() throws Exception
+    {
+        MailSpool spool = new MailSpool(this.directory);
+        Assert.assertTrue(spool.open().isEmpty());
+        spool.append("1", "xwiki", newMail("First"));
+        spool.append("2", "xwiki", newMail("Second"));
+        spool.append("3", "subwiki", newMail("Third"));
+        spool.acknowledge("2");
+        spool.close();
+
+        List<MailSpool.Entry> entries = new MailSpool(this.directory).open();
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals("1", entries.get(0).getId());
+        Assert.assertEquals("First", entries.get(0).getMail().getSubject());
+        Assert.assertEquals("peter@acme.org", entries.get(0).getMail().getTo());
+        Assert.assertEquals("text/plain:Content \n ", entries.get(0).getMail().getContentsAsString());
+        Assert.assertEquals("3", entries.get(1).getId());
+        Assert.assertEquals("subwiki", entries.get(1).getWiki());
+    }
+
+    @Test
+    public void testTornRecordIsIgnored() throws Exception
+    {
+        MailSpool spool = new MailSpool(this.directory);
+        spool.open();
+        spool.append("1", "xwiki", newMail("First"));
+        spool.append("2", "xwiki", newMail("Second"));
+        spool.close();
+
+        // Simulate a crash in the middle of the last write
+        File segment = this.directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 5);
+        file.close();
+
+        spool = new MailSpool(this.directory);
+        List<MailSpool.Entry> entries = spool.open();
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals("1", entries.get(0).getId());
+
+        // New records are appended after the last valid one
+        spool.append("3", "xwiki", newMail("Third"));
+        spool.close();
+        Assert.assertEquals(2, new MailSpool(this.directory).open().size());
+    }
+
+    @Test
+    public void testAcknowledgedSegmentsAreDeleted() throws Exception
+    {
+        // Tiny segments so that each record gets its own
+        MailSpool spool = new MailSpool(this.directory, 1);
+        spool.open();
+        for (int i = 0; i < 10; i++) {
+            spool.append(String.valueOf(i), "xwiki", newMail("Mail " + i));
+        }
+        for (int i = 0; i < 9; i++) {
+            spool.acknowledge(String.valueOf(i));
+        }
+        Assert.assertEquals(1, spool.size());
+        spool.close();
+
+        spool = new MailSpool(this.directory, 1);
+        List<MailSpool.Entry> entries = spool.open();
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals("9", entries.get(0).getId());
+
+        spool.acknowledge("9");
+        Assert.assertEquals(0, spool.size());
+        // Only the segment being written remains
+        Assert.assertEquals(1, this.directory.listFiles().length);
+        spool.close();
+    }
+
+    private Mail newMail(String subject)
+    {
+        Mail mail = new Mail("john@acme.org", "peter@acme.org", null, null, subject);
+        mail.addContent("text/plain", "Content");
+        return mail;
+    }
+}
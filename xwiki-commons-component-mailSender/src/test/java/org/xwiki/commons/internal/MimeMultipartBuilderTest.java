@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import javax.mail.Multipart;
+import javax.mail.internet.MimeBodyPart;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.xpn.xwiki.api.Attachment;
+
+/**
+ * Tests for {@link MimeMultipartBuilder}.
+ */
+public class MimeMultipartBuilderTest
+{
+    private final MimeMultipartBuilder builder = new MimeMultipartBuilder(new MimeMultipartBuilder.PartFactory()
+    {
+        @Override
+        public MimeBodyPart createAttachmentPart(Attachment attachment)
+        {
+            MimeBodyPart part = new MimeBodyPart();
+            try {
+                part.setFileName(attachment.getFilename());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return part;
+        }
+
+        @Override
+        public String createPlain(String html)
+        {
+            return "plain";
+        }
+    }, "UTF-8");
+
+    @Test
+    public void testEmbeddedImageReferencedTwiceIsAddedOnce() throws Exception
+    {
+        Mail mail = new Mail("john@acme.org", "peter@acme.org", null, null, "Subject");
+        mail.addContent("text/html", "<img src=\"cid:logo.png\"/><img src='cid:logo.png'/><img src=\"cid:none.png\"/>");
+        mail.addFile(MailSerializer.createAttachment("logo.png", new byte[] {1}));
+        mail.addFile(MailSerializer.createAttachment("report.pdf", new byte[] {2}));
+
+        Multipart mixed = this.builder.build(mail);
+        Assert.assertEquals(2, mixed.getCount());
+
+        Multipart alternative = (Multipart) mixed.getBodyPart(0).getContent();
+        // The plain alternative and the HTML content with its image
+        Assert.assertEquals(2, alternative.getCount());
+        Multipart related = (Multipart) alternative.getBodyPart(1).getContent();
+        Assert.assertEquals(2, related.getCount());
+        Assert.assertEquals("logo.png", related.getBodyPart(1).getFileName());
+
+        Multipart attachments = (Multipart) mixed.getBodyPart(1).getContent();
+        Assert.assertEquals(1, attachments.getCount());
+        Assert.assertEquals("report.pdf", attachments.getBodyPart(0).getFileName());
+    }
+
+    @Test
+    public void testAttachmentNamedLikeAnEmbeddedImageIsAttached() throws Exception
+    {
+        Mail mail = new Mail("john@acme.org", "peter@acme.org", null, null, "Subject");
+        mail.addContent("text/html", "<img src=\"cid:logo.png\"/>");
+        mail.addFile(MailSerializer.createAttachment("logo.png", new byte[] {1}));
+        mail.addFile(MailSerializer.createAttachment("logo.png", new byte[] {2}));
+
+        Multipart mixed = this.builder.build(mail);
+        Assert.assertEquals(2, mixed.getCount());
+
+        Multipart related = (Multipart) ((Multipart) mixed.getBodyPart(0).getContent()).getBodyPart(1).getContent();
+        Assert.assertEquals(2, related.getCount());
+        Multipart attachments = (Multipart) mixed.getBodyPart(1).getContent();
+        Assert.assertEquals(1, attachments.getCount());
+        Assert.assertEquals("logo.png", attachments.getBodyPart(0).getFileName());
+    }
+
+    @Test
+    public void testNoAttachment() throws Exception
+    {
+        Mail mail = new Mail("john@acme.org", "peter@acme.org", null, null, "Subject");
+        mail.addContent("text/plain", "Text");
+        mail.addContent("text/html", "<p>Text</p>");
+
+        Multipart alternative = this.builder.build(mail);
+        Assert.assertEquals(2, alternative.getCount());
+        Assert.assertEquals("Text", alternative.getBodyPart(0).getContent());
+    }
+}
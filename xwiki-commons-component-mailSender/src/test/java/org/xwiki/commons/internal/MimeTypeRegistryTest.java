@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.StringReader;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MimeTypeRegistry}.
+ */
+public class MimeTypeRegistryTest
+{
+    @Test
+    public void testLookupIsCaseInsensitive()
+    {
+        MimeTypeRegistry registry = new MimeTypeRegistry();
+        Assert.assertEquals("image/png", registry.getTypeFromFilename("IMG.PNG"));
+        Assert.assertEquals("image/jpeg", registry.getTypeFromFilename("photo.Jpg"));
+        Assert.assertEquals("image/svg+xml", registry.getTypeFromFilename("logo.svg"));
+        Assert.assertEquals("application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            registry.getTypeFromFilename("report.final.docx"));
+        Assert.assertNull(registry.getTypeFromFilename("README"));
+        Assert.assertNull(registry.getTypeFromFilename("file."));
+        Assert.assertEquals(MimeTypeRegistry.DEFAULT_TYPE, registry.getType("file.unknown", null));
+    }
+
+    @Test
+    public void testFilesAndOverrides() throws Exception
+    {
+        MimeTypeRegistry registry = new MimeTypeRegistry();
+        registry.load(new StringReader("# Comment\napplication/x-custom\tcst  cst2 # trailing\n\ntext/x-log log\n"));
+        Assert.assertEquals("application/x-custom", registry.getTypeFromFilename("a.cst2"));
+        Assert.assertEquals("text/x-log", registry.getTypeFromFilename("server.LOG"));
+
+        // The files don't change the built-in types, only the overrides do
+        registry.load(new StringReader("application/x-javascript js\nimage/x-png PNG\n"));
+        Assert.assertEquals("application/javascript", registry.getTypeFromFilename("script.js"));
+        Assert.assertEquals("image/png", registry.getTypeFromFilename("a.png"));
+
+        registry =
+            new MimeTypeRegistry(Collections.singletonList("/does/not/exist"), Collections.singletonMap("PNG",
+                "image/x-png"));
+        Assert.assertEquals("image/x-png", registry.getTypeFromFilename("a.png"));
+    }
+
+    @Test
+    public void testSniffing()
+    {
+        MimeTypeRegistry registry = new MimeTypeRegistry();
+        Assert.assertEquals("image/png",
+            registry.getType("logo", new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0}));
+        Assert.assertEquals("application/pdf", registry.getType("scan", "%PDF-1.4\n".getBytes()));
+        Assert.assertEquals("image/webp", registry.getType("image", "RIFF\0\0\0\0WEBPVP8 ".getBytes()));
+        Assert.assertEquals("image/svg+xml",
+            registry.getType("drawing", "\n <?xml version=\"1.0\"?>\n<svg xmlns=\"\"/>".getBytes()));
+        Assert.assertEquals("text/html", registry.getType("page", "<!DOCTYPE html><html/>".getBytes()));
+        Assert.assertEquals(MimeTypeRegistry.DEFAULT_TYPE, registry.getType("data", new byte[] {1, 2, 3}));
+        // The extension wins over the content
+        Assert.assertEquals("text/plain", registry.getType("notes.txt", "%PDF-1.4\n".getBytes()));
+    }
+}
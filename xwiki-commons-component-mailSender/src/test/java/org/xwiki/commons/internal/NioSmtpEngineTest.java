@@ -0,0 +1,316 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link NioSmtpEngine}.
+ */
+public class NioSmtpEngineTest
+{
+    private static final String CONTENT = "From: john@acme.org\r\nSubject: Test\r\n\r\nHello\r\n.signature\r\n";
+
+    private static final String MAIL = "MAIL FROM:<john@acme.org>";
+
+    private ScriptedSmtpServer server;
+
+    private NioSmtpEngine engine;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.server = new ScriptedSmtpServer();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (this.engine != null) {
+            this.engine.close();
+        }
+        this.server.stop();
+    }
+
+    @Test
+    public void testPipelinedRepliesAreMatchedToTheirRecipients() throws Exception
+    {
+        this.server.setExtensions("PIPELINING", "CHUNKING");
+        this.server.replyToRecipient("paul@acme.org", "451 Greylisted, try again later");
+        this.server.replyToRecipient("mary@acme.org", "550 No such user");
+
+        SendFailedException e = (SendFailedException) getFailure(send(
+            "peter@acme.org", "paul@acme.org", "mary@acme.org"));
+
+        assertAddresses(e.getValidSentAddresses(), "peter@acme.org");
+        assertAddresses(e.getValidUnsentAddresses(), "paul@acme.org");
+        assertAddresses(e.getInvalidAddresses(), "mary@acme.org");
+        Assert.assertEquals(Arrays.asList("EHLO", MAIL, "RCPT TO:<peter@acme.org>", "RCPT TO:<paul@acme.org>",
+            "RCPT TO:<mary@acme.org>", "BDAT " + CONTENT.length() + " LAST"), this.server.getCommands());
+        Assert.assertEquals(Arrays.asList(CONTENT), this.server.getMessages());
+    }
+
+    @Test
+    public void testHeloAndDataWithOldServers() throws Exception
+    {
+        this.server.setEhlo(false);
+
+        send("peter@acme.org", "paul@acme.org").get(10, TimeUnit.SECONDS);
+
+        // No pipelining: each RCPT waits for the previous reply
+        Assert.assertEquals(Arrays.asList("EHLO", "HELO", MAIL, "RCPT TO:<peter@acme.org>",
+            "RCPT TO:<paul@acme.org>", "DATA"), this.server.getCommands());
+        Assert.assertEquals(Arrays.asList(CONTENT), this.server.getMessages());
+    }
+
+    @Test
+    public void testDataWhenTheServerDoesNotSupportChunking() throws Exception
+    {
+        send("peter@acme.org").get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(Arrays.asList("EHLO", MAIL, "RCPT TO:<peter@acme.org>", "DATA"),
+            this.server.getCommands());
+        Assert.assertEquals(Arrays.asList(CONTENT), this.server.getMessages());
+    }
+
+    @Test
+    public void testAuthPlain() throws Exception
+    {
+        this.server.setExtensions("PIPELINING", "AUTH LOGIN PLAIN").setCredentials("john", "secret");
+
+        start(credentials("john", "secret"));
+        submit("peter@acme.org").get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1, this.server.getMessages().size());
+        Assert.assertTrue(this.server.getCommands().get(1).startsWith("AUTH PLAIN "));
+    }
+
+    @Test
+    public void testRejectedCredentials() throws Exception
+    {
+        this.server.setExtensions("PIPELINING", "AUTH PLAIN").setCredentials("john", "secret");
+
+        start(credentials("john", "wrong"));
+
+        Assert.assertTrue(getFailure(submit("peter@acme.org")) instanceof AuthenticationFailedException);
+        Assert.assertFalse(this.server.getCommands().contains(MAIL));
+    }
+
+    @Test
+    public void testAuthPlainNotSupported() throws Exception
+    {
+        start(credentials("john", "secret"));
+
+        Assert.assertTrue(getFailure(submit("peter@acme.org")) instanceof AuthenticationFailedException);
+        Assert.assertEquals(Arrays.asList("EHLO"), this.server.getCommands());
+    }
+
+    @Test
+    public void testAllRecipientsRefused() throws Exception
+    {
+        this.server.replyToRecipient("peter@acme.org", "450 Mailbox busy");
+        this.server.replyToRecipient("paul@acme.org", "550 No such user");
+
+        SendFailedException e = (SendFailedException) getFailure(send("peter@acme.org", "paul@acme.org"));
+
+        assertAddresses(e.getValidSentAddresses());
+        assertAddresses(e.getValidUnsentAddresses(), "peter@acme.org");
+        assertAddresses(e.getInvalidAddresses(), "paul@acme.org");
+        // The transaction is reset instead of sending the content
+        Assert.assertEquals("RSET", last(this.server.getCommands()));
+        Assert.assertTrue(this.server.getMessages().isEmpty());
+    }
+
+    @Test
+    public void testMessageRefused() throws Exception
+    {
+        this.server.replyToData("554 Rejected as spam");
+
+        SendFailedException e = (SendFailedException) getFailure(send("peter@acme.org"));
+
+        assertAddresses(e.getValidSentAddresses());
+        assertAddresses(e.getValidUnsentAddresses(), "peter@acme.org");
+        Assert.assertEquals("RSET", last(this.server.getCommands()));
+    }
+
+    @Test
+    public void testServiceNotAvailable() throws Exception
+    {
+        this.server.replyToMail("421 Service not available, closing transmission channel");
+
+        MessagingException e = getFailure(send("peter@acme.org"));
+
+        Assert.assertFalse(e instanceof SendFailedException);
+        Assert.assertTrue(e.getMessage().startsWith("421"));
+    }
+
+    @Test
+    public void testMessageOverTheSizeLimit() throws Exception
+    {
+        this.server.setExtensions("PIPELINING", "SIZE 10");
+
+        SendFailedException e = (SendFailedException) getFailure(send("peter@acme.org"));
+
+        assertAddresses(e.getInvalidAddresses(), "peter@acme.org");
+        Assert.assertEquals(Arrays.asList("EHLO"), this.server.getCommands());
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception
+    {
+        start(new Properties());
+        submit("peter@acme.org").get(10, TimeUnit.SECONDS);
+        submit("paul@acme.org").get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1, this.server.getConnections());
+        Assert.assertEquals(2, this.server.getMessages().size());
+        Assert.assertFalse(this.server.getCommands().contains("RSET"));
+    }
+
+    @Test
+    public void testMessageIsRequeuedWhenAReusedConnectionIsDropped() throws Exception
+    {
+        this.server.setDropAfter(1);
+
+        start(new Properties());
+        submit("peter@acme.org").get(10, TimeUnit.SECONDS);
+        submit("paul@acme.org").get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, this.server.getConnections());
+        Assert.assertEquals(2, this.server.getMessages().size());
+    }
+
+    @Test
+    public void testTimeout() throws Exception
+    {
+        this.server.setGreeting(false);
+        Properties properties = new Properties();
+        properties.setProperty("mail.smtp.timeout", "300");
+
+        start(properties);
+        long start = System.currentTimeMillis();
+        MessagingException e = getFailure(submit("peter@acme.org"));
+
+        Assert.assertTrue(e.getMessage().startsWith("Timeout"));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testLineBreaksAreConvertedToCrlf() throws Exception
+    {
+        Assert.assertEquals("a\r\nb\r\n", canonical("a\nb"));
+        Assert.assertEquals("a\r\nb\r\n", canonical("a\rb\r"));
+        Assert.assertEquals("a\r\n\r\nb\r\n", canonical("a\r\n\nb\r\n"));
+        Assert.assertEquals("", canonical(""));
+    }
+
+    @Test
+    public void testDotsStartingALineAreDoubled() throws Exception
+    {
+        Assert.assertEquals("..x\r\na.b\r\n...\r\n.\r\n",
+            new String(NioSmtpEngine.dotStuff(NioSmtpEngine.toCanonical(".x\na.b\n..\n".getBytes("US-ASCII"))),
+                "US-ASCII"));
+        Assert.assertEquals(".\r\n", new String(NioSmtpEngine.dotStuff(new byte[0]), "US-ASCII"));
+    }
+
+    private Properties credentials(String username, String password)
+    {
+        Properties properties = new Properties();
+        properties.setProperty("mail.smtp.auth", "true");
+        properties.setProperty("mail.smtp.server.username", username);
+        properties.setProperty("mail.smtp.server.password", password);
+        return properties;
+    }
+
+    private void start(Properties properties) throws Exception
+    {
+        properties.setProperty("mail.smtp.host", "127.0.0.1");
+        properties.setProperty("mail.smtp.port", String.valueOf(this.server.getPort()));
+        properties.setProperty("mail.smtp.localhost", "localhost");
+        properties.setProperty("mail.smtp.from", "john@acme.org");
+        this.engine = new NioSmtpEngine(Session.getInstance(properties), 1, 0);
+    }
+
+    private Future<Void> send(String... recipients) throws Exception
+    {
+        start(new Properties());
+        return submit(recipients);
+    }
+
+    private Future<Void> submit(String... recipients) throws Exception
+    {
+        Address[] addresses = new Address[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            addresses[i] = new InternetAddress(recipients[i]);
+        }
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()),
+            new ByteArrayInputStream(CONTENT.getBytes("US-ASCII")));
+        return this.engine.submit(message, addresses);
+    }
+
+    private MessagingException getFailure(Future<Void> future) throws Exception
+    {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return (MessagingException) e.getCause();
+        }
+        Assert.fail("The message should not have been sent");
+        return null;
+    }
+
+    private void assertAddresses(Address[] actual, String... expected)
+    {
+        String[] addresses = new String[actual == null ? 0 : actual.length];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = ((InternetAddress) actual[i]).getAddress();
+        }
+        Assert.assertEquals(Arrays.asList(expected), Arrays.asList(addresses));
+    }
+
+    private String last(List<String> commands)
+    {
+        return commands.get(commands.size() - 1);
+    }
+
+    private String canonical(String raw) throws Exception
+    {
+        return new String(NioSmtpEngine.toCanonical(raw.getBytes("US-ASCII")), "US-ASCII");
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link NotificationCoalescer}.
+ */
+public class NotificationCoalescerTest
+{
+    private final BlockingQueue<String> digests = new LinkedBlockingQueue<String>();
+
+    private NotificationCoalescer<String> coalescer;
+
+    @Before
+    public void setUp()
+    {
+        this.coalescer = new NotificationCoalescer<String>(new NotificationCoalescer.Sender<String>()
+        {
+            @Override
+            public void send(String recipient, String category, List<Mail> mails, String context)
+            {
+                List<String> subjects = new ArrayList<String>();
+                for (Mail mail : mails) {
+                    subjects.add(mail.getSubject());
+                }
+                digests.add(recipient + ' ' + category + ' ' + context + ' ' + subjects);
+            }
+        });
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.coalescer.close(1000);
+    }
+
+    @Test
+    public void testNotificationsAreGatheredPerRecipientAndCategory() throws Exception
+    {
+        add("peter", "watchlist", "1", "first");
+        add("peter", "watchlist", "2", "second");
+        add("peter", "mentions", "3", "third");
+        add("paul", "watchlist", "4", "fourth");
+        Assert.assertEquals(4, this.coalescer.getPendingCount());
+        Assert.assertNull(this.digests.poll(100, TimeUnit.MILLISECONDS));
+
+        List<String> sent = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            sent.add(this.digests.poll(5, TimeUnit.SECONDS));
+        }
+        Assert.assertTrue(sent.contains("peter watchlist 1 [first, second]"));
+        Assert.assertTrue(sent.contains("peter mentions 3 [third]"));
+        Assert.assertTrue(sent.contains("paul watchlist 4 [fourth]"));
+        Assert.assertEquals(0, this.coalescer.getPendingCount());
+
+        // A new window is opened by the next notification
+        add("peter", "watchlist", "5", "fifth");
+        Assert.assertEquals("peter watchlist 5 [fifth]", this.digests.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFullDigestIsSentWithoutWaiting() throws Exception
+    {
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(this.coalescer.add("peter/watchlist", "peter", "watchlist", new Mail(null, "peter",
+                null, null, "Mail " + i), "context", 60000, 3));
+        }
+        Assert.assertEquals("peter watchlist context [Mail 0, Mail 1, Mail 2]",
+            this.digests.poll(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, this.coalescer.getPendingCount());
+    }
+
+    @Test
+    public void testPendingDigestsAreSentOnClose() throws Exception
+    {
+        add("peter", "watchlist", "1", "first");
+        this.coalescer.close(5000);
+        Assert.assertEquals("peter watchlist 1 [first]", this.digests.poll());
+        Assert.assertFalse(this.coalescer.add("peter/watchlist", "peter", "watchlist", new Mail(), "2", 500, 10));
+    }
+
+    private void add(String recipient, String category, String context, String subject)
+    {
+        Assert.assertTrue(this.coalescer.add(recipient + '/' + category, recipient, category, new Mail(null,
+            recipient, null, null, subject), context, 500, 10));
+    }
+}
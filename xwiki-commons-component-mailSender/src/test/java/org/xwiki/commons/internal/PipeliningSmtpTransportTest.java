@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.event.TransportAdapter;
+import javax.mail.event.TransportEvent;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PipeliningSmtpTransport}.
+ */
+public class PipeliningSmtpTransportTest
+{
+    private ScriptedSmtpServer server;
+
+    private Transport transport;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.server = new ScriptedSmtpServer();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (this.transport != null) {
+            this.transport.close();
+        }
+        this.server.stop();
+    }
+
+    @Test
+    public void testSizeIsGivenWhenTheServerSupportsIt() throws Exception
+    {
+        this.server.setExtensions("PIPELINING", "SIZE 100000");
+        connect("true");
+        MimeMessage message = newMessage();
+
+        this.transport.sendMessage(message, InternetAddress.parse("peter@acme.org"));
+
+        List<String> messages = this.server.getMessages();
+        Assert.assertEquals(1, messages.size());
+        Assert.assertTrue(this.server.getCommands().contains(
+            "MAIL FROM:<john@acme.org> SIZE=" + messages.get(0).length()));
+    }
+
+    @Test
+    public void testNothingIsSentWhenARecipientIsRejectedWithoutSendPartial() throws Exception
+    {
+        this.server.replyToRecipient("paul@acme.org", "550 No such user");
+        connect("false");
+
+        try {
+            this.transport.sendMessage(newMessage(), InternetAddress.parse("peter@acme.org, paul@acme.org"));
+            Assert.fail("The rejected recipient has not been reported");
+        } catch (SendFailedException e) {
+            Assert.assertEquals(0, e.getValidSentAddresses() != null ? e.getValidSentAddresses().length : 0);
+        }
+
+        Assert.assertTrue(this.server.getMessages().isEmpty());
+        Assert.assertFalse(this.server.getCommands().contains("DATA"));
+    }
+
+    @Test
+    public void testListenersAreNotified() throws Exception
+    {
+        this.server.replyToRecipient("paul@acme.org", "550 No such user");
+        connect("true");
+        final BlockingQueue<TransportEvent> events = new LinkedBlockingQueue<TransportEvent>();
+        this.transport.addTransportListener(new TransportAdapter()
+        {
+            @Override
+            public void messagePartiallyDelivered(TransportEvent e)
+            {
+                events.add(e);
+            }
+
+            @Override
+            public void messageDelivered(TransportEvent e)
+            {
+                events.add(e);
+            }
+        });
+
+        this.transport.sendMessage(newMessage(), InternetAddress.parse("peter@acme.org"));
+        try {
+            this.transport.sendMessage(newMessage(), InternetAddress.parse("peter@acme.org, paul@acme.org"));
+            Assert.fail("The rejected recipient has not been reported");
+        } catch (SendFailedException e) {
+            // Expected
+        }
+
+        // The listeners are called from another thread
+        TransportEvent delivered = events.poll(10, TimeUnit.SECONDS);
+        Assert.assertEquals(TransportEvent.MESSAGE_DELIVERED, delivered.getType());
+        TransportEvent partial = events.poll(10, TimeUnit.SECONDS);
+        Assert.assertEquals(TransportEvent.MESSAGE_PARTIALLY_DELIVERED, partial.getType());
+        Address[] invalid = partial.getInvalidAddresses();
+        Assert.assertEquals(1, invalid.length);
+        Assert.assertEquals("paul@acme.org", ((InternetAddress) invalid[0]).getAddress());
+    }
+
+    private void connect(String sendPartial) throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty("mail.smtp.host", "127.0.0.1");
+        properties.setProperty("mail.smtp.port", String.valueOf(this.server.getPort()));
+        properties.setProperty("mail.smtp.sendpartial", sendPartial);
+        Session session = Session.getInstance(properties);
+        session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", PipeliningSmtpTransport.class.getName(),
+            "XWiki", null));
+        this.transport = session.getTransport("smtp");
+        this.transport.connect();
+    }
+
+    private MimeMessage newMessage() throws Exception
+    {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom(new InternetAddress("john@acme.org"));
+        message.setSubject("Test");
+        message.setText("Hello\nWorld\n");
+        return message;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the fast mode of {@link PlainTextConverter}.
+ */
+public class PlainTextConverterTest
+{
+    @Test
+    public void testFastConvert()
+    {
+        String html =
+            "<html><head><style>p { color: red; }</style></head><body>\n<h1>News &amp; updates</h1>\n"
+                + "<p>Hello   <b>John</b>,<br/>welcome&nbsp;to &lt;XWiki&gt; &#8364;</p>"
+                + "<script type=\"text/javascript\">alert('x');</script><ul><li>One</li><li>Two</li></ul></body></html>";
+
+        Assert.assertEquals("News & updates\nHello John,\nwelcome to <XWiki> \u20AC\nOne\nTwo",
+            PlainTextConverter.fastConvert(html));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Properties;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RateLimiter}.
+ */
+public class RateLimiterTest
+{
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void testBucketAllowsBurstThenRate()
+    {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(2, 3, 0);
+        Assert.assertEquals(0, bucket.reserve(1, 0));
+        Assert.assertEquals(0, bucket.reserve(2, 0));
+        // Empty: the next token comes in half a second
+        Assert.assertEquals(SECOND / 2, bucket.reserve(1, 0));
+        // The debt is paid back after half a second, and the bucket never holds more than the burst
+        Assert.assertEquals(0, bucket.reserve(3, 2 * SECOND));
+        Assert.assertEquals(SECOND / 2, bucket.reserve(1, 2 * SECOND));
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception
+    {
+        RateLimiter limiter = new RateLimiter(new MailSenderSettings(new Properties()));
+        Assert.assertFalse(limiter.isEnabled());
+        Assert.assertEquals(0, limiter.acquire("smtp", InternetAddress.parse("john@acme.org")));
+    }
+
+    @Test
+    public void testDomainsHaveTheirOwnBuckets() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty(MailSenderSettings.DOMAIN_RATE + ".acme.org", "1");
+        properties.setProperty(MailSenderSettings.DOMAIN_BURST + ".acme.org", "2");
+        RateLimiter limiter = new RateLimiter(new MailSenderSettings(properties));
+        Assert.assertTrue(limiter.isEnabled());
+
+        Assert.assertEquals(0, limiter.acquire("smtp", InternetAddress.parse("john@acme.org,peter@ACME.org")));
+        // Other domains are not limited
+        Assert.assertEquals(0, limiter.acquire("smtp", InternetAddress.parse("john@example.org")));
+        long start = System.nanoTime();
+        Assert.assertTrue(limiter.acquire("smtp", InternetAddress.parse("paul@acme.org")) > 0);
+        Assert.assertTrue(System.nanoTime() - start > SECOND / 2);
+    }
+
+    @Test
+    public void testRelaysHaveTheirOwnBuckets() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty(MailSenderSettings.RELAY_RATE, "1");
+        RateLimiter limiter = new RateLimiter(new MailSenderSettings(properties));
+
+        Assert.assertEquals(0, limiter.acquire("smtp1", InternetAddress.parse("john@acme.org")));
+        Assert.assertEquals(0, limiter.acquire("smtp2", InternetAddress.parse("john@acme.org")));
+    }
+
+    @Test
+    public void testBucketsAreSharedByTheConfigurations() throws Exception
+    {
+        Properties properties = new Properties();
+        properties.setProperty(MailSenderSettings.RELAY_RATE, "1");
+        RateLimiter.Buckets buckets = new RateLimiter.Buckets();
+        RateLimiter wiki = new RateLimiter(new MailSenderSettings(properties), buckets);
+        // Another wiki sending through the same relay, or the same wiki once its preferences are saved
+        RateLimiter otherWiki = new RateLimiter(new MailSenderSettings(properties), buckets);
+
+        Assert.assertEquals(0, wiki.reserve("smtp:25", InternetAddress.parse("john@acme.org")));
+        Assert.assertTrue(otherWiki.reserve("smtp:25", InternetAddress.parse("john@acme.org")) > 0);
+    }
+
+    @Test
+    public void testBucketTakesTheNewRate()
+    {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(1, 1, 0);
+        Assert.assertEquals(0, bucket.reserve(1, 0));
+        bucket.setRate(4, 1, 0);
+        // The token already taken is paid back at the new rate
+        Assert.assertEquals(SECOND / 4, bucket.reserve(1, 0));
+    }
+}
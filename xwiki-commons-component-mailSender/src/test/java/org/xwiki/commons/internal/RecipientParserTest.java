@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Arrays;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RecipientParser}.
+ */
+public class RecipientParserTest
+{
+    @Test
+    public void testCommasInsideQuotesCommentsAndBracketsDontSplit()
+    {
+        Assert.assertEquals(Arrays.asList("\"Doe, John\" <john@acme.org>", "peter@acme.org (Peter, the boss)",
+            "<\"odd,local\"@acme.org>"), RecipientParser.split(
+            " \"Doe, John\" <john@acme.org>,peter@acme.org (Peter, the boss),, <\"odd,local\"@acme.org> "));
+        Assert.assertEquals(Arrays.asList("\"Quote \\\", comma\" <a@acme.org>", "b@acme.org"),
+            RecipientParser.split("\"Quote \\\", comma\" <a@acme.org>, b@acme.org"));
+    }
+
+    @Test
+    public void testAddressesAreNormalized() throws Exception
+    {
+        InternetAddress[] addresses = new RecipientParser(10).parse("\"  John   Doe \" <John@ACME.Org>");
+        Assert.assertEquals(1, addresses.length);
+        Assert.assertEquals("John@acme.org", addresses[0].getAddress());
+        Assert.assertEquals("John Doe", addresses[0].getPersonal());
+    }
+
+    @Test
+    public void testDuplicatesAreRemovedAcrossFields() throws Exception
+    {
+        RecipientParser.Recipients recipients = new RecipientParser(10).parse("john@acme.org, \"John\" <JOHN@acme.org>",
+            "peter@acme.org, john@Acme.org", "peter@ACME.org, paul@acme.org");
+        Assert.assertEquals(1, recipients.getTo().length);
+        Assert.assertEquals("john@acme.org", recipients.getTo()[0].getAddress());
+        Assert.assertEquals(1, recipients.getCc().length);
+        Assert.assertEquals("peter@acme.org", recipients.getCc()[0].getAddress());
+        Assert.assertEquals(1, recipients.getBcc().length);
+        Assert.assertEquals("paul@acme.org", recipients.getBcc()[0].getAddress());
+        Assert.assertEquals(0, new RecipientParser(10).parse(null, " ", "").getTo().length);
+    }
+
+    @Test
+    public void testCachedAddressesCantBeModified() throws Exception
+    {
+        RecipientParser parser = new RecipientParser(10);
+        parser.parse("john@acme.org")[0].setAddress("peter@acme.org");
+        Assert.assertEquals("john@acme.org", parser.parse("john@acme.org")[0].getAddress());
+    }
+
+    @Test(expected = AddressException.class)
+    public void testInvalidAddressIsRejected() throws Exception
+    {
+        new RecipientParser(10).parse("john@acme.org, not an address@");
+    }
+}
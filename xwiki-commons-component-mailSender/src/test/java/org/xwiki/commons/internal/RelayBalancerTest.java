@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.mail.Session;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RelayBalancer}.
+ */
+public class RelayBalancerTest
+{
+    private static final long EJECTION_TIME = 60000L;
+
+    private SmtpRelay first;
+
+    private SmtpRelay second;
+
+    private RelayBalancer balancer;
+
+    @Before
+    public void setUp()
+    {
+        Session session = Session.getInstance(new Properties(), null);
+        this.first = new SmtpRelay("first", 1, new TransportPool(session, 2, 0, 1000), 2, EJECTION_TIME);
+        this.second = new SmtpRelay("second", 1, new TransportPool(session, 2, 0, 1000), 2, EJECTION_TIME);
+        this.balancer = new RelayBalancer(Arrays.asList(this.first, this.second));
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.balancer.close();
+    }
+
+    @Test
+    public void testRoundRobinBetweenIdleRelays()
+    {
+        Set<SmtpRelay> selected = new HashSet<SmtpRelay>();
+        selected.add(this.balancer.select(Collections.<SmtpRelay> emptySet()));
+        selected.add(this.balancer.select(Collections.<SmtpRelay> emptySet()));
+        Assert.assertEquals(2, selected.size());
+    }
+
+    @Test
+    public void testFailingRelayIsEjected()
+    {
+        long now = System.currentTimeMillis();
+        this.first.recordFailure(now);
+        Assert.assertTrue(this.first.isHealthy());
+        this.first.recordFailure(now);
+        Assert.assertFalse(this.first.isHealthy());
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertSame(this.second, this.balancer.select(Collections.<SmtpRelay> emptySet()));
+        }
+        // Still tried when there is nothing else left
+        Assert.assertSame(this.first, this.balancer.select(Collections.singleton(this.second)));
+        Assert.assertFalse(this.balancer.hasCandidate(new HashSet<SmtpRelay>(Arrays.asList(this.first,
+            this.second))));
+    }
+
+    @Test
+    public void testEjectedRelayIsProbedOnce()
+    {
+        long now = System.currentTimeMillis();
+        this.first.recordFailure(now - EJECTION_TIME);
+        this.first.recordFailure(now - EJECTION_TIME);
+
+        Assert.assertTrue(this.first.claimProbe(now));
+        Assert.assertFalse(this.first.claimProbe(now));
+
+        // A failed probe ejects the relay right away, a successful one brings it back
+        this.first.recordFailure(now);
+        Assert.assertFalse(this.first.claimProbe(now + 1));
+        Assert.assertTrue(this.first.claimProbe(now + EJECTION_TIME));
+        this.first.recordSuccess();
+        Assert.assertTrue(this.first.isHealthy());
+        Assert.assertEquals(0, this.first.getConsecutiveFailures());
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.mail.util.BASE64EncoderStream;
+
+/**
+ * Blocking SMTP server answering each command as scripted by the test, on a free port of the loopback interface. It
+ * records the commands and the messages it receives. Replies are sent one command at a time, in order, which is
+ * also what a pipelining client expects.
+ */
+public class ScriptedSmtpServer
+{
+    private static final String ASCII = "US-ASCII";
+
+    private static final String OK = "250 OK";
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final List<String> commands = new ArrayList<String>();
+
+    private final List<String> messages = new ArrayList<String>();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final Queue<String> mailReplies = new LinkedList<String>();
+
+    private final Map<String, Queue<String>> recipientReplies = new HashMap<String, Queue<String>>();
+
+    private final Queue<String> dataReplies = new LinkedList<String>();
+
+    private List<String> extensions = Arrays.asList("PIPELINING");
+
+    private boolean ehlo = true;
+
+    private boolean greeting = true;
+
+    private String credentials;
+
+    private int dropAfter;
+
+    private volatile boolean stopped;
+
+    /**
+     * Start listening. The server greets, supports <tt>EHLO</tt> with <tt>PIPELINING</tt> and accepts everything
+     * until told otherwise.
+     *
+     * @throws IOException if the server socket can't be opened
+     */
+    public ScriptedSmtpServer() throws IOException
+    {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        this.executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                accept();
+            }
+        });
+    }
+
+    public int getPort()
+    {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param extensions the extensions advertised in the <tt>EHLO</tt> reply, e.g. <tt>CHUNKING</tt> or
+     *            <tt>SIZE 1000</tt>
+     * @return this
+     */
+    public synchronized ScriptedSmtpServer setExtensions(String... extensions)
+    {
+        this.extensions = Arrays.asList(extensions);
+        return this;
+    }
+
+    /**
+     * @param ehlo false to reject <tt>EHLO</tt>, like an old server only knowing <tt>HELO</tt>
+     * @return this
+     */
+    public synchronized ScriptedSmtpServer setEhlo(boolean ehlo)
+    {
+        this.ehlo = ehlo;
+        return this;
+    }
+
+    /**
+     * @param greeting false to accept the connections and never say anything
+     * @return this
+     */
+    public synchronized ScriptedSmtpServer setGreeting(boolean greeting)
+    {
+        this.greeting = greeting;
+        return this;
+    }
+
+    /**
+     * @param username the user accepted by <tt>AUTH PLAIN</tt>
+     * @param password the password accepted by <tt>AUTH PLAIN</tt>
+     * @return this
+     * @throws IOException never
+     */
+    public synchronized ScriptedSmtpServer setCredentials(String username, String password) throws IOException
+    {
+        this.credentials =
+            new String(BASE64EncoderStream.encode(('\0' + username + '\0' + password).getBytes("UTF-8")), ASCII);
+        return this;
+    }
+
+    /**
+     * @param transactions the number of transactions after which the server closes the connection without a word
+     *            when it receives the next <tt>MAIL</tt> command, 0 to never do it
+     * @return this
+     */
+    public synchronized ScriptedSmtpServer setDropAfter(int transactions)
+    {
+        this.dropAfter = transactions;
+        return this;
+    }
+
+    /**
+     * @param replies the replies to the next <tt>MAIL</tt> commands, the following ones being accepted
+     * @return this
+     */
+    public synchronized ScriptedSmtpServer replyToMail(String... replies)
+    {
+        this.mailReplies.addAll(Arrays.asList(replies));
+        return this;
+    }
+
+    /**
+     * @param recipient an address
+     * @param replies the replies to the next <tt>RCPT</tt> commands for this address, the following ones being
+     *            accepted
+     * @return this
+     */
+    public synchronized ScriptedSmtpServer replyToRecipient(String recipient, String... replies)
+    {
+        if (!this.recipientReplies.containsKey(recipient)) {
+            this.recipientReplies.put(recipient, new LinkedList<String>());
+        }
+        this.recipientReplies.get(recipient).addAll(Arrays.asList(replies));
+        return this;
+    }
+
+    /**
+     * @param replies the replies given once the next messages have been received, the following ones being accepted
+     * @return this
+     */
+    public synchronized ScriptedSmtpServer replyToData(String... replies)
+    {
+        this.dataReplies.addAll(Arrays.asList(replies));
+        return this;
+    }
+
+    /**
+     * @return the commands received so far, without their arguments for <tt>EHLO</tt> and <tt>HELO</tt>
+     */
+    public synchronized List<String> getCommands()
+    {
+        return new ArrayList<String>(this.commands);
+    }
+
+    /**
+     * @return the content of the messages accepted so far, dot stuffing removed
+     */
+    public synchronized List<String> getMessages()
+    {
+        return new ArrayList<String>(this.messages);
+    }
+
+    /**
+     * @return the number of connections accepted so far
+     */
+    public int getConnections()
+    {
+        return this.connections.get();
+    }
+
+    public void stop() throws IOException
+    {
+        this.stopped = true;
+        this.serverSocket.close();
+        this.executor.shutdownNow();
+    }
+
+    private void accept()
+    {
+        while (!this.stopped) {
+            try {
+                final Socket socket = this.serverSocket.accept();
+                this.connections.incrementAndGet();
+                this.executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        handle(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // Stopped
+            }
+        }
+    }
+
+    private void handle(Socket socket)
+    {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            if (!isGreeting()) {
+                // Wait for the client to give up
+                while (in.read() >= 0) {
+                    continue;
+                }
+                return;
+            }
+            reply(out, "220 localhost ESMTP scripted");
+            int transactions = 0;
+            String line;
+            while ((line = readLine(in)) != null) {
+                String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+                record("EHLO".equals(command) || "HELO".equals(command) ? command : line);
+                if ("EHLO".equals(command)) {
+                    reply(out, getEhloReply());
+                } else if ("AUTH".equals(command)) {
+                    reply(out, line.equals("AUTH PLAIN " + getCredentials()) ? "235 Authenticated"
+                        : "535 Authentication failed");
+                } else if ("MAIL".equals(command)) {
+                    if (isDropped(transactions)) {
+                        return;
+                    }
+                    reply(out, next(this.mailReplies));
+                } else if ("RCPT".equals(command)) {
+                    reply(out, nextRecipientReply(line.substring(line.indexOf('<') + 1, line.lastIndexOf('>'))));
+                } else if ("DATA".equals(command)) {
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    StringBuilder message = new StringBuilder();
+                    while ((line = readLine(in)) != null && !".".equals(line)) {
+                        message.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+                    }
+                    transactions += endOfData(out, message.toString());
+                } else if ("BDAT".equals(command)) {
+                    byte[] chunk = new byte[Integer.parseInt(line.split(" +")[1])];
+                    for (int read = 0; read < chunk.length;) {
+                        int count = in.read(chunk, read, chunk.length - read);
+                        if (count < 0) {
+                            return;
+                        }
+                        read += count;
+                    }
+                    transactions += endOfData(out, new String(chunk, ASCII));
+                } else if ("QUIT".equals(command)) {
+                    reply(out, "221 Bye");
+                    break;
+                } else if ("HELO".equals(command) || "RSET".equals(command) || "NOOP".equals(command)) {
+                    reply(out, OK);
+                } else {
+                    reply(out, "502 Command not implemented");
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed by the client
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private int endOfData(OutputStream out, String message) throws IOException
+    {
+        String reply = next(this.dataReplies);
+        if (reply.startsWith("250")) {
+            synchronized (this) {
+                this.messages.add(message);
+            }
+        }
+        reply(out, reply);
+        return 1;
+    }
+
+    private synchronized String getEhloReply()
+    {
+        if (!this.ehlo) {
+            return "502 Command not implemented";
+        }
+        StringBuilder reply = new StringBuilder("250-localhost");
+        for (String extension : this.extensions) {
+            reply.append("\r\n250-").append(extension);
+        }
+        return reply.append("\r\n250 8BITMIME").toString();
+    }
+
+    private synchronized boolean isGreeting()
+    {
+        return this.greeting;
+    }
+
+    private synchronized String getCredentials()
+    {
+        return this.credentials;
+    }
+
+    private synchronized boolean isDropped(int transactions)
+    {
+        return this.dropAfter > 0 && transactions >= this.dropAfter;
+    }
+
+    private synchronized void record(String command)
+    {
+        this.commands.add(command);
+    }
+
+    private synchronized String next(Queue<String> replies)
+    {
+        return replies.isEmpty() ? OK : replies.poll();
+    }
+
+    private synchronized String nextRecipientReply(String recipient)
+    {
+        Queue<String> replies = this.recipientReplies.get(recipient);
+        return replies == null ? OK : next(replies);
+    }
+
+    private void reply(OutputStream out, String reply) throws IOException
+    {
+        out.write((reply + "\r\n").getBytes(ASCII));
+        out.flush();
+    }
+
+    private String readLine(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            line.write(b);
+        }
+        String text = line.toString(ASCII);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SuppressionList}.
+ */
+public class SuppressionListTest
+{
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.directory = File.createTempFile("suppressions", "");
+        this.directory.delete();
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void testAddAndRemove() throws Exception
+    {
+        SuppressionList suppressions = new SuppressionList(null);
+        Assert.assertTrue(suppressions.isEmpty());
+        Assert.assertTrue(suppressions.add("John@Acme.org"));
+        Assert.assertFalse(suppressions.add(" john@acme.org "));
+        Assert.assertTrue(suppressions.contains("JOHN@acme.org"));
+        Assert.assertFalse(suppressions.contains("peter@acme.org"));
+        Assert.assertEquals(1, suppressions.size());
+
+        suppressions.compact();
+        Assert.assertTrue(suppressions.contains("john@acme.org"));
+        Assert.assertTrue(suppressions.remove("john@acme.org"));
+        Assert.assertFalse(suppressions.remove("john@acme.org"));
+        Assert.assertFalse(suppressions.contains("john@acme.org"));
+        Assert.assertTrue(suppressions.isEmpty());
+    }
+
+    @Test
+    public void testChangesSurviveARestart() throws Exception
+    {
+        SuppressionList suppressions = new SuppressionList(this.directory);
+        suppressions.open();
+        suppressions.add("john@acme.org");
+        suppressions.add("peter@acme.org");
+        suppressions.compact();
+        suppressions.remove("john@acme.org");
+        suppressions.add("paul@acme.org");
+        suppressions.close();
+
+        suppressions = new SuppressionList(this.directory);
+        suppressions.open();
+        Assert.assertFalse(suppressions.contains("john@acme.org"));
+        Assert.assertTrue(suppressions.contains("peter@acme.org"));
+        Assert.assertTrue(suppressions.contains("paul@acme.org"));
+        Assert.assertEquals(2, suppressions.size());
+        suppressions.close();
+    }
+
+    @Test
+    public void testTornJournalRecordIsIgnored() throws Exception
+    {
+        SuppressionList suppressions = new SuppressionList(this.directory);
+        suppressions.open();
+        suppressions.add("john@acme.org");
+        suppressions.add("peter@acme.org");
+        suppressions.close();
+
+        // Simulate a crash in the middle of the last write
+        RandomAccessFile journal = new RandomAccessFile(new File(this.directory, "suppressions.log"), "rw");
+        journal.setLength(journal.length() - 3);
+        journal.close();
+
+        suppressions = new SuppressionList(this.directory);
+        suppressions.open();
+        Assert.assertTrue(suppressions.contains("john@acme.org"));
+        Assert.assertFalse(suppressions.contains("peter@acme.org"));
+        suppressions.add("paul@acme.org");
+        suppressions.close();
+
+        suppressions = new SuppressionList(this.directory);
+        suppressions.open();
+        Assert.assertTrue(suppressions.contains("paul@acme.org"));
+        Assert.assertEquals(2, suppressions.size());
+        suppressions.close();
+    }
+
+    @Test
+    public void testManyAddressesAreMerged() throws Exception
+    {
+        SuppressionList suppressions = new SuppressionList(this.directory);
+        suppressions.open();
+        List<String> addresses = new ArrayList<String>();
+        for (int i = 0; i < 50000; i++) {
+            addresses.add("user" + i + "@acme.org");
+        }
+        Assert.assertEquals(50000, suppressions.addAll(addresses));
+        for (int i = 0; i < 50000; i += 7) {
+            suppressions.remove("user" + i + "@acme.org");
+        }
+        suppressions.close();
+
+        suppressions = new SuppressionList(this.directory);
+        suppressions.open();
+        for (int i = 0; i < 50000; i++) {
+            Assert.assertEquals(i % 7 != 0, suppressions.contains("user" + i + "@acme.org"));
+            Assert.assertFalse(suppressions.contains("other" + i + "@acme.org"));
+        }
+        Assert.assertEquals(50000 - 7143, suppressions.size());
+        suppressions.close();
+    }
+}
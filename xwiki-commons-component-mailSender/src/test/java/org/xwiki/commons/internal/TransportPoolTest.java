@@ -0,0 +1,207 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.commons.internal;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TransportPool}.
+ */
+public class TransportPoolTest
+{
+    /**
+     * Transport which doesn't connect to anything, registered as the SMTP provider of the test session.
+     */
+    public static class FakeTransport extends Transport
+    {
+        private static final List<FakeTransport> OPENED = new CopyOnWriteArrayList<FakeTransport>();
+
+        private static volatile boolean refused;
+
+        private volatile boolean broken;
+
+        public FakeTransport(Session session, URLName urlname)
+        {
+            super(session, urlname);
+        }
+
+        @Override
+        protected boolean protocolConnect(String host, int port, String user, String password)
+            throws MessagingException
+        {
+            if (refused) {
+                throw new MessagingException("Connection refused");
+            }
+            OPENED.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            // What the SMTP transport finds out with a NOOP
+            return !this.broken && super.isConnected();
+        }
+
+        @Override
+        public void sendMessage(Message message, Address[] addresses)
+        {
+            // Nothing to send to
+        }
+    }
+
+    private Session session;
+
+    private TransportPool pool;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        FakeTransport.OPENED.clear();
+        FakeTransport.refused = false;
+        Properties properties = new Properties();
+        properties.setProperty("mail.smtp.host", "myserver");
+        this.session = Session.getInstance(properties, null);
+        this.session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", FakeTransport.class.getName(),
+            "XWiki", null));
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (this.pool != null) {
+            this.pool.close();
+        }
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception
+    {
+        this.pool = new TransportPool(this.session, 2, 0, 1000);
+
+        TransportPool.Lease lease = this.pool.borrow();
+        Assert.assertFalse(lease.isReused());
+        Assert.assertEquals(1, this.pool.getActiveCount());
+        this.pool.release(lease);
+        Assert.assertEquals(0, this.pool.getActiveCount());
+
+        TransportPool.Lease reused = this.pool.borrow();
+        Assert.assertTrue(reused.isReused());
+        Assert.assertSame(lease.getTransport(), reused.getTransport());
+        Assert.assertEquals(1, FakeTransport.OPENED.size());
+    }
+
+    @Test
+    public void testExpiredConnectionIsNotReused() throws Exception
+    {
+        // Closed when borrowed again, if the evictor didn't close it first
+        this.pool = new TransportPool(this.session, 2, 100, 1000);
+
+        TransportPool.Lease lease = this.pool.borrow();
+        this.pool.release(lease);
+        Thread.sleep(150);
+
+        TransportPool.Lease next = this.pool.borrow();
+        Assert.assertFalse(next.isReused());
+        Assert.assertNotSame(lease.getTransport(), next.getTransport());
+        Assert.assertFalse(lease.getTransport().isConnected());
+    }
+
+    @Test
+    public void testBrokenConnectionIsNotReused() throws Exception
+    {
+        this.pool = new TransportPool(this.session, 2, 0, 1000);
+
+        TransportPool.Lease lease = this.pool.borrow();
+        this.pool.release(lease);
+        ((FakeTransport) lease.getTransport()).broken = true;
+
+        TransportPool.Lease next = this.pool.borrow();
+        Assert.assertFalse(next.isReused());
+        Assert.assertEquals(2, FakeTransport.OPENED.size());
+    }
+
+    @Test
+    public void testIdleConnectionsAreEvicted() throws Exception
+    {
+        this.pool = new TransportPool(this.session, 2, 50, 1000);
+
+        TransportPool.Lease first = this.pool.borrow();
+        TransportPool.Lease second = this.pool.borrow();
+        this.pool.release(first);
+        Thread.sleep(100);
+        this.pool.release(second);
+        this.pool.evictIdle();
+
+        Assert.assertFalse(first.getTransport().isConnected());
+        Assert.assertTrue(second.getTransport().isConnected());
+    }
+
+    @Test
+    public void testPermitIsReleasedWhenConnectingFails() throws Exception
+    {
+        this.pool = new TransportPool(this.session, 1, 0, 100);
+
+        FakeTransport.refused = true;
+        try {
+            this.pool.borrow();
+            Assert.fail("The connection should have been refused");
+        } catch (MessagingException e) {
+            Assert.assertEquals("Connection refused", e.getMessage());
+        }
+        Assert.assertEquals(0, this.pool.getActiveCount());
+
+        FakeTransport.refused = false;
+        Assert.assertFalse(this.pool.borrow().isReused());
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenThePoolIsExhausted() throws Exception
+    {
+        this.pool = new TransportPool(this.session, 1, 0, 100);
+
+        TransportPool.Lease lease = this.pool.borrow();
+        long start = System.currentTimeMillis();
+        try {
+            this.pool.borrow();
+            Assert.fail("No connection should have been available");
+        } catch (MessagingException e) {
+            Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+
+        this.pool.release(lease);
+        Assert.assertTrue(this.pool.borrow().isReused());
+    }
+}